@@ -0,0 +1,425 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * BTreeBulkLoader builds a BTreeFile bottom-up from tuples that arrive sorted
+ * on the key field, instead of inserting them one at a time with a root-to-leaf
+ * descent and repeated page splits.
+ * <p>
+ * Leaf pages are packed to a fill factor and written out as soon as the next
+ * leaf is started; each leaf then adds an entry to the level of internal pages
+ * above it, which is filled and written the same way. Page numbers are handed
+ * out when a page is started, so parent and sibling pointers are right when a
+ * page is first written. Only the last two pages of each level are kept in
+ * memory: when the input ends, the last page of a level may have to take
+ * tuples or entries from the one before it to be at least half full.
+ * Pages are filled by their space rather than by their number of tuples, so
+ * the pages of a tree keyed on strings, which are in the compact format, take
+ * as many prefix-compressed tuples as fit, and the keys separating them are
+ * truncated to the shortest prefix that tells them apart.
+ * Memory use is therefore proportional to the height of the tree, not to the
+ * size of the input. Input that is not sorted can be fed through ExternalSort.
+ * <p>
+ * The loader writes pages straight to the file, bypassing the BufferPool and
+ * the log, so the file must be empty and must not be used by any transaction
+ * while it is loaded.
+ *
+ * @see ExternalSort
+ */
+public class BTreeBulkLoader {
+
+	/** The fill factor used when none is given */
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+
+	private final BTreeFile bf;
+	private final int tableid;
+	private final int keyField;
+	private final TupleDesc td;
+	private final Type[] typeAr;
+	private final int maxTuples;
+	private final int maxEntries;
+	// empty pages of the file, to measure tuples and entries with
+	private final BTreeLeafPage emptyLeaf;
+	private final BTreeInternalPage emptyInternal;
+	private final int leafTarget;
+	private final int internalTarget;
+
+	// levels.get(0) holds leaf pages, the levels above it internal pages
+	private final ArrayList<Level> levels = new ArrayList<Level>();
+	// page numbers given back when the last two pages of a level were merged
+	private final ArrayList<Integer> freePageNos = new ArrayList<Integer>();
+	private int nextPageNo;
+
+	/**
+	 * A page that has not been written yet
+	 */
+	private static class Node {
+		final BTreePageId pid;
+		final BTreePageId leftSiblingId; // leaf pages only
+		Field lowKey; // a key separating the subtree from the one before it
+		int space; // the space used on the page
+		final ArrayList<Tuple> tuples = new ArrayList<Tuple>(); // leaf pages only
+		final ArrayList<BTreePageId> children = new ArrayList<BTreePageId>(); // internal pages only
+		final ArrayList<Field> keys = new ArrayList<Field>(); // keys.get(i) separates child i from child i+1
+
+		Node(BTreePageId pid, BTreePageId leftSiblingId) {
+			this.pid = pid;
+			this.leftSiblingId = leftSiblingId;
+		}
+	}
+
+	/**
+	 * The unwritten pages of one level of the tree: the page being filled, and
+	 * the full page before it
+	 */
+	private static class Level {
+		Node prev;
+		Node cur;
+	}
+
+	/**
+	 * Create a loader for an empty BTreeFile.
+	 *
+	 * @param bf         - the BTreeFile to load. It must be registered with the Catalog
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1. Leaving
+	 *                   room on the pages makes later inserts into the tree split less
+	 */
+	public BTreeBulkLoader(BTreeFile bf, double fillFactor) {
+		if (fillFactor < 0.5 || fillFactor > 1.0)
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		this.bf = bf;
+		this.tableid = bf.getId();
+		this.keyField = bf.keyField();
+		this.td = bf.getTupleDesc();
+		this.typeAr = new Type[td.numFields()];
+		for (int i = 0; i < typeAr.length; i++)
+			typeAr[i] = td.getFieldType(i);
+
+		try {
+			byte[] empty = BTreePage.createEmptyPageData();
+			this.emptyLeaf = new BTreeLeafPage(new BTreePageId(tableid, 0, BTreePageId.LEAF), empty, keyField);
+			this.emptyInternal = new BTreeInternalPage(new BTreePageId(tableid, 0, BTreePageId.INTERNAL),
+					empty, keyField);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		this.maxTuples = emptyLeaf.getMaxTuples();
+		this.maxEntries = emptyInternal.getMaxEntries();
+		this.leafTarget = Math.max(1, (int) (emptyLeaf.getCapacity() * fillFactor));
+		this.internalTarget = Math.max(1, (int) (emptyInternal.getCapacity() * fillFactor));
+	}
+
+	/**
+	 * Create a loader that fills pages completely.
+	 *
+	 * @param bf - the BTreeFile to load. It must be registered with the Catalog
+	 */
+	public BTreeBulkLoader(BTreeFile bf) {
+		this(bf, DEFAULT_FILL_FACTOR);
+	}
+
+	/**
+	 * Load the tuples of an iterator into the file. The iterator is opened and
+	 * closed by this method.
+	 *
+	 * @param sorted - the tuples, sorted on the key field of the BTreeFile
+	 * @return the number of tuples loaded
+	 * @throws DbException if the file is not empty, or the tuples do not match the
+	 * file or are not sorted on its key field
+	 */
+	public int load(OpIterator sorted) throws DbException, TransactionAbortedException, IOException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		if (bf.getFile().length() > 0
+				&& ((BTreeRootPtrPage) bf.readPage(rootPtrId)).getRootId() != null)
+			throw new DbException("bulk load needs an empty BTreeFile");
+
+		levels.clear();
+		freePageNos.clear();
+		nextPageNo = 1;
+		int count = 0;
+		Field prevKey = null;
+		sorted.open();
+		try {
+			while (sorted.hasNext()) {
+				Tuple t = sorted.next();
+				if (!t.getTupleDesc().equals(td))
+					throw new DbException("type mismatch in bulk load");
+				Field key = t.getField(keyField);
+				if (prevKey != null && prevKey.compare(Op.GREATER_THAN, key))
+					throw new DbException("bulk load input is not sorted on the key field");
+				prevKey = key;
+				addTuple(t);
+				count++;
+			}
+		} finally {
+			sorted.close();
+		}
+		if (count == 0)
+			return 0;
+
+		BTreePageId rootId = finish();
+		int headerPgNo = writeHeaderPages();
+		bf.writePage(new BTreeRootPtrPage(rootPtrId, BTreeFileEncoder.convertToRootPtrPage(
+				rootId.getPageNumber(), rootId.pgcateg(), headerPgNo)));
+
+		// the buffer pool may still hold the pages of the empty file
+		Database.getBufferPool().discardPage(rootPtrId);
+		Database.getBufferPool().discardPage(new BTreePageId(tableid, 1, BTreePageId.LEAF));
+		return count;
+	}
+
+	/**
+	 * Add the next tuple to the leaf level, starting a new leaf page if the
+	 * current one is full.
+	 */
+	private void addTuple(Tuple t) throws DbException, IOException {
+		Level leaves = level(0);
+		Node cur = leaves.cur;
+		Tuple last = cur == null ? null : cur.tuples.get(cur.tuples.size() - 1);
+		int space = emptyLeaf.getTupleSpace(t, last);
+		if (cur == null || cur.space + space > leafTarget || cur.tuples.size() >= maxTuples) {
+			Node next = new Node(allocate(BTreePageId.LEAF), cur == null ? null : cur.pid);
+			next.lowKey = last == null ? t.getField(keyField)
+					: BTreeInternalPage.separator(last.getField(keyField), t.getField(keyField));
+			rotate(0, next);
+			space = emptyLeaf.getTupleSpace(t, null);
+		}
+		leaves.cur.tuples.add(t);
+		leaves.cur.space += space;
+	}
+
+	/**
+	 * Add a child page to the internal level above it, starting a new internal
+	 * page if the current one is full.
+	 *
+	 * @param level  - the level of the internal page to add the child to
+	 * @param child  - the id of the child page
+	 * @param lowKey - the key separating the child's subtree from the one before it
+	 * @return the id of the internal page the child was added to
+	 */
+	private BTreePageId addChild(int level, BTreePageId child, Field lowKey) throws DbException, IOException {
+		Level l = level(level);
+		Node cur = l.cur;
+		int space = cur == null ? 0 : emptyInternal.getEntrySpace(lowKey,
+				cur.keys.isEmpty() ? null : cur.keys.get(cur.keys.size() - 1));
+		if (cur == null || cur.space + space > internalTarget || cur.keys.size() >= maxEntries) {
+			// the child's key is pushed up to the level above rather than kept here
+			Node next = new Node(allocate(BTreePageId.INTERNAL), null);
+			next.lowKey = lowKey;
+			next.children.add(child);
+			rotate(level, next);
+		} else {
+			cur.keys.add(lowKey);
+			cur.children.add(child);
+			cur.space += space;
+		}
+		return l.cur.pid;
+	}
+
+	/**
+	 * Make next the page being filled on a level. The page before the current
+	 * one is final now, so it is added to its parent and written out.
+	 */
+	private void rotate(int level, Node next) throws DbException, IOException {
+		Level l = level(level);
+		if (l.prev != null)
+			write(level, l.prev, l.cur.pid);
+		l.prev = l.cur;
+		l.cur = next;
+	}
+
+	/**
+	 * Write out the pages still in memory, from the leaves up, and return the id
+	 * of the root page.
+	 */
+	private BTreePageId finish() throws DbException, IOException {
+		for (int i = 0; ; i++) {
+			Level l = levels.get(i);
+			if (l.prev != null)
+				balance(l);
+			if (levels.size() == i + 1 && (l.prev == null || l.cur == null)) {
+				// the top level is down to one page: the root
+				Node root = l.prev == null ? l.cur : l.prev;
+				writePage(root, BTreeRootPtrPage.getId(tableid), null);
+				return root.pid;
+			}
+			// a level below the top has sent pages up before, so it still has a
+			// full page in prev
+			write(i, l.prev, l.cur == null ? null : l.cur.pid);
+			if (l.cur != null)
+				write(i, l.cur, null);
+		}
+	}
+
+	/**
+	 * Make sure the last page of a level is at least half full, by taking
+	 * tuples or entries from the page before it, or by merging the two pages if
+	 * they fit on one.
+	 */
+	private void balance(Level l) throws DbException, IOException {
+		Node prev = l.prev;
+		Node cur = l.cur;
+		if (cur.pid.pgcateg() == BTreePageId.LEAF) {
+			if (cur.space >= emptyLeaf.getMinSpace())
+				return;
+			ArrayList<Tuple> all = new ArrayList<Tuple>(prev.tuples);
+			all.addAll(cur.tuples);
+			if (all.size() <= maxTuples && leafSpace(all) <= emptyLeaf.getCapacity()) {
+				prev.tuples.addAll(cur.tuples);
+				prev.space = leafSpace(prev.tuples);
+				release(cur.pid);
+				l.cur = null;
+				return;
+			}
+			while (cur.space < prev.space) {
+				cur.tuples.add(0, prev.tuples.remove(prev.tuples.size() - 1));
+				prev.space = leafSpace(prev.tuples);
+				cur.space = leafSpace(cur.tuples);
+			}
+			cur.lowKey = BTreeInternalPage.separator(prev.tuples.get(prev.tuples.size() - 1).getField(keyField),
+					cur.tuples.get(0).getField(keyField));
+			return;
+		}
+
+		if (cur.space >= emptyInternal.getMinSpace())
+			return;
+		// pull the key separating the two pages down into the merged page
+		ArrayList<Field> allKeys = new ArrayList<Field>(prev.keys);
+		allKeys.add(cur.lowKey);
+		allKeys.addAll(cur.keys);
+		if (allKeys.size() <= maxEntries && internalSpace(allKeys) <= emptyInternal.getCapacity()) {
+			prev.keys.clear();
+			prev.keys.addAll(allKeys);
+			prev.children.addAll(cur.children);
+			prev.space = internalSpace(prev.keys);
+			for (BTreePageId child : cur.children)
+				setParent(child, prev.pid);
+			release(cur.pid);
+			l.cur = null;
+			return;
+		}
+		while (cur.space < prev.space) {
+			BTreePageId child = prev.children.remove(prev.children.size() - 1);
+			cur.children.add(0, child);
+			cur.keys.add(0, cur.lowKey);
+			cur.lowKey = prev.keys.remove(prev.keys.size() - 1);
+			setParent(child, cur.pid);
+			prev.space = internalSpace(prev.keys);
+			cur.space = internalSpace(cur.keys);
+		}
+	}
+
+	/**
+	 * Returns the space tuples, sorted on the key field, take on a leaf page
+	 */
+	private int leafSpace(List<Tuple> tuples) {
+		int space = 0;
+		for (int i = 0; i < tuples.size(); i++)
+			space += emptyLeaf.getTupleSpace(tuples.get(i), i == 0 ? null : tuples.get(i - 1));
+		return space;
+	}
+
+	/**
+	 * Returns the space entries with the given keys take on an internal page
+	 */
+	private int internalSpace(List<Field> keys) {
+		int space = 0;
+		for (int i = 0; i < keys.size(); i++)
+			space += emptyInternal.getEntrySpace(keys.get(i), i == 0 ? null : keys.get(i - 1));
+		return space;
+	}
+
+	/**
+	 * Add a final page to its parent and write it out.
+	 *
+	 * @param level          - the level of the page
+	 * @param node           - the page
+	 * @param rightSiblingId - the id of the next page on the level, or null
+	 */
+	private void write(int level, Node node, BTreePageId rightSiblingId) throws DbException, IOException {
+		BTreePageId parentId = addChild(level + 1, node.pid, node.lowKey);
+		writePage(node, parentId, rightSiblingId);
+	}
+
+	private void writePage(Node node, BTreePageId parentId, BTreePageId rightSiblingId)
+			throws DbException, IOException {
+		int npagebytes = BufferPool.getPageSize();
+		BTreePage page;
+		if (node.pid.pgcateg() == BTreePageId.LEAF) {
+			BTreeLeafPage leaf = new BTreeLeafPage(node.pid, BTreeFileEncoder.convertToLeafPage(
+					node.tuples, npagebytes, typeAr.length, typeAr, keyField, bf.isCompact()), keyField);
+			leaf.setLeftSiblingId(node.leftSiblingId);
+			leaf.setRightSiblingId(rightSiblingId);
+			page = leaf;
+		} else {
+			ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+			for (int i = 0; i < node.keys.size(); i++)
+				entries.add(new BTreeEntry(node.keys.get(i), node.children.get(i), node.children.get(i + 1)));
+			page = new BTreeInternalPage(node.pid, BTreeFileEncoder.convertToInternalPage(
+					entries, npagebytes, typeAr[keyField], node.children.get(0).pgcateg(), bf.isCompact()),
+					keyField);
+		}
+		page.setParentId(parentId);
+		bf.writePage(page);
+	}
+
+	/**
+	 * Point a page that has already been written at a new parent.
+	 */
+	private void setParent(BTreePageId pid, BTreePageId parentId) throws DbException, IOException {
+		BTreePage page = (BTreePage) bf.readPage(pid);
+		page.setParentId(parentId);
+		bf.writePage(page);
+	}
+
+	/**
+	 * Mark the page numbers given back by merges as free in a chain of header
+	 * pages, so the file does not keep unused pages in the middle.
+	 *
+	 * @return the page number of the first header page, or 0 if none was needed
+	 */
+	private int writeHeaderPages() throws DbException, IOException {
+		if (freePageNos.isEmpty())
+			return 0;
+		int numHeaders = Collections.max(freePageNos) / BTreeHeaderPage.getNumSlots() + 1;
+		int firstPgNo = nextPageNo;
+		nextPageNo += numHeaders;
+		for (int h = 0; h < numHeaders; h++) {
+			BTreeHeaderPage header = new BTreeHeaderPage(
+					new BTreePageId(tableid, firstPgNo + h, BTreePageId.HEADER), BTreeHeaderPage.createEmptyPageData());
+			header.init();
+			if (h > 0)
+				header.setPrevPageId(new BTreePageId(tableid, firstPgNo + h - 1, BTreePageId.HEADER));
+			if (h < numHeaders - 1)
+				header.setNextPageId(new BTreePageId(tableid, firstPgNo + h + 1, BTreePageId.HEADER));
+			for (int pgNo : freePageNos) {
+				if (pgNo / BTreeHeaderPage.getNumSlots() == h)
+					header.markSlotUsed(pgNo % BTreeHeaderPage.getNumSlots(), false);
+			}
+			bf.writePage(header);
+		}
+		for (int pgNo : freePageNos)
+			bf.writePage(new BTreeLeafPage(new BTreePageId(tableid, pgNo, BTreePageId.LEAF),
+					BTreePage.createEmptyPageData(), keyField));
+		return firstPgNo;
+	}
+
+	private BTreePageId allocate(int pgcateg) {
+		int pgNo = freePageNos.isEmpty() ? nextPageNo++ : freePageNos.remove(freePageNos.size() - 1);
+		return new BTreePageId(tableid, pgNo, pgcateg);
+	}
+
+	private void release(BTreePageId pid) {
+		freePageNos.add(pid.getPageNumber());
+	}
+
+	private Level level(int level) {
+		while (levels.size() <= level)
+			levels.add(new Level());
+		return levels.get(level);
+	}
+}
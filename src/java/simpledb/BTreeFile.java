@@ -1,7 +1,10 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import simpledb.Predicate.Op;
 
@@ -18,12 +21,28 @@ import simpledb.Predicate.Op;
  * @see simpledb.BTreeRootPtrPage#BTreeRootPtrPage
  * @author Becca Taft
  */
-public class BTreeFile implements DbFile {
+public class BTreeFile implements DbFile, Closeable {
 
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid;
 	private int keyField;
+	private final FileHandle handle;
+	private final PageLatches latches = new PageLatches();
+	// whether the pages are in the compact format, read from the root pointer page on first use
+	private volatile Boolean compact = null;
+
+	/** The most free pages taken off the header pages at a time */
+	static final int ALLOCATION_BATCH = 64;
+
+	// 空闲页缓存：头页上已经标记为已用、还没有分配出去的页
+	private final ArrayDeque<Integer> freePages = new ArrayDeque<Integer>();
+	// 各事务自己释放、提交前只能由它自己重用的页
+	private final Map<TransactionId, ArrayDeque<Integer>> freedBy =
+			new ConcurrentHashMap<TransactionId, ArrayDeque<Integer>>();
+	// 各事务从空闲页缓存拿走或在文件末尾新加的页，事务中止时放回缓存
+	private final Map<TransactionId, ArrayDeque<Integer>> allocatedTo =
+			new ConcurrentHashMap<TransactionId, ArrayDeque<Integer>>();
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -34,10 +53,26 @@ public class BTreeFile implements DbFile {
 	 * @param td  - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, f.getAbsoluteFile().hashCode());
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, with the id of another file.
+	 * Pages look their tuple descriptor up in the Catalog by the id of their file, so this
+	 * lets a scratch copy of a file that is in the Catalog be used without adding it.
+	 *
+	 * @param f       - the file that stores the on-disk backing store for this B+ tree file.
+	 * @param key     - the field which index is keyed on
+	 * @param td      - the tuple descriptor of tuples in the file
+	 * @param tableid - the id of the file
+	 * @see #compact(double)
+	 */
+	BTreeFile(File f, int key, TupleDesc td, int tableid) {
 		this.f = f;
-		this.tableid = f.getAbsoluteFile().hashCode();
+		this.tableid = tableid;
 		this.keyField = key;
 		this.td = td;
+		this.handle = new FileHandle(f);
 	}
 
 	/**
@@ -78,13 +113,11 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+				int retval = handle.read(pageBuf, 0);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -97,12 +130,7 @@ public class BTreeFile implements DbFile {
 				return p;
 			} else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+				int retval = handle.read(pageBuf, pageOffset(id.getPageNumber()));
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -124,14 +152,6 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
@@ -144,18 +164,31 @@ public class BTreeFile implements DbFile {
 	public void writePage(Page page) throws IOException {
 		BTreePageId id = (BTreePageId) page.getId();
 
-		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			// root pointer pages built from scratch do not know the format of the file
+			((BTreeRootPtrPage) page).setCompact(isCompact());
+			handle.write(page.getPageData(), 0);
 		} else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			handle.write(page.getPageData(), pageOffset(page.getId().getPageNumber()));
 		}
 	}
 
+	/**
+	 * Returns the file offset of the page with the given number.  Page
+	 * numbers start at 1; the root pointer page sits before page 1.
+	 */
+	private static long pageOffset(int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * BufferPool.getPageSize();
+	}
+
+	/**
+	 * Releases the file handle held by this BTreeFile.  It is reopened if the
+	 * file is accessed again.
+	 */
+	public void close() throws IOException {
+		handle.close();
+	}
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
@@ -172,66 +205,168 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-	 * leaf node with permission perm.
+	 * Returns true if the pages of this B+ tree are in the compact format. This is
+	 * recorded in the root pointer page. A tree keyed on a string that does not have a
+	 * root pointer page yet is created in the compact format; trees keyed on any other
+	 * type, and string-keyed trees written before the compact format existed, use the
+	 * fixed slot format.
+	 *
+	 * @see BTreePage#isCompact()
+	 */
+	public boolean isCompact() {
+		Boolean c = compact;
+		if (c == null) {
+			synchronized (this) {
+				c = compact;
+				if (c == null) {
+					c = td.getFieldType(keyField) == Type.STRING_TYPE;
+					if (c && f.length() >= BTreeRootPtrPage.getPageSize())
+						c = ((BTreeRootPtrPage) readPage(BTreeRootPtrPage.getId(tableid))).isCompact();
+					compact = c;
+				}
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f, walking down from page pid. The internal nodes
+	 * along the path are only latched, not locked; the leaf node is locked with permission perm.
 	 * <p>
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 *
 	 * @param tid        - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid        - the current page being searched
+	 * @param pid        - the page to start from. May be the RootPtr page
 	 * @param perm       - the permissions with which to lock the leaf page
 	 * @param f          - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if pid is
+	 * the RootPtr page of a tree without a root page yet
+	 * @see #descend(TransactionId, HashMap, BTreePageId, Permissions, Field, boolean)
 	 */
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 									   Field f)
 			throws DbException, TransactionAbortedException {
-		// some code goes here
+		return descend(tid, dirtypages, pid, perm, f, false);
+	}
 
-		if (pid.pgcateg() == BTreePageId.LEAF)
-		// 调用BTreePageId的pgcateg，获取该数据页的类型
-		{
-			//该数据页是叶子节点，递归结束，直接返回
-			//调用BTreeFile的getPage函数，根据本函数传入的参数——TransactionId、脏页列表、BTreePageId、访问权限
-			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
-		}
-		//还是先根据传入的参数找到对应的page
-		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+	/**
+	 * Walk down the tree from page pid to the leaf page for key field f and lock the leaf with
+	 * permission perm.
+	 * <p>
+	 * The RootPtr page and the internal pages are not locked on the way down, so readers do
+	 * not hold locks on the top of the tree until they commit and writers that split or merge
+	 * pages do not have to wait for them. Instead the walk latch-couples: it keeps the shared
+	 * latch of a page until it holds the latch of the child it moves to. A page that another
+	 * transaction has locked exclusively is part of an uncommitted split or merge; the walk
+	 * waits for that transaction to finish and starts over. The latches are released before
+	 * the leaf is locked, so once it is, the walk checks that none of the pages on its path
+	 * has been invalidated by a writer in the meantime, and starts over if one has.
+	 *
+	 * @param tid        - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid        - the page to start from. May be the RootPtr page
+	 * @param perm       - the permissions with which to lock the leaf page
+	 * @param f          - the field to search for
+	 * @param reverse    - whether to find the right-most rather than the left-most leaf page
+	 *                   possibly containing f
+	 * @return the leaf page, or null if pid is the RootPtr page of a tree without a root page yet
+	 * @see #invalidate(BTreePageId)
+	 */
+	private BTreeLeafPage descend(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+								  Permissions perm, Field f, boolean reverse)
+			throws DbException, TransactionAbortedException {
+		BufferPool bufferPool = Database.getBufferPool();
+		ArrayList<PageLatches.Latch> path = new ArrayList<PageLatches.Latch>();
+		ArrayList<Long> versions = new ArrayList<Long>();
+		while (true) {
+			path.clear();
+			versions.clear();
+			BTreePageId cur = pid;
+			BTreePageId busy = null;
+			PageLatches.Latch held = null;
+			try {
+				while (cur != null && cur.pgcateg() != BTreePageId.LEAF) {
+					// 先锁住子节点的latch，再放开父节点的latch
+					PageLatches.Latch latch = latches.get(cur.getPageNumber());
+					latch.lockShared();
+					if (held != null)
+						held.unlockShared();
+					held = latch;
+
+					Page page = dirtypages.get(cur);
+					if (page == null) {
+						// 别的事务持有该页的写锁，说明它正在分裂/合并，需要等它结束
+						TransactionId holder = bufferPool.getExclusiveHolder(cur);
+						if (holder != null && !holder.equals(tid)) {
+							busy = cur;
+							break;
+						}
+						page = bufferPool.getPageUnlocked(cur);
+					}
+					path.add(latch);
+					versions.add(latch.version());
 
-		//获取该页面（内部节点）的迭代器
-		Iterator<BTreeEntry> iter = page.iterator();
+					if (cur.pgcateg() == BTreePageId.ROOT_PTR)
+						cur = ((BTreeRootPtrPage) page).getRootId();
+					else
+						cur = childFor((BTreeInternalPage) page, f, reverse);
+				}
+			} finally {
+				if (held != null)
+					held.unlockShared();
+			}
 
-		//对内部节点的entry进行迭代
-		if (iter == null || !iter.hasNext())
-			throw new DbException("No that Entry!");
-		//如果field是空直接找到最左的叶子页面即可
-		if (f == null)
-			//参数pid处调用最左的孩子（iter是迭代器，iter.next迭代第一个entry，第一个entry的leftchild就是最左孩子）
-			return findLeafPage(tid, dirtypages, iter.next().getLeftChild(), perm, f);
-		BTreeEntry entry = null;
+			if (busy != null) {
+				// 等待持有写锁的事务结束（不持有任何latch时才能等锁），然后重新查找
+				bufferPool.getPage(tid, busy, Permissions.READ_ONLY);
+				bufferPool.releasePage(tid, busy);
+				continue;
+			}
+			if (cur == null)
+				return null;
 
-		//循环遍历所有entry，找到第一个大于（或等于）field的entry，然后递归其左孩子
-		while (iter.hasNext()) {
-			entry = iter.next();
-			// Op.GREATER_THAN_OR_EQ是 大于等于 的意思；entry对应BtreeEntry.java，getkey是这个entry存的field
-			if (entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f))
-				return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
+			// 给叶子页加锁，加锁之后检查路径上的页在此期间有没有被修改
+			boolean wasLocked = bufferPool.holdsLock(tid, cur);
+			BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, cur, perm);
+			boolean unchanged = true;
+			for (int i = 0; i < path.size() && unchanged; i++)
+				unchanged = path.get(i).version() == versions.get(i);
+			if (unchanged)
+				return leaf;
+			// 路径已经变了，这个叶子页可能不再是要找的页，放掉它重新查找
+			if (!wasLocked) {
+				dirtypages.remove(cur);
+				bufferPool.releasePage(tid, cur);
+			}
 		}
-		// 如果到了最后一个页面，并且最后一个页面都不大于等于field，则递归其右孩子
-		return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
-
 	}
 
+	/**
+	 * Pick the child of an internal page to descend into when searching for key field f.
+	 *
+	 * @param page    - the internal page
+	 * @param f       - the field to search for, or null to go to the left-most (or right-most) child
+	 * @param reverse - whether to look for the right-most rather than the left-most child
+	 *                possibly containing f
+	 * @return the id of the child page
+	 */
+	private BTreePageId childFor(BTreeInternalPage page, Field f, boolean reverse) throws DbException {
+		//在内部节点的key上二分查找：正向进入第一个大于等于field的entry的左孩子，
+		//反向进入最后一个小于等于field的entry的右孩子；field为空时进入最左（反向时最右）的孩子
+		BTreePageId child = page.findChildId(f, reverse);
+		if (child == null)
+			throw new DbException("No that Entry!");
+		return child;
+	}
 
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
 	 *
 	 * @param tid  - the transaction id
-	 * @param pid  - the current page being searched
+	 * @param pid  - the page to start from. May be the RootPtr page
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f    - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
@@ -247,42 +382,7 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage ReversefindLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
 											  Permissions perm, Field f)
 			throws DbException, TransactionAbortedException {
-
-		if (pid.pgcateg() == BTreePageId.LEAF)
-		// 调用BTreePageId的pgcateg，获取该数据页的类型
-		{
-			//该数据页是叶子节点，递归结束，直接返回
-			//调用BTreeFile的getPage函数，根据本函数传入的参数——TransactionId、脏页列表、BTreePageId、访问权限
-			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
-		}
-
-		//还是先根据传入的参数找到对应的page
-		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-
-		//获取该页面（内部节点）的反向迭代器
-		Iterator<BTreeEntry> iter = page.reverseIterator();
-
-		// 判断是否有entry
-		if (iter == null || !iter.hasNext())
-			throw new DbException("No that Entry!");
-		if (f == null) {
-			// f = null的时候，返回最右节点
-			return findLeafPage(tid, dirtypages, iter.next().getRightChild(), perm, f);
-		}
-
-		BTreeEntry entry = null;
-		//循环遍历所有entry，找到第一个大小于（或等于）field的entry，然后递归其右孩子
-		while(iter.hasNext()){
-			entry = iter.next();
-			if(entry.getKey().compare(Op.LESS_THAN_OR_EQ, f))
-			{
-				return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
-			}
-		}
-
-		// 如果到了最后一个页面，并且最后一个页面都不小于等于field，则递归其左孩子
-		return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-
+		return descend(tid, dirtypages, pid, perm, f, true);
 	}
 
 	/*
@@ -343,8 +443,8 @@ public class BTreeFile implements DbFile {
 
 
 		//拆分---------------------------------------------------------------------------------
-		//获取该叶子page的元组数，用于分两半；取一个元组的数组，用于存放新节点的tuples
-		final int nRight = (page.getNumTuples() + 1) / 2;
+		//按占用空间分两半（定长格式下就是元组数的一半）；取一个元组的数组，用于存放新节点的tuples
+		final int nRight = page.countTuplesToMove((page.getUsedSpace() + 1) / 2, true);
 		Tuple[] rightTuples = new Tuple[nRight];
 		//先用一个tuple数组存放要分出来的元组们
 		for (int i = 0; i < nRight; ++i) {
@@ -362,7 +462,9 @@ public class BTreeFile implements DbFile {
 		//将中间节点复制到父节点---------------------------------------------------------------------------
 		//获取将被复制到父节点的中间entry（此时迭代器it迭代到的刚好是中间值）
 		assert it.hasNext();
-		Field midEntryKey = it.next().getField(keyField);
+		//字符串键只复制能区分两页的最短前缀（后缀截断），其他类型就是左页的最后一个键
+		Field midEntryKey = BTreeInternalPage.separator(it.next().getField(keyField),
+				newPage.iterator().next().getField(keyField));
 
 		// 找到父节点，把新entry插进去
 		BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midEntryKey);
@@ -446,7 +548,7 @@ public class BTreeFile implements DbFile {
 
 		//拆分---------------------------------------------------------------------------------
 		//获取该叶子page的entry数，用于分两半；取一个entry的数组，用于存放新节点的entrys（这里与叶节点不同，叶节点是元组，这里是entry）
-		final int nRight = (page.getNumEntries()) / 2;
+		final int nRight = page.countEntriesToMove(page.getUsedSpace() / 2, true);
 		BTreeEntry[] rightEntries = new BTreeEntry[nRight];
 		//先用一个entry数组存放要分出来的entry们
 		for (int i = 0; i < nRight; ++i) {
@@ -543,6 +645,23 @@ public class BTreeFile implements DbFile {
 
 	}
 
+	/**
+	 * Split a compact internal page that has got over its capacity because one of its keys
+	 * was replaced by a longer one.
+	 *
+	 * @param tid        - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page       - the internal page
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void splitIfOverfull(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeInternalPage page)
+			throws DbException, IOException, TransactionAbortedException {
+		if (page.getUsedSpace() > page.getCapacity())
+			splitInternalPage(tid, dirtypages, page, page.iterator().next().getKey());
+	}
+
 	/**
 	 * Helper function to update the parent pointer of a node.
 	 *
@@ -618,11 +737,26 @@ public class BTreeFile implements DbFile {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if (perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
+				invalidate(pid);
 			}
 			return p;
 		}
 	}
 
+	/**
+	 * Tell readers walking down the tree that a page is about to change. Called once the page
+	 * is locked with read-write permission and before it is modified; waits for the readers
+	 * currently latching the page to move on.
+	 *
+	 * @param pid - the id of the page
+	 * @see #descend(TransactionId, HashMap, BTreePageId, Permissions, Field, boolean)
+	 */
+	private void invalidate(BTreePageId pid) {
+		// 只有根指针页和内部节点是不加锁读取的，叶子页始终受事务锁保护
+		if (pid.pgcateg() == BTreePageId.ROOT_PTR || pid.pgcateg() == BTreePageId.INTERNAL)
+			latches.get(pid.getPageNumber()).invalidate();
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order.
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -637,19 +771,17 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		// find and lock the left-most leaf page corresponding to the key field, starting
+		// from the root pointer page, and split the leaf page if there are no more slots available
+		BTreePageId rootPtrId = createRootPtrPage();
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE, t.getField(keyField));
 
-		if (rootId == null) { // the root has just been created, so set the root pointer to point to it
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		if (leafPage == null) { // the root has just been created, so set the root pointer to point to it
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			if (rootPtr.getRootId() == null)
+				rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+			leafPage = findLeafPage(tid, dirtypages, rootPtr.getRootId(), Permissions.READ_WRITE, t.getField(keyField));
 		}
-
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
 		if (leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
 		}
@@ -732,28 +864,41 @@ public class BTreeFile implements DbFile {
 		if (leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if (rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples() / 2; // ceiling
 		if (leftSiblingId != null) {
 			BTreeLeafPage leftSibling = (BTreeLeafPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some tuples from it
-			if (leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if (shouldMerge(page, leftSibling)) {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			} else {
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		} else if (rightSiblingId != null) {
 			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some tuples from it
-			if (rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if (shouldMerge(page, rightSibling)) {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			} else {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 	}
 
+	/**
+	 * Decide whether a leaf page below minimum occupancy is merged with a sibling rather than
+	 * stealing tuples from it: when the sibling is at minimum occupancy, or for compact pages,
+	 * whose tuples differ in size, when the tuples of both pages fit on one page.
+	 */
+	private boolean shouldMerge(BTreeLeafPage page, BTreeLeafPage sibling) {
+		if (page.isCompact())
+			return page.fitsWith(sibling);
+		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples() / 2; // ceiling
+		return sibling.getNumEmptySlots() >= maxEmptySlots;
+	}
+
 	/**
 	 * Steal tuples from a sibling and copy them to the given page so that both pages are at least
 	 * half full.  Update the parent's entry so that the key matches the key field of the first
@@ -774,13 +919,13 @@ public class BTreeFile implements DbFile {
 		// that the tuples are evenly distributed. Be sure to update
 		// the corresponding parent entry.
 
-		//该节点的元组数目
-		int myNums = page.getNumTuples();
-		//它兄弟节点的元组数目
-		int siblingNums = sibling.getNumTuples();
+		//该节点占用的空间（定长格式下即元组数目）
+		int myNums = page.getUsedSpace();
+		//它兄弟节点占用的空间
+		int siblingNums = sibling.getUsedSpace();
 		assert myNums + 1 < siblingNums;
-		//计算要被移动的元组数量
-		final int moveNums = (myNums + siblingNums) / 2 - myNums;
+		//计算要被移动的元组数量，使两边占用的空间差不多
+		final int moveNums = sibling.countTuplesToMove((myNums + siblingNums) / 2 - myNums, !isRightSibling);
 		assert moveNums >= 1;
 
 		Tuple[] tuples = new Tuple[moveNums];
@@ -800,9 +945,11 @@ public class BTreeFile implements DbFile {
 		}
 		//更新父节点指向这两个叶子的entry
 		if (isRightSibling) {
-			entry.setKey(page.reverseIterator().next().getField(keyField));
+			entry.setKey(BTreeInternalPage.separator(page.reverseIterator().next().getField(keyField),
+					sibling.iterator().next().getField(keyField)));
 		} else {
-			entry.setKey(sibling.reverseIterator().next().getField(keyField));
+			entry.setKey(BTreeInternalPage.separator(sibling.reverseIterator().next().getField(keyField),
+					page.iterator().next().getField(keyField)));
 		}
 		parent.updateEntry(entry);
 
@@ -834,28 +981,42 @@ public class BTreeFile implements DbFile {
 		if (leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if (rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 
-		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries() / 2; // ceiling
 		if (leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if (leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if (shouldMerge(page, leftSibling)) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			} else {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		} else if (rightSiblingId != null) {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if (rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if (shouldMerge(page, rightSibling)) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			} else {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 	}
 
+	/**
+	 * Decide whether an internal page below minimum occupancy is merged with a sibling rather
+	 * than stealing entries from it.
+	 *
+	 * @see #shouldMerge(BTreeLeafPage, BTreeLeafPage)
+	 */
+	private boolean shouldMerge(BTreeInternalPage page, BTreeInternalPage sibling) {
+		if (page.isCompact())
+			return page.fitsWith(sibling);
+		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries() / 2; // ceiling
+		return sibling.getNumEmptySlots() >= maxEmptySlots;
+	}
+
 	/**
 	 * Steal entries from the left sibling and copy them to the given page so that both pages are at least
 	 * half full. Keys can be thought of as rotating through the parent entry, so the original key in the
@@ -883,11 +1044,11 @@ public class BTreeFile implements DbFile {
 		// pointers of all children in the entries that were moved.
 
 		// 自己是右page，兄弟是左page，分别获取自己和兄弟节点的entry数目
-		int rightNums = page.getNumEntries();
-		int leftNums = leftSibling.getNumEntries();
+		int rightNums = page.getUsedSpace();
+		int leftNums = leftSibling.getUsedSpace();
 		assert rightNums + 1 < leftNums;
-		// 计算要移动的entry数目
-		final int moveNums = (rightNums + leftNums) / 2 - rightNums;
+		// 计算要移动的entry数目，使两边占用的空间差不多
+		final int moveNums = leftSibling.countEntriesToMove((rightNums + leftNums) / 2 - rightNums, true);
 		assert moveNums >= 1;
 		//取一个数组来暂存要被移动的entry们
 		BTreeEntry[] entries = new BTreeEntry[moveNums];
@@ -957,11 +1118,11 @@ public class BTreeFile implements DbFile {
 		// pointers of all children in the entries that were moved.
 
 		// 自己是左page，兄弟是右page，分别获取自己和兄弟节点的entry数目
-		int leftNums = page.getNumEntries();
-		int rightNums = rightSibling.getNumEntries();
+		int leftNums = page.getUsedSpace();
+		int rightNums = rightSibling.getUsedSpace();
 		assert leftNums + 1 < rightNums;
-		// 计算要移动的entry数目
-		final int moveNums = (leftNums + rightNums) / 2 - leftNums;
+		// 计算要移动的entry数目，使两边占用的空间差不多
+		final int moveNums = rightSibling.countEntriesToMove((leftNums + rightNums) / 2 - leftNums, false);
 		assert moveNums >= 1;
 		//取一个数组来暂存要被移动的entry们
 		BTreeEntry[] entries = new BTreeEntry[moveNums];
@@ -1163,8 +1324,7 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries() / 2; // ceiling
-		if (parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if (parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged
 			// page will become the new root
@@ -1178,7 +1338,7 @@ public class BTreeFile implements DbFile {
 
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
-		} else if (parent.getNumEmptySlots() > maxEmptySlots) {
+		} else if (parent.isBelowMinOccupancy()) {
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
@@ -1205,8 +1365,7 @@ public class BTreeFile implements DbFile {
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples() / 2; // ceiling
-		if (page.getNumEmptySlots() > maxEmptySlots) {
+		if (page.isBelowMinOccupancy()) {
 			handleMinOccupancyPage(tid, dirtypages, page);
 		}
 
@@ -1227,81 +1386,200 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, createRootPtrPage(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Create the root pointer page and root page if the file is still empty.
+	 *
+	 * @return the id of the root pointer page
+	 * @throws IOException
+	 */
+	private BTreePageId createRootPtrPage() throws IOException {
 		synchronized (this) {
 			if (f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+				BTreeRootPtrPage rootPtr = new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid),
+						BTreeRootPtrPage.createEmptyPageData());
+				rootPtr.setCompact(isCompact());
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				handle.write(rootPtr.getPageData(), 0);
+				handle.write(emptyLeafData, pageOffset(1));
 			}
 		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		return BTreeRootPtrPage.getId(tableid);
 	}
 
 	/**
-	 * Get the page number of the first empty page in this BTreeFile.
-	 * Creates a new page if none of the existing pages are empty.
+	 * Read the id of the first header page. Like descend(), this only latches the root pointer
+	 * page, so that allocating a page does not keep the root pointer page locked until commit.
 	 *
 	 * @param tid        - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @return the page number of the first empty page
+	 * @return the id of the first header page, or null if there is none
 	 * @throws DbException
 	 * @throws IOException
 	 * @throws TransactionAbortedException
 	 */
-	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages)
+	private BTreePageId getHeaderId(TransactionId tid, HashMap<PageId, Page> dirtypages)
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
-
-		if (headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while (headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if (headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
-				} else {
-					headerPage = null;
-				}
+		BTreePageId rootPtrId = createRootPtrPage();
+		if (dirtypages.containsKey(rootPtrId))
+			return ((BTreeRootPtrPage) dirtypages.get(rootPtrId)).getHeaderId();
+		BufferPool bufferPool = Database.getBufferPool();
+		PageLatches.Latch latch = latches.get(rootPtrId.getPageNumber());
+		while (true) {
+			latch.lockShared();
+			try {
+				TransactionId holder = bufferPool.getExclusiveHolder(rootPtrId);
+				if (holder == null || holder.equals(tid))
+					return ((BTreeRootPtrPage) bufferPool.getPageUnlocked(rootPtrId)).getHeaderId();
+			} finally {
+				latch.unlockShared();
 			}
+			// 别的事务正在修改根指针页，等它结束
+			bufferPool.getPage(tid, rootPtrId, Permissions.READ_ONLY);
+			bufferPool.releasePage(tid, rootPtrId);
+		}
+	}
 
-			// if headerPage is not null, it must have an empty slot
-			if (headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
-			}
+	/**
+	 * Get the page number of an empty page in this BTreeFile, and mark it used.
+	 * <p>
+	 * Pages the transaction freed itself are reused first; their header pages are locked by
+	 * the transaction already. Otherwise the page comes from the cache of free pages, which
+	 * takes neither a header page lock nor a scan of the header pages. When the cache runs
+	 * dry it is refilled in a batch from the free slots of the header pages, and if there
+	 * are none a new page is added to the end of the file. Pages from the cache or the end
+	 * of the file go back into the cache if the transaction aborts.
+	 *
+	 * @param tid        - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the page number of the empty page
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 * @see #refillFreePages()
+	 */
+	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		ArrayDeque<Integer> own = freedBy.get(tid);
+		if (own != null && !own.isEmpty()) {
+			int emptyPageNo = own.pollLast();
+			markPageUsed(tid, dirtypages, emptyPageNo);
+			return emptyPageNo;
+		}
+		int emptyPageNo = -1;
+		synchronized (freePages) {
+			if (freePages.isEmpty())
+				refillFreePages();
+			if (!freePages.isEmpty())
+				emptyPageNo = freePages.pollFirst();
 		}
 
-		// at this point if headerId is null, either there are no header pages
-		// or there are no free slots
-		if (headerId == null) {
+		if (emptyPageNo == -1) {
 			synchronized (this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				handle.append(emptyData);
 				emptyPageNo = numPages();
 			}
 		}
-
+		ArrayDeque<Integer> given = allocatedTo.get(tid);
+		if (given == null) {
+			given = new ArrayDeque<Integer>();
+			allocatedTo.put(tid, given);
+		}
+		given.addLast(emptyPageNo);
 		return emptyPageNo;
 	}
 
+	/**
+	 * Called by the BufferPool when a transaction that used this file commits or aborts.
+	 * The pages an aborted transaction took from the cache of free pages or added to the
+	 * end of the file are not used by the tree, but their header slots are still marked
+	 * used, so they go back into the cache.
+	 *
+	 * @param tid    - the transaction id
+	 * @param commit - whether the transaction committed
+	 * @see BufferPool#transactionComplete(TransactionId, boolean)
+	 */
+	void transactionComplete(TransactionId tid, boolean commit) {
+		// 本事务释放的页：提交后在头页上是空闲的，中止后又是已用的，都不必再记着
+		freedBy.remove(tid);
+		ArrayDeque<Integer> given = allocatedTo.remove(tid);
+		if (given != null && !commit) {
+			synchronized (freePages) {
+				freePages.addAll(given);
+			}
+		}
+	}
+
+	/**
+	 * Mark a page freed by this transaction as used again, in the header page the
+	 * transaction marked it free in.
+	 *
+	 * @param tid        - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pageNo     - the page number
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void markPageUsed(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId headerId = getHeaderId(tid, dirtypages);
+		for (int i = pageNo / BTreeHeaderPage.getNumSlots(); i > 0; i--)
+			headerId = ((BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).getNextPageId();
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+		headerPage.markSlotUsed(pageNo % BTreeHeaderPage.getNumSlots(), true);
+	}
+
+	/**
+	 * Fill the empty cache of free pages. Up to ALLOCATION_BATCH free slots of the header
+	 * pages are marked used in a short transaction of their own, which commits before the
+	 * pages are handed out, so the header pages are not kept locked by the transactions
+	 * allocating pages. Header pages other transactions hold locks on are skipped rather
+	 * than waited for, as the caller may hold locks those transactions are waiting for.
+	 * <p>
+	 * The cached pages are marked used on disk, so pages still in the cache when the
+	 * database shuts down or crashes, at most ALLOCATION_BATCH of them, are not reused
+	 * until the file is compacted.
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 * @see #compact(double)
+	 */
+	private void refillFreePages() throws DbException, IOException, TransactionAbortedException {
+		BufferPool bufferPool = Database.getBufferPool();
+		BTreePageId rootPtrId = createRootPtrPage();
+
+		TransactionId sys = new TransactionId();
+		try {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bufferPool.tryGetPage(sys, rootPtrId, Permissions.READ_ONLY);
+			BTreePageId headerId = rootPtr == null ? null : rootPtr.getHeaderId();
+			int headerPageCount = 0;
+			while (headerId != null && freePages.size() < ALLOCATION_BATCH) {
+				BTreeHeaderPage headerPage = (BTreeHeaderPage) bufferPool.tryGetPage(sys, headerId, Permissions.READ_WRITE);
+				if (headerPage == null)
+					break;
+				int slot = headerPage.getEmptySlot(0);
+				while (slot != -1 && freePages.size() < ALLOCATION_BATCH) {
+					headerPage.markSlotUsed(slot, true);
+					headerPage.markDirty(true, sys);
+					freePages.addLast(headerPageCount * BTreeHeaderPage.getNumSlots() + slot);
+					slot = headerPage.getEmptySlot(slot + 1);
+				}
+				headerId = headerPage.getNextPageId();
+				headerPageCount++;
+			}
+		} finally {
+			bufferPool.transactionComplete(sys);
+		}
+	}
+
 	/**
 	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
 	 * and creates a new page if none are available.  It wipes the page on disk and in the cache and
@@ -1324,10 +1602,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		handle.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 
 		// make sure the page is not in the buffer pool	or in the local cache
 		Database.getBufferPool().discardPage(newPageId);
@@ -1339,6 +1614,8 @@ public class BTreeFile implements DbFile {
 	/**
 	 * Mark a page in this BTreeFile as empty. Find the corresponding header page
 	 * (create it if needed), and mark the corresponding slot in the header page as empty.
+	 * Until the transaction commits only it reuses the page; other transactions pick the
+	 * page up the next time the cache of free pages is refilled.
 	 *
 	 * @param tid         - the transaction id
 	 * @param dirtypages  - the list of dirty pages which should be updated with all new dirty pages
@@ -1391,7 +1668,7 @@ public class BTreeFile implements DbFile {
 
 		// iterate through all the existing header pages to find the one containing the slot
 		// corresponding to emptyPageNo
-		while (headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while (headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() <= emptyPageNo) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
 			prevId = headerId;
 			headerId = headerPage.getNextPageId();
@@ -1401,7 +1678,7 @@ public class BTreeFile implements DbFile {
 		// at this point headerId should either be null or set with
 		// the headerPage containing the slot corresponding to emptyPageNo.
 		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while ((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while ((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() <= emptyPageNo) {
 			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
 
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
@@ -1419,6 +1696,181 @@ public class BTreeFile implements DbFile {
 		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
 		headerPage.markSlotUsed(emptySlot, false);
+
+		// 提交之前只有本事务可以重用这一页
+		ArrayDeque<Integer> own = freedBy.get(tid);
+		if (own == null) {
+			own = new ArrayDeque<Integer>();
+			freedBy.put(tid, own);
+		}
+		own.addLast(emptyPageNo);
+	}
+
+	/**
+	 * Compact the tree while the rest of the database stays in use. After many deletes the
+	 * leaves are left between half and completely full, and the pages freed by merges stay
+	 * in the file as free pages. Compaction packs the tuples into leaves filled to the given
+	 * fill factor, gives the leaves consecutive page numbers in key order, so that a range
+	 * scan reads the file sequentially, and cuts the file after the last page of the tree.
+	 * <p>
+	 * The compaction runs as a transaction of its own. It locks the root pointer page and
+	 * then every page of the tree with read-write permission, so it waits for the
+	 * transactions using the tree to finish, and the ones that start using it meanwhile wait
+	 * for the compaction. The compacted tree is bulk loaded into a temporary file next to
+	 * this one. Like BTreeBulkLoader, the pages are written straight to the file rather than
+	 * through the buffer pool and the log, so the updates of the tree logged before do not
+	 * apply to them: once the temporary file is complete and forced to disk, a checkpoint
+	 * drops the table from the dirty page table of the log, and the temporary file is then
+	 * renamed over this one. A crash at any point leaves either the old or the compacted
+	 * file, and recovery redoes nothing of the tree that was logged before the compaction.
+	 *
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @return the number of pages the file shrank by
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException if the compaction was chosen to break a deadlock;
+	 * the tree is left as it was
+	 * @see BTreeBulkLoader
+	 */
+	public int compact(double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		if (fillFactor < 0.5 || fillFactor > 1.0)
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		BufferPool bufferPool = Database.getBufferPool();
+		TransactionId tid = new TransactionId();
+		File tmp = null;
+		BTreeFile copy = null;
+		boolean commit = false;
+		try {
+			// 先锁根指针页，之后新的查找都要等压缩结束
+			BTreePageId rootPtrId = createRootPtrPage();
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bufferPool.getPage(tid, rootPtrId, Permissions.READ_WRITE);
+			invalidate(rootPtrId);
+			if (rootPtr.getRootId() != null)
+				lockSubtree(tid, rootPtr.getRootId());
+			BTreePageId headerId = rootPtr.getHeaderId();
+			while (headerId != null) {
+				BTreeHeaderPage headerPage = (BTreeHeaderPage) bufferPool.getPage(tid, headerId, Permissions.READ_WRITE);
+				headerId = headerPage.getNextPageId();
+			}
+
+			tmp = File.createTempFile(f.getName(), ".compact", f.getAbsoluteFile().getParentFile());
+			copy = new BTreeFile(tmp, keyField, td, tableid);
+			// the pages of the copy are read in the format of this file
+			copy.compact = isCompact();
+			if (new BTreeBulkLoader(copy, fillFactor).load(new Tuples(iterator(tid))) == 0) {
+				// 树是空的：只留下根指针页和一个空的叶子根节点
+				copy.writePage(new BTreeRootPtrPage(rootPtrId,
+						BTreeFileEncoder.convertToRootPtrPage(1, BTreePageId.LEAF, 0)));
+				copy.handle.write(BTreeLeafPage.createEmptyPageData(), pageOffset(1));
+			}
+
+			copy.handle.force();
+			copy.close();
+
+			// 原文件要包含所有已提交的更新，检查点之后恢复不再重做这棵树之前的日志
+			bufferPool.flushPages(tableid);
+			handle.force();
+			Database.getLogFile().logCheckpoint(tableid);
+
+			// 新树完整写好之后才替换原文件，从这里开始不再回滚
+			commit = true;
+			int oldPages = numPages();
+			synchronized (this) {
+				handle.close();
+				Files.move(tmp.toPath(), f.toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				FileHandle.forceDirectory(f.getAbsoluteFile().getParentFile());
+			}
+			// 缓冲池里的页和空闲页缓存都是旧文件的，全部丢掉
+			bufferPool.discardPages(tableid);
+			synchronized (freePages) {
+				freePages.clear();
+			}
+			freedBy.clear();
+			allocatedTo.clear();
+			return oldPages - numPages();
+		} finally {
+			if (copy != null)
+				copy.close();
+			if (tmp != null)
+				tmp.delete();
+			bufferPool.transactionComplete(tid, commit);
+		}
+	}
+
+	/**
+	 * Lock a page and all the pages below it with read-write permission, from the top down.
+	 *
+	 * @param tid - the transaction id
+	 * @param pid - the page to start from
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 * @see #compact(double)
+	 */
+	private void lockSubtree(TransactionId tid, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		Page page = Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+		invalidate(pid);
+		if (pid.pgcateg() != BTreePageId.INTERNAL)
+			return;
+		// 先记下所有孩子，锁孩子的时候这一页可能被换出缓冲池
+		ArrayList<BTreePageId> children = new ArrayList<BTreePageId>();
+		Iterator<BTreeEntry> it = ((BTreeInternalPage) page).iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			children.add(e.getLeftChild());
+		}
+		if (e != null)
+			children.add(e.getRightChild());
+		for (BTreePageId child : children)
+			lockSubtree(tid, child);
+	}
+
+	/**
+	 * The tuples of a scan of the tree as an OpIterator, to feed to BTreeBulkLoader
+	 *
+	 * @see #compact(double)
+	 */
+	private class Tuples extends Operator {
+
+		private static final long serialVersionUID = 1L;
+
+		private final DbFileIterator it;
+
+		Tuples(DbFileIterator it) {
+			this.it = it;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			it.open();
+			super.open();
+		}
+
+		public void close() {
+			super.close();
+			it.close();
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			it.rewind();
+		}
+
+		protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+			return it.hasNext() ? it.next() : null;
+		}
+
+		public OpIterator[] getChildren() {
+			return new OpIterator[0];
+		}
+
+		public void setChildren(OpIterator[] children) {
+		}
+
+		public TupleDesc getTupleDesc() {
+			return td;
+		}
 	}
 
 	/**
@@ -1436,6 +1888,22 @@ public class BTreeFile implements DbFile {
 	}
 
 
+	/**
+	 * Get the tuples whose key equals any of a batch of keys, on behalf of the specified
+	 * transaction. The keys are answered in one left-to-right pass over the leaves: the
+	 * current leaf is read on as long as the next key can be on it, and the search only
+	 * walks down from the root again to skip ahead to a leaf further right. This method
+	 * will acquire a read lock on the leaf pages it reads, and may block until the lock
+	 * can be acquired.
+	 *
+	 * @param tid  - the transaction id
+	 * @param keys - the keys to look up, in ascending order. Repeated keys are looked up once
+	 * @return an iterator for the matching tuples, in key order
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, List<Field> keys) {
+		return new BTreeBatchSearchIterator(this, tid, keys);
+	}
+
 	public DbFileIterator indexReverseIterator(TransactionId tid, IndexPredicate ipred) {
 		return new BTreeReverseSearchIterator(this, tid, ipred);
 	}
@@ -1465,6 +1933,7 @@ public class BTreeFile implements DbFile {
 
 		Iterator<Tuple> it = null;
 		BTreeLeafPage curp = null;
+		BTreeReadAhead readAhead = null;
 
 		TransactionId tid;
 		BTreeFile f;
@@ -1484,11 +1953,12 @@ public class BTreeFile implements DbFile {
 		 * Open this iterator by getting an iterator on the first leaf page
 		 */
 		public void open() throws DbException, TransactionAbortedException {
-			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-					tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-			BTreePageId root = rootPtr.getRootId();
+			// walk down from the root pointer page, which is latched rather than locked
+			BTreePageId root = BTreeRootPtrPage.getId(f.getId());
 			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 			it = curp.iterator();
+			readAhead = new BTreeReadAhead(true);
+			readAhead.reached(curp);
 		}
 
 		/**
@@ -1509,6 +1979,7 @@ public class BTreeFile implements DbFile {
 				} else {
 					curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 							nextp, Permissions.READ_ONLY);
+					readAhead.reached(curp);
 					it = curp.iterator();
 					if (!it.hasNext())
 						it = null;
@@ -1535,6 +2006,9 @@ public class BTreeFile implements DbFile {
 			super.close();
 			it = null;
 			curp = null;
+			if (readAhead != null)
+				readAhead.close();
+			readAhead = null;
 		}
 	}
 
@@ -1546,6 +2020,8 @@ public class BTreeFile implements DbFile {
 
 		Iterator<Tuple> it = null;
 		BTreeLeafPage curp = null;
+		// null for an equality search, which rarely goes past one leaf
+		BTreeReadAhead readAhead = null;
 
 		TransactionId tid;
 		BTreeFile f;
@@ -1569,16 +2045,28 @@ public class BTreeFile implements DbFile {
 		 * for the given predicate operation
 		 */
 		public void open() throws DbException, TransactionAbortedException {
-			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-					tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-			BTreePageId root = rootPtr.getRootId();
+			// walk down from the root pointer page, which is latched rather than locked
+			BTreePageId root = BTreeRootPtrPage.getId(f.getId());
 			if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
 					|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
 				curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
 			} else {
 				curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 			}
-			it = curp.iterator();
+			// skip the tuples before the key on the first page by binary search
+			if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN_OR_EQ)
+				it = curp.iterator(ipred.getField(), true);
+			else if (ipred.getOp() == Op.GREATER_THAN)
+				it = curp.iterator(ipred.getField(), false);
+			else
+				it = curp.iterator();
+			if (ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
+				readAhead = new BTreeReadAhead(true, f.keyField(), ipred);
+				readAhead.reached(curp);
+			} else if (ipred.getOp() != Op.EQUALS) {
+				readAhead = new BTreeReadAhead(true);
+				readAhead.reached(curp);
+			}
 		}
 
 		/**
@@ -1615,6 +2103,8 @@ public class BTreeFile implements DbFile {
 				} else {
 					curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 							nextp, Permissions.READ_ONLY);
+					if (readAhead != null)
+						readAhead.reached(curp);
 					it = curp.iterator();
 				}
 			}
@@ -1636,6 +2126,140 @@ public class BTreeFile implements DbFile {
 		public void close() {
 			super.close();
 			it = null;
+			if (readAhead != null)
+				readAhead.close();
+			readAhead = null;
+		}
+	}
+
+
+	/**
+	 * Helper class that implements the DbFileIterator for looking up a sorted batch of
+	 * keys on a B+ Tree File
+	 */
+	class BTreeBatchSearchIterator extends AbstractDbFileIterator {
+
+		Iterator<Tuple> it = null;
+		BTreeLeafPage curp = null;
+
+		TransactionId tid;
+		BTreeFile f;
+		List<Field> keys;
+		// the key looked up next, and the largest key read so far
+		int probe;
+		Field lastKey;
+
+		/**
+		 * Constructor for this iterator
+		 *
+		 * @param f    - the BTreeFile containing the tuples
+		 * @param tid  - the transaction id
+		 * @param keys - the keys to look up, in ascending order
+		 */
+		public BTreeBatchSearchIterator(BTreeFile f, TransactionId tid, List<Field> keys) {
+			this.f = f;
+			this.tid = tid;
+			this.keys = keys;
+		}
+
+		/**
+		 * Open this iterator by getting an iterator on the leaf page of the first key
+		 *
+		 * @throws DbException if the keys are not in ascending order
+		 */
+		public void open() throws DbException, TransactionAbortedException {
+			for (int i = 1; i < keys.size(); i++) {
+				if (keys.get(i).compare(Op.LESS_THAN, keys.get(i - 1)))
+					throw new DbException("batch index lookup keys must be in ascending order");
+			}
+			probe = 0;
+			lastKey = null;
+			curp = null;
+			it = null;
+			if (!keys.isEmpty())
+				seek(keys.get(0));
+		}
+
+		/**
+		 * Walk down from the root to the leaf page of the given key. The page found is
+		 * the current one when the key falls between the keys on it and those on the
+		 * next page; the search carries on with the next page then.
+		 */
+		private void seek(Field key) throws DbException, TransactionAbortedException {
+			// walk down from the root pointer page, which is latched rather than locked
+			BTreePageId root = BTreeRootPtrPage.getId(f.getId());
+			BTreeLeafPage leaf = f.findLeafPage(tid, root, Permissions.READ_ONLY, key);
+			if (curp != null && leaf.getId().equals(curp.getId())) {
+				moveRight();
+			} else {
+				curp = leaf;
+				it = curp.iterator(key, true);
+			}
+		}
+
+		/**
+		 * Move on to the right sibling of the current page, if there is one
+		 */
+		private void moveRight() throws DbException, TransactionAbortedException {
+			BTreePageId nextp = curp.getRightSiblingId();
+			if (nextp == null) {
+				it = null;
+			} else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						nextp, Permissions.READ_ONLY);
+				it = curp.iterator();
+			}
+		}
+
+		/**
+		 * Read the next tuple matching one of the keys, looking up the keys in order.
+		 * Tuples on the current page are skipped up to the next key; once the page is
+		 * read, the search carries on with the next page if the next key can be on it
+		 * (a run of tuples with the same key may span pages) and skips ahead from the
+		 * root otherwise.
+		 *
+		 * @return the next tuple matching one of the keys, or null if none exists
+		 */
+		@Override
+		protected Tuple readNext() throws TransactionAbortedException, DbException,
+				NoSuchElementException {
+			while (it != null && probe < keys.size()) {
+				while (it.hasNext()) {
+					Tuple t = it.next();
+					lastKey = t.getField(f.keyField());
+					// the keys smaller than this one have no more matches
+					while (probe < keys.size() && lastKey.compare(Op.GREATER_THAN, keys.get(probe)))
+						probe++;
+					if (probe == keys.size())
+						return null;
+					if (lastKey.compare(Op.EQUALS, keys.get(probe)))
+						return t;
+				}
+
+				if (lastKey == null || keys.get(probe).compare(Op.LESS_THAN_OR_EQ, lastKey))
+					moveRight();
+				else
+					seek(keys.get(probe));
+			}
+
+			return null;
+		}
+
+		/**
+		 * rewind this iterator back to the first key
+		 */
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		/**
+		 * close the iterator
+		 */
+		public void close() {
+			super.close();
+			it = null;
+			curp = null;
 		}
 	}
 
@@ -1652,6 +2276,7 @@ public class BTreeFile implements DbFile {
 
 		Iterator<Tuple> it = null;
 		BTreeLeafPage curp = null;
+		BTreeReadAhead readAhead = null;
 		TransactionId tid;
 		BTreeFile f;
 
@@ -1670,11 +2295,12 @@ public class BTreeFile implements DbFile {
 		 * Open this iterator by getting an iterator on the first leaf page
 		 */
 		public void open() throws DbException, TransactionAbortedException {
-			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-					tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-			BTreePageId root = rootPtr.getRootId();
+			// walk down from the root pointer page, which is latched rather than locked
+			BTreePageId root = BTreeRootPtrPage.getId(f.getId());
 			curp = f.ReversefindLeafPage(tid, root, Permissions.READ_ONLY, null);
 			it = curp.reverseIterator();
+			readAhead = new BTreeReadAhead(false);
+			readAhead.reached(curp);
 		}
 
 		/**
@@ -1696,6 +2322,7 @@ public class BTreeFile implements DbFile {
 				} else {
 					curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 							nextp, Permissions.READ_ONLY);
+					readAhead.reached(curp);
 					it = curp.reverseIterator();
 					if (!it.hasNext())
 						it = null;
@@ -1722,6 +2349,9 @@ public class BTreeFile implements DbFile {
 			super.close();
 			it = null;
 			curp = null;
+			if (readAhead != null)
+				readAhead.close();
+			readAhead = null;
 		}
 	}
 }
@@ -1734,6 +2364,8 @@ public class BTreeFile implements DbFile {
 class BTreeReverseSearchIterator extends AbstractDbFileIterator {
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// null for an equality search, which rarely goes past one leaf
+	BTreeReadAhead readAhead = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1757,17 +2389,28 @@ class BTreeReverseSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-
-		BTreePageId root = rootPtr.getRootId();
+		// walk down from the root pointer page, which is latched rather than locked
+		BTreePageId root = BTreeRootPtrPage.getId(f.getId());
 		if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN
 				|| ipred.getOp() == Op.LESS_THAN_OR_EQ) {
 			curp = f.ReversefindLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
 		} else {
 			curp = f.ReversefindLeafPage(tid, root, Permissions.READ_ONLY, null);
 		}
-		it = curp.reverseIterator();
+		// skip the tuples after the key on the first page by binary search
+		if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN_OR_EQ)
+			it = curp.reverseIterator(ipred.getField(), true);
+		else if (ipred.getOp() == Op.LESS_THAN)
+			it = curp.reverseIterator(ipred.getField(), false);
+		else
+			it = curp.reverseIterator();
+		if (ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+			readAhead = new BTreeReadAhead(false, f.keyField(), ipred);
+			readAhead.reached(curp);
+		} else if (ipred.getOp() != Op.EQUALS) {
+			readAhead = new BTreeReadAhead(false);
+			readAhead.reached(curp);
+		}
 	}
 
 
@@ -1807,6 +2450,8 @@ class BTreeReverseSearchIterator extends AbstractDbFileIterator {
 			} else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				if (readAhead != null)
+					readAhead.reached(curp);
 				it = curp.reverseIterator();
 			}
 		}
@@ -1828,5 +2473,8 @@ class BTreeReverseSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		if (readAhead != null)
+			readAhead.close();
+		readAhead = null;
 	}
 }
@@ -493,7 +493,9 @@ public class BTreeFileEncoder {
 	}
 
 	/**
-	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage.
+	 * If the key field is a string the page is written in the compact format, and
+	 * all of the tuples must fit on it.
 	 * 
 	 * @param tuples - the set of tuples
 	 * @param npagebytes - number of bytes per page
@@ -506,6 +508,26 @@ public class BTreeFileEncoder {
 	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
 			int numFields, Type[] typeAr, int keyField)
 					throws IOException {
+		return convertToLeafPage(tuples, npagebytes, numFields, typeAr, keyField,
+				typeAr[keyField] == Type.STRING_TYPE);
+	}
+
+	/**
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
+	 * of a tree in the given format.
+	 * 
+	 * @param compact - whether to write the page in the compact format, which
+	 *                  needs a string key field
+	 * @see #convertToLeafPage(ArrayList, int, int, Type[], int)
+	 */
+	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
+			int numFields, Type[] typeAr, int keyField, boolean compact)
+					throws IOException {
+		if (compact) {
+			Collections.sort(tuples, new TupleComparator(keyField));
+			return BTreeLeafPage.createCompactPageData(tuples, new TupleDesc(typeAr), keyField);
+		}
+
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
@@ -612,7 +634,9 @@ public class BTreeFileEncoder {
 	}
 
 	/**
-	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage.
+	 * If the key is a string the page is written in the compact format, and all of
+	 * the entries must fit on it.
 	 * 
 	 * @param entries - the set of entries
 	 * @param npagebytes - number of bytes per page
@@ -624,6 +648,26 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
+		return convertToInternalPage(entries, npagebytes, keyType, childPageCategory,
+				keyType == Type.STRING_TYPE);
+	}
+
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage
+	 * of a tree in the given format.
+	 * 
+	 * @param compact - whether to write the page in the compact format, which
+	 *                  needs a string key
+	 * @see #convertToInternalPage(ArrayList, int, Type, int)
+	 */
+	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+			Type keyType, int childPageCategory, boolean compact)
+					throws IOException {
+		if (compact) {
+			Collections.sort(entries, new EntryComparator());
+			return BTreeInternalPage.createCompactPageData(entries, childPageCategory);
+		}
+
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
@@ -288,13 +288,16 @@ public class BTreeHeaderPage implements Page {
 	}
 
 	/**
-	 * get the index of the first empty slot
-	 * @return the index of the first empty slot or -1 if none exists
+	 * get the index of the first empty slot at or after a given slot, skipping the bytes of
+	 * the header whose slots are all used
+	 *
+	 * @param from - the slot to start from
+	 * @return the index of the empty slot, or -1 if there is none
 	 */
-	public int getEmptySlot() {
-		for (int i=0; i<header.length; i++) {
-			if((int) header[i] != 0xFF) {
-				for(int j = 0; j < 8; j++) {
+	public int getEmptySlot(int from) {
+		for (int i = from / 8; i < header.length; i++) {
+			if (header[i] != (byte) 0xFF) {
+				for (int j = (i == from / 8 ? from % 8 : 0); j < 8; j++) {
 					if(!isSlotUsed(i*8 + j)) {
 						return i*8 + j;
 					}
@@ -303,4 +306,12 @@ public class BTreeHeaderPage implements Page {
 		}
 		return -1;
 	}
+
+	/**
+	 * get the index of the first empty slot
+	 * @return the index of the first empty slot or -1 if none exists
+	 */
+	public int getEmptySlot() {
+		return getEmptySlot(0);
+	}
 }
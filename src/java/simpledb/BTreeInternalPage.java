@@ -37,7 +37,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			assert (getUsedSpace() >= getMinSpace());
 		}
 	}
 	
@@ -57,6 +57,12 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * In the compact format (see {@link BTreePage#isCompact()}) the used slots
+	 * are written one after the other instead, each as its child pointer
+	 * followed by its prefix-compressed key (except for slot 0, which has no
+	 * key), and the number of slots is computed as if every key was the empty
+	 * string.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -87,6 +93,13 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if (isCompact()) {
+			readCompactEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -98,7 +111,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -115,7 +127,12 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		return getMaxEntries(td.getFieldType(keyField), isCompact());
+	}
+
+	private static int getMaxEntries(Type keyType, boolean compact) {
+		// a compact page could at most hold entries with empty keys
+		int keySize = compact ? compactKeySize("", "") : keyType.getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -129,13 +146,154 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		return getHeaderSize(getMaxEntries() + 1);
+	}
+
+	private static int getHeaderSize(int slotsPerPage) {
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * The size of the largest entry in the compact format
+	 */
+	private int getMaxEntrySize() {
+		return INDEX_SIZE + compactKeySize("", "") + Type.STRING_LEN;
+	}
+
+	public int getCapacity() {
+		if (!isCompact())
+			return getMaxEntries();
+		// the parent pointer, child page category, header and the child pointer of slot 0
+		// are always there
+		return BufferPool.getPageSize() - (INDEX_SIZE + 1 + getHeaderSize() + INDEX_SIZE);
+	}
+
+	protected int getNumUsed() {
+		return getNumEntries();
+	}
+
+	protected int computeUsedSpace() {
+		int used = 0;
+		Field prev = null;
+		for (int i=1; i<numSlots; i++) {
+			if (isSlotUsed(i)) {
+				used += getEntrySpace(keys[i], prev);
+				prev = keys[i];
+			}
+		}
+		return used;
+	}
+
+	public int getMinSpace() {
+		if (!isCompact())
+			return getMaxEntries() / 2;
+		return getCapacity() / 2 - 2 * getMaxEntrySize();
+	}
+
+	/**
+	 * Returns the space an entry with the given key takes on this page when it follows
+	 * the entry with key prev
+	 *
+	 * @param prev - the key before it, or null if it is the first entry on the page
+	 */
+	int getEntrySpace(Field key, Field prev) {
+		if (!isCompact())
+			return 1;
+		String prevKey = prev == null ? "" : ((StringField) prev).getValue();
+		return INDEX_SIZE + compactKeySize(prevKey, ((StringField) key).getValue());
+	}
+
+	/**
+	 * Returns the space an entry with the given key adds to this page when it goes
+	 * between the entries with keys prev and next, which shares a different prefix with
+	 * it than with prev
+	 *
+	 * @param prev - the key before it, or null if there is none
+	 * @param next - the key after it, or null if there is none
+	 */
+	private int getEntrySpace(Field key, Field prev, Field next) {
+		int space = getEntrySpace(key, prev);
+		if (next != null)
+			space += getEntrySpace(next, key) - getEntrySpace(next, prev);
+		return space;
+	}
+
+	/**
+	 * Returns the key of the last used slot before slot i, or null if there is none
+	 */
+	private Field keyBefore(int i) {
+		for (int j = i - 1; j > 0; j--)
+			if (isSlotUsed(j))
+				return keys[j];
+		return null;
+	}
+
+	/**
+	 * Returns the key of the first used slot after slot i, or null if there is none
+	 */
+	private Field keyAfter(int i) {
+		for (int j = i + 1; j < numSlots; j++)
+			if (isSlotUsed(j))
+				return keys[j];
+		return null;
+	}
+
+	/**
+	 * Returns how many entries have to be taken from one end of this page for them to
+	 * use at least the given space on it
+	 *
+	 * @param space - the space to take
+	 * @param fromRight - whether to take the entries with the largest keys rather than
+	 *                    the smallest
+	 */
+	int countEntriesToMove(int space, boolean fromRight) {
+		ArrayList<Field> inOrder = new ArrayList<Field>();
+		for (int i=1; i<numSlots; i++)
+			if (isSlotUsed(i))
+				inOrder.add(keys[i]);
+		int moved = 0;
+		int n = 0;
+		while (moved < space && n < inOrder.size()) {
+			int i = fromRight ? inOrder.size() - 1 - n : n;
+			moved += getEntrySpace(inOrder.get(i), i > 0 ? inOrder.get(i - 1) : null);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns true if the entries of this page and of a sibling, and the key separating
+	 * them in the parent, fit on one page.
+	 */
+	boolean fitsWith(BTreeInternalPage sibling) {
+		// in the compact format leave room for inserting the last entry as if it
+		// shared no prefix with the one before it
+		int extra = isCompact() ? 2 * getMaxEntrySize() : 1;
+		return getUsedSpace() + sibling.getUsedSpace() + extra <= getCapacity();
+	}
+
+	/**
+	 * Returns the shortest key that can separate a page whose largest key is leftMax
+	 * from a page whose smallest key is rightMin, i.e. a key k with
+	 * leftMax &lt;= k &lt;= rightMin. For strings this is the shortest prefix of rightMin
+	 * that is not smaller than leftMax (suffix truncation), which keeps the keys in
+	 * compact internal pages short; for other types it is leftMax.
+	 */
+	static Field separator(Field leftMax, Field rightMin) {
+		if (leftMax.getType() != Type.STRING_TYPE)
+			return leftMax;
+		String left = ((StringField) leftMax).getValue();
+		String right = ((StringField) rightMin).getValue();
+		int len = Math.min(sharedPrefix(left, right) + 1, right.length());
+		String key = right.substring(0, len);
+		if (key.compareTo(left) < 0)
+			return leftMax;
+		return new StringField(key, Type.STRING_LEN);
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -190,6 +348,62 @@ public class BTreeInternalPage extends BTreePage {
 		return f;
 	}
 
+	/**
+	 * Read the entries of a compact page, which follow each other in slot order.
+	 * @throws IOException if the data is not a compact page
+	 */
+	private void readCompactEntries(DataInputStream dis) throws IOException {
+		String prevKey = "";
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				children[i] = -1;
+				continue;
+			}
+			children[i] = dis.readInt();
+			if (i > 0) {
+				prevKey = readCompactKey(dis, prevKey);
+				keys[i] = new StringField(prevKey, Type.STRING_LEN);
+			}
+		}
+	}
+
+	/**
+	 * Generate the data of a compact internal page holding the given entries in its
+	 * first slots, with no parent pointer. Used by BTreeFileEncoder.
+	 *
+	 * @param entries - the entries, sorted on their keys, which must be strings
+	 * @param childPageCategory - the category of the child pages (either internal or leaf)
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException if the entries do not fit on one page
+	 */
+	static byte[] createCompactPageData(List<BTreeEntry> entries, int childPageCategory) throws IOException {
+		int slots = getMaxEntries(Type.STRING_TYPE, true) + 1;
+		if (entries.size() >= slots)
+			throw new IOException("too many entries for one page");
+		byte[] header = new byte[getHeaderSize(slots)];
+		for (int i=0; i<entries.size() + 1; i++)
+			header[i / 8] |= 1 << (i % 8);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) childPageCategory);
+		dos.write(header);
+		dos.writeInt(entries.get(0).getLeftChild().getPageNumber());
+		String prevKey = "";
+		for (BTreeEntry e : entries) {
+			String key = ((StringField) e.getKey()).getValue();
+			dos.writeInt(e.getRightChild().getPageNumber());
+			writeCompactKey(dos, prevKey, key);
+			prevKey = key;
+		}
+		if (dos.size() > BufferPool.getPageSize())
+			throw new IOException("entries do not fit on one page");
+		dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Read child pointers from the source file.
 	 */
@@ -262,10 +476,31 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
+		if (isCompact()) {
+			// create the entries, one after the other
+			String prevKey = "";
+			for (int i=0; i<numSlots; i++) {
+				if (!isSlotUsed(i))
+					continue;
+				try {
+					dos.writeInt(children[i]);
+					if (i > 0) {
+						String key = ((StringField) keys[i]).getValue();
+						writeCompactKey(dos, prevKey, key);
+						prevKey = key;
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if (dos.size() > BufferPool.getPageSize())
+				throw new IllegalStateException("entries overflow compact internal page " + pid.getPageNumber());
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
-		for (int i=1; i<keys.length; i++) {
+		if (!isCompact()) for (int i=1; i<keys.length; i++) {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
@@ -290,7 +525,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// create the child pointers
-		for (int i=0; i<children.length; i++) {
+		if (!isCompact()) for (int i=0; i<children.length; i++) {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
@@ -315,8 +550,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+		int zerolen = BufferPool.getPageSize() - dos.size();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -352,6 +586,10 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to delete entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null entry.");
+		if (isCompact()) {
+			int slot = rid.getTupleNumber();
+			addUsedSpace(-getEntrySpace(keys[slot], keyBefore(slot), keyAfter(slot)));
+		}
 		if(deleteRightChild) {
 			markSlotUsed(rid.getTupleNumber(), false);
 		}
@@ -395,7 +633,8 @@ public class BTreeInternalPage extends BTreePage {
 	
 	/**
 	 * Update the key and/or child pointers of an entry at the location specified by its 
-	 * record id.
+	 * record id. A longer key can leave a compact page over its capacity; the caller
+	 * has to split the page before it is written then.
 	 * @param e - the entry with updated key and/or child pointers
 	 * @throws DbException if this entry is not on this page, entry slot is
 	 *         already empty, or updating this key would put the entry out of 
@@ -429,8 +668,15 @@ public class BTreeInternalPage extends BTreePage {
 				break;
 			}	
 		}
-		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
-		keys[rid.getTupleNumber()] = e.getKey();
+		int slot = rid.getTupleNumber();
+		if (isCompact()) {
+			Field prev = keyBefore(slot);
+			Field next = keyAfter(slot);
+			addUsedSpace(getEntrySpace(e.getKey(), prev, next) - getEntrySpace(keys[slot], prev, next));
+		}
+		children[slot] = e.getRightChild().getPageNumber();
+		keys[slot] = e.getKey();
+		slotIndex = null;
 	}
 
 	/**
@@ -456,13 +702,19 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		// a compact page must have room for the entry even if it shares no prefix
+		if (isCompact() && getUsedSpace() + getEntrySpace(e.getKey(), null) > getCapacity())
+			throw new DbException("called insertEntry on page with no room for the entry.");
+
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
+			if (isCompact())
+				addUsedSpace(getEntrySpace(e.getKey(), null));
 			e.setRecordId(new RecordId(pid, 1));
 			return;
 		}
@@ -542,6 +794,8 @@ public class BTreeInternalPage extends BTreePage {
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
 		keys[goodSlot] = e.getKey();
 		children[goodSlot] = e.getRightChild().getPageNumber();
+		if (isCompact())
+			addUsedSpace(getEntrySpace(e.getKey(), keyBefore(goodSlot), keyAfter(goodSlot)));
 		e.setRecordId(new RecordId(pid, goodSlot));
 	}
 
@@ -562,21 +816,25 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
-	}
-	
-	/**
-	 * Returns the number of empty slots on this page.
-	 */
-	public int getNumEmptySlots() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
 		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
+			if(isSlotUsed(i))
 				cnt++;
 		return cnt;
 	}
+	
+	/**
+	 * Returns the number of empty slots on this page. In the compact format, only as
+	 * many slots count as empty as entries of the largest possible size still fit.
+	 */
+	public int getNumEmptySlots() {
+		int cnt = numSlots - 1 - getNumEntries();
+		if (isCompact())
+			cnt = Math.min(cnt, (getCapacity() - getUsedSpace()) / getMaxEntrySize());
+		return cnt;
+	}
 
 	/**
 	 * Returns true if associated slot on this page is filled.
@@ -595,6 +853,7 @@ public class BTreeInternalPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
+		slotIndex = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
@@ -617,6 +876,54 @@ public class BTreeInternalPage extends BTreePage {
 		return new BTreeInternalPageReverseIterator(this);
 	}
 
+	/**
+	 * Binary search for the child page to follow when looking for the key f. This is
+	 * the left child of the first entry whose key is greater than or equal to f, or
+	 * the right child of the last entry if there is none. In reverse it is the right
+	 * child of the last entry whose key is less than or equal to f, or the left child
+	 * of the first entry if there is none.
+	 * @param f - the key to look for, or null for the left-most (right-most in reverse) child
+	 * @param reverse - whether to search for the right-most child possibly holding f
+	 * @return the id of the child page, or null if this page has no entries
+	 */
+	BTreePageId findChildId(Field f, boolean reverse) {
+		SlotIndex index = getSlotIndex();
+		if (index.size() < 2)
+			return null;
+		int pos;
+		if (f == null)
+			pos = reverse ? index.size() : 1;
+		else
+			pos = index.search(f, reverse, 1);
+		return new BTreePageId(pid.getTableId(), children[index.slots[pos - 1]], childCategory);
+	}
+
+	/**
+	 * Returns the index of the used slots on this page, including slot 0 which only
+	 * holds a child pointer, building it if the page changed since it was last built
+	 */
+	private SlotIndex getSlotIndex() {
+		SlotIndex index = slotIndex;
+		if (index == null) {
+			int n = 0;
+			for (int i=0; i<numSlots; i++)
+				if (isSlotUsed(i))
+					n++;
+			int[] slots = new int[n];
+			Field[] slotKeys = new Field[n];
+			for (int i=0, j=0; i<numSlots; i++) {
+				if (isSlotUsed(i)) {
+					slots[j] = i;
+					slotKeys[j] = i > 0 ? keys[i] : null;
+					j++;
+				}
+			}
+			index = new SlotIndex(slots, slotKeys);
+			slotIndex = index;
+		}
+		return index;
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith key out of this page
 	 * @param i - the index of the key
@@ -761,8 +1068,14 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null)
+					continue;
+				// the left child is in the closest used slot before this one
+				int left = entry - 1;
+				BTreePageId childId = p.getChildId(left);
+				while(childId == null && left > 0)
+					childId = p.getChildId(--left);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
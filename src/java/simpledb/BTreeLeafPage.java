@@ -11,7 +11,7 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class BTreeLeafPage extends BTreePage {
+public class BTreeLeafPage extends BTreePage implements SlottedPage {
 	private final byte header[];
 	private final Tuple tuples[];
 	private final int numSlots;
@@ -36,7 +36,7 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		if (checkoccupancy && depth > 0) {
-			assert(getNumTuples() >= getMaxTuples()/2);
+			assert(getUsedSpace() >= getMinSpace());
 		}
 	}
 
@@ -53,6 +53,11 @@ public class BTreeLeafPage extends BTreePage {
 	 * <p>
 	 *      ceiling(no. tuple slots / 8)
 	 * <p>
+	 * In the compact format (see {@link BTreePage#isCompact()}) the tuples in the
+	 * used slots are written one after the other instead, with the key field
+	 * prefix-compressed, and the number of slots is computed as if every key was
+	 * the empty string.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -94,8 +99,10 @@ public class BTreeLeafPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		tuples = new Tuple[numSlots];
-		try{
-			// allocate and read the actual records of this page
+		// allocate and read the actual records of this page
+		if (isCompact())
+			readCompactTuples(dis);
+		else try{
 			for (int i=0; i<tuples.length; i++)
 				tuples[i] = readNextTuple(dis,i);
 		}catch(NoSuchElementException e){
@@ -110,7 +117,11 @@ public class BTreeLeafPage extends BTreePage {
 	 * Retrieve the maximum number of tuples this page can hold.
 	 */
 	public int getMaxTuples() {        
-		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		return getMaxTuples(td, keyField, isCompact());
+	}
+
+	private static int getMaxTuples(TupleDesc td, int keyField, boolean compact) {
+		int bitsPerTupleIncludingHeader = getMinTupleSize(td, keyField, compact) * 8 + 1;
 		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
 		int extraBits = 3 * INDEX_SIZE * 8; 
 		int tuplesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
@@ -121,13 +132,144 @@ public class BTreeLeafPage extends BTreePage {
 	 * Computes the number of bytes in the header of a page in a BTreeFile with each tuple occupying tupleSize bytes
 	 */
 	private int getHeaderSize() {        
-		int tuplesPerPage = getMaxTuples();
+		return getHeaderSize(getMaxTuples());
+	}
+
+	private static int getHeaderSize(int tuplesPerPage) {
 		int hb = (tuplesPerPage / 8);
 		if (hb * 8 < tuplesPerPage) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * The size of a tuple in the fixed format, or of a tuple with an empty key
+	 * in the compact format
+	 */
+	private static int getMinTupleSize(TupleDesc td, int keyField, boolean compact) {
+		if (!compact)
+			return td.getSize();
+		return td.getSize() - Type.STRING_TYPE.getLen() + compactKeySize("", "");
+	}
+
+	/**
+	 * The size of the largest tuple in the compact format
+	 */
+	private int getMaxTupleSize() {
+		return getMinTupleSize(td, keyField, true) + Type.STRING_LEN;
+	}
+
+	public int getHeaderOffset() {
+		return 3 * INDEX_SIZE;
+	}
+
+	public int getSlotsOffset() {
+		return getHeaderOffset() + header.length;
+	}
+
+	/**
+	 * Returns the number of slots, or 0 in the compact format, where the tuples are
+	 * not stored in fixed size slots
+	 */
+	public int getNumSlots() {
+		return isCompact() ? 0 : numSlots;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	public int getCapacity() {
+		if (!isCompact())
+			return getMaxTuples();
+		return BufferPool.getPageSize() - 3 * INDEX_SIZE - getHeaderSize();
+	}
+
+	protected int getNumUsed() {
+		return getNumTuples();
+	}
+
+	protected int computeUsedSpace() {
+		int used = 0;
+		Tuple prev = null;
+		for (int i=0; i<numSlots; i++) {
+			if (isSlotUsed(i)) {
+				used += getTupleSpace(tuples[i], prev);
+				prev = tuples[i];
+			}
+		}
+		return used;
+	}
+
+	public int getMinSpace() {
+		if (!isCompact())
+			return getMaxTuples() / 2;
+		return getCapacity() / 2 - 2 * getMaxTupleSize();
+	}
+
+	/**
+	 * Returns the space tuple t takes on this page when it follows tuple prev
+	 *
+	 * @param prev - the tuple before t, or null if t is the first tuple on the page
+	 */
+	int getTupleSpace(Tuple t, Tuple prev) {
+		if (!isCompact())
+			return 1;
+		String prevKey = prev == null ? "" : keyOf(prev);
+		return td.getSize() - Type.STRING_TYPE.getLen() + compactKeySize(prevKey, keyOf(t));
+	}
+
+	/**
+	 * Returns the space tuple t adds to this page when it goes between tuples prev
+	 * and next, which shares a different prefix with t than with prev
+	 *
+	 * @param prev - the tuple before t, or null if there is none
+	 * @param next - the tuple after t, or null if there is none
+	 */
+	private int getTupleSpace(Tuple t, Tuple prev, Tuple next) {
+		int space = getTupleSpace(t, prev);
+		if (next != null)
+			space += getTupleSpace(next, t) - getTupleSpace(next, prev);
+		return space;
+	}
+
+	/**
+	 * Returns true if the tuples of this page and of a sibling fit on one page.
+	 */
+	boolean fitsWith(BTreeLeafPage sibling) {
+		// in the compact format leave room for inserting the last tuple as if it
+		// shared no prefix with the one before it
+		int extra = isCompact() ? getMaxTupleSize() : 0;
+		return getUsedSpace() + sibling.getUsedSpace() + extra <= getCapacity();
+	}
+
+	/**
+	 * Returns how many tuples have to be taken from one end of this page for them to
+	 * use at least the given space on it
+	 *
+	 * @param space - the space to take
+	 * @param fromRight - whether to take the tuples with the largest keys rather than
+	 *                    the smallest
+	 */
+	int countTuplesToMove(int space, boolean fromRight) {
+		ArrayList<Tuple> inOrder = new ArrayList<Tuple>();
+		Iterator<Tuple> it = iterator();
+		while (it.hasNext())
+			inOrder.add(it.next());
+		int moved = 0;
+		int n = 0;
+		while (moved < space && n < inOrder.size()) {
+			int i = fromRight ? inOrder.size() - 1 - n : n;
+			moved += getTupleSpace(inOrder.get(i), i > 0 ? inOrder.get(i - 1) : null);
+			n++;
+		}
+		return n;
+	}
+
+	private String keyOf(Tuple t) {
+		return ((StringField) t.getField(keyField)).getValue();
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeLeafPage getBeforeImage(){
@@ -187,6 +329,82 @@ public class BTreeLeafPage extends BTreePage {
 		return t;
 	}
 
+	/**
+	 * Read the tuples of a compact page, which follow each other in slot order.
+	 * @throws IOException if the data is not a compact page
+	 */
+	private void readCompactTuples(DataInputStream dis) throws IOException {
+		String prevKey = "";
+		try {
+			for (int i=0; i<numSlots; i++) {
+				if (!isSlotUsed(i))
+					continue;
+				Tuple t = new Tuple(td);
+				t.setRecordId(new RecordId(pid, i));
+				for (int j=0; j<td.numFields(); j++) {
+					if (j == keyField) {
+						prevKey = readCompactKey(dis, prevKey);
+						t.setField(j, new StringField(prevKey, Type.STRING_LEN));
+					} else {
+						t.setField(j, td.getFieldType(j).parse(dis));
+					}
+				}
+				tuples[i] = t;
+			}
+		} catch (java.text.ParseException e) {
+			throw new IOException("error reading compact tuple", e);
+		}
+	}
+
+	/**
+	 * Write tuples, sorted on the key field, in the compact format.
+	 */
+	private static void writeCompactTuples(DataOutputStream dos, List<Tuple> tuples, int keyField) throws IOException {
+		String prevKey = "";
+		for (Tuple t : tuples) {
+			for (int j=0; j<t.getTupleDesc().numFields(); j++) {
+				if (j == keyField) {
+					String key = ((StringField) t.getField(j)).getValue();
+					writeCompactKey(dos, prevKey, key);
+					prevKey = key;
+				} else {
+					t.getField(j).serialize(dos);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Generate the data of a compact leaf page holding the given tuples in its first
+	 * slots, with no parent or sibling pointers. Used by BTreeFileEncoder.
+	 *
+	 * @param tuples - the tuples, sorted on the key field
+	 * @param td - the TupleDesc of the tuples
+	 * @param keyField - the index of the key field, which must be a string
+	 * @return a byte array which can be passed to the BTreeLeafPage constructor
+	 * @throws IOException if the tuples do not fit on one page
+	 */
+	static byte[] createCompactPageData(List<Tuple> tuples, TupleDesc td, int keyField) throws IOException {
+		byte[] header = new byte[getHeaderSize(getMaxTuples(td, keyField, true))];
+		if (tuples.size() > getMaxTuples(td, keyField, true))
+			throw new IOException("too many tuples for one page");
+		for (int i=0; i<tuples.size(); i++)
+			header[i / 8] |= 1 << (i % 8);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeInt(0); // left sibling pointer
+		dos.writeInt(0); // right sibling pointer
+		dos.write(header);
+		writeCompactTuples(dos, tuples, keyField);
+		if (dos.size() > BufferPool.getPageSize())
+			throw new IOException("tuples do not fit on one page");
+		dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -234,7 +452,20 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// create the tuples
-		for (int i=0; i<tuples.length; i++) {
+		if (isCompact()) {
+			ArrayList<Tuple> inOrder = new ArrayList<Tuple>();
+			for (int i=0; i<tuples.length; i++)
+				if (isSlotUsed(i))
+					inOrder.add(tuples[i]);
+			try {
+				writeCompactTuples(dos, inOrder, keyField);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if (dos.size() > BufferPool.getPageSize())
+				throw new IllegalStateException("tuples overflow compact leaf page " + pid.getPageNumber());
+		}
+		else for (int i=0; i<tuples.length; i++) {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
@@ -262,7 +493,7 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+		int zerolen = BufferPool.getPageSize() - dos.size();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -294,6 +525,18 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("tried to delete tuple on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null tuple.");
+		if (isCompact()) {
+			// the used slots are in key order
+			int slot = rid.getTupleNumber();
+			int prev = slot - 1;
+			while (prev >= 0 && !isSlotUsed(prev))
+				prev--;
+			int next = slot + 1;
+			while (next < numSlots && !isSlotUsed(next))
+				next++;
+			addUsedSpace(-getTupleSpace(tuples[slot], prev >= 0 ? tuples[prev] : null,
+					next < numSlots ? tuples[next] : null));
+		}
 		markSlotUsed(rid.getTupleNumber(), false);
 		t.setRecordId(null);
 	}
@@ -321,18 +564,17 @@ public class BTreeLeafPage extends BTreePage {
 
 		if (emptySlot == -1)
 			throw new DbException("called addTuple on page with no empty slots.");
+		// a compact page must have room for the tuple even if it shares no prefix
+		if (isCompact() && getUsedSpace() + getTupleSpace(t, null) > getCapacity())
+			throw new DbException("called addTuple on page with no room for the tuple.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		SlotIndex index = getSlotIndex();
+		int after = index.search(t.getField(keyField), true, 0);
+		int lessOrEqKey = after > 0 ? index.slots[after - 1] : -1;
+		if (isCompact())
+			addUsedSpace(getTupleSpace(t, after > 0 ? tuples[lessOrEqKey] : null,
+					after < index.size() ? tuples[index.slots[after]] : null));
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -438,17 +680,21 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of tuples currently stored on this page
 	 */
 	public int getNumTuples() {
-		return numSlots - getNumEmptySlots();
+		int cnt = 0;
+		for(int i=0; i<numSlots; i++)
+			if(isSlotUsed(i))
+				cnt++;
+		return cnt;
 	}
 
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. In the compact format, only as
+	 * many slots count as empty as tuples of the largest possible size still fit.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
+		int cnt = numSlots - getNumTuples();
+		if (isCompact())
+			cnt = Math.min(cnt, (getCapacity() - getUsedSpace()) / getMaxTupleSize());
 		return cnt;
 	}
 
@@ -469,6 +715,7 @@ public class BTreeLeafPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
+		slotIndex = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
@@ -491,6 +738,51 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * Binary search for the first tuple on this page whose key is greater than or equal
+	 * to f (greater than f if inclusive is false)
+	 * @return an iterator over the tuples on this page from that tuple on
+	 */
+	public Iterator<Tuple> iterator(Field f, boolean inclusive) {
+		SlotIndex index = getSlotIndex();
+		int pos = index.search(f, !inclusive, 0);
+		return new BTreeLeafPageIterator(this, pos < index.size() ? index.slots[pos] : numSlots);
+	}
+
+	/**
+	 * Binary search for the last tuple on this page whose key is less than or equal
+	 * to f (less than f if inclusive is false)
+	 * @return a reverse iterator over the tuples on this page from that tuple on
+	 */
+	public Iterator<Tuple> reverseIterator(Field f, boolean inclusive) {
+		SlotIndex index = getSlotIndex();
+		int pos = index.search(f, inclusive, 0);
+		return new BTreeLeafPageReverseIterator(this, pos > 0 ? index.slots[pos - 1] : -1);
+	}
+
+	/**
+	 * Returns the index of the used slots on this page, building it if the page
+	 * changed since it was last built
+	 */
+	private SlotIndex getSlotIndex() {
+		SlotIndex index = slotIndex;
+		if (index == null) {
+			int n = getNumTuples();
+			int[] slots = new int[n];
+			Field[] keys = new Field[n];
+			for (int i=0, j=0; i<numSlots; i++) {
+				if (isSlotUsed(i)) {
+					slots[j] = i;
+					keys[j] = tuples[i].getField(keyField);
+					j++;
+				}
+			}
+			index = new SlotIndex(slots, keys);
+			slotIndex = index;
+		}
+		return index;
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -529,6 +821,14 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	/**
+	 * Start the iteration at the given slot rather than at the first one
+	 */
+	public BTreeLeafPageIterator(BTreeLeafPage p, int firstSlot) {
+		this.p = p;
+		this.curTuple = firstSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -578,6 +878,14 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 		this.curTuple = p.getMaxTuples() - 1;
 	}
 
+	/**
+	 * Start the iteration at the given slot rather than at the last one
+	 */
+	public BTreeLeafPageReverseIterator(BTreeLeafPage p, int lastSlot) {
+		this.p = p;
+		this.curTuple = lastSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
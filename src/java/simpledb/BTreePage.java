@@ -19,11 +19,18 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final boolean compact;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
 
+	// the used slots in key order, built on the first search after a change to the page
+	protected volatile SlotIndex slotIndex = null;
+	// the space taken on a compact page, computed on first use and then kept up to date
+	// by the changes to the page; -1 if it is not known
+	protected volatile int usedSpace = -1;
+
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
@@ -52,6 +59,19 @@ public abstract class BTreePage implements Page {
 		this.pid = id;
 		this.keyField = key;
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.compact = isCompactFormat(id.getTableId(), td.getFieldType(key));
+	}
+
+	/**
+	 * Returns true if the pages of a table are in the compact format, as recorded by
+	 * the BTreeFile of the table. Tables that are not BTreeFiles are taken to be in the
+	 * format of a new tree.
+	 */
+	private static boolean isCompactFormat(int tableid, Type keyType) {
+		DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+		if (f instanceof BTreeFile)
+			return ((BTreeFile) f).isCompact();
+		return keyType == Type.STRING_TYPE;
 	}
 
 	/**
@@ -129,10 +149,189 @@ public abstract class BTreePage implements Page {
 	}
 
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. For a compact page this is the
+	 * number of tuples/entries of the largest possible size that still fit.
 	 */
 	public abstract int getNumEmptySlots();
-	
+
+	/**
+	 * Returns true if this page is in the compact format, which new trees keyed on a
+	 * string use. Keys are then stored at their actual length rather than padded to
+	 * Type.STRING_LEN, each one as the length of the prefix it shares with the key before
+	 * it on the page followed by the rest of it, and the page fills up by bytes rather
+	 * than by slots. The format is recorded in the root pointer page of the tree; the
+	 * pages of a tree keyed on any other type, or written before the compact format
+	 * existed, are in the fixed slot format.
+	 *
+	 * @see BTreeFile#isCompact()
+	 */
+	public boolean isCompact() {
+		return compact;
+	}
+
+	/**
+	 * Returns the space available for tuples/entries on this page: the number of slots
+	 * in the fixed format, the number of bytes in the compact format.
+	 */
+	public abstract int getCapacity();
+
+	/**
+	 * Returns the space taken by the tuples/entries on this page, in the units of
+	 * {@link #getCapacity()}
+	 */
+	public int getUsedSpace() {
+		if (!compact)
+			return getNumUsed();
+		int used = usedSpace;
+		if (used < 0) {
+			used = computeUsedSpace();
+			usedSpace = used;
+		}
+		return used;
+	}
+
+	/**
+	 * Returns the number of tuples/entries on this page
+	 */
+	protected abstract int getNumUsed();
+
+	/**
+	 * Adds up the space taken by the tuples/entries on a compact page
+	 */
+	protected abstract int computeUsedSpace();
+
+	/**
+	 * Adjusts the cached used space of a compact page by the given amount, if it is known
+	 */
+	protected void addUsedSpace(int delta) {
+		if (usedSpace >= 0)
+			usedSpace += delta;
+	}
+
+	/**
+	 * Returns the space a non-root page must use to be at minimum occupancy. This is
+	 * half of the capacity in the fixed format; compact pages are allowed the size of
+	 * two of their largest tuples/entries below that, as they cannot always be split or
+	 * rebalanced exactly in half.
+	 */
+	public abstract int getMinSpace();
+
+	/**
+	 * Returns true if this page is less than half full
+	 */
+	public boolean isBelowMinOccupancy() {
+		return getUsedSpace() < getMinSpace();
+	}
+
+	/**
+	 * The used slots of a page in key order along with their keys, for binary search
+	 * over the page. Int keys are also kept unboxed, so that searching a page keyed on
+	 * an int does not go through Field.compare.
+	 */
+	protected static final class SlotIndex {
+		final int[] slots;
+		final Field[] keys;
+		final int[] intKeys; // null unless the keys are ints
+
+		SlotIndex(int[] slots, Field[] keys) {
+			this.slots = slots;
+			this.keys = keys;
+			int[] ints = new int[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] instanceof IntField)
+					ints[i] = ((IntField) keys[i]).getValue();
+				else if (keys[i] != null) {
+					ints = null;
+					break;
+				}
+			}
+			this.intKeys = ints;
+		}
+
+		/**
+		 * Returns the number of used slots
+		 */
+		int size() {
+			return slots.length;
+		}
+
+		/**
+		 * Binary search for the first position at or after from whose key is greater
+		 * than or equal to f, or greater than f if after is true
+		 *
+		 * @return the position found, or size() if there is none
+		 */
+		int search(Field f, boolean after, int from) {
+			int lo = from;
+			int hi = slots.length;
+			if (intKeys != null && f instanceof IntField) {
+				int v = ((IntField) f).getValue();
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if (intKeys[mid] < v || (after && intKeys[mid] == v))
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+				return lo;
+			}
+			Predicate.Op op = after ? Predicate.Op.LESS_THAN_OR_EQ : Predicate.Op.LESS_THAN;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (keys[mid].compare(op, f))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+	}
+
+	/**
+	 * Returns the length of the common prefix of two strings
+	 */
+	static int sharedPrefix(String a, String b) {
+		int n = Math.min(a.length(), b.length());
+		int i = 0;
+		while (i < n && a.charAt(i) == b.charAt(i))
+			i++;
+		return i;
+	}
+
+	/**
+	 * Returns the number of bytes a key takes in the compact format after the key prev
+	 */
+	static int compactKeySize(String prev, String key) {
+		return 2 + key.length() - sharedPrefix(prev, key);
+	}
+
+	/**
+	 * Write a key in the compact format: the length of the prefix it shares with the key
+	 * before it, the length of the rest of it, and the rest of it.
+	 *
+	 * @param prev - the key before it on the page, or the empty string
+	 */
+	static void writeCompactKey(DataOutputStream dos, String prev, String key) throws IOException {
+		int shared = sharedPrefix(prev, key);
+		dos.writeByte(shared);
+		dos.writeByte(key.length() - shared);
+		dos.writeBytes(key.substring(shared));
+	}
+
+	/**
+	 * Read a key written by {@link #writeCompactKey(DataOutputStream, String, String)}
+	 *
+	 * @param prev - the key before it on the page, or the empty string
+	 */
+	static String readCompactKey(DataInputStream dis, String prev) throws IOException {
+		int shared = dis.readUnsignedByte();
+		if (shared > prev.length())
+			throw new IOException("compact key shares more than the key before it");
+		byte[] rest = new byte[dis.readUnsignedByte()];
+		dis.readFully(rest);
+		return prev.substring(0, shared) + new String(rest);
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
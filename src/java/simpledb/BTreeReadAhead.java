@@ -0,0 +1,190 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * BTreeReadAhead reads the leaves a scan of a BTreeFile is about to reach
+ * into the BufferPool in the background, following the sibling pointers
+ * from the leaf the scan is on, so that moving on to the next leaf does not
+ * wait for the disk.
+ * <p>
+ * The number of leaves kept read ahead of the scan adapts to its speed: it
+ * is about the time a leaf takes to be read divided by the time the scan
+ * spends on a leaf, so a scan that consumes leaves quickly gets a deeper
+ * window, and one that is slower than the disk reads one leaf ahead. The
+ * window starts at one leaf, at most doubles at every leaf the scan reaches,
+ * and is bounded by MAX_WINDOW and by a quarter of the buffer pool.
+ * <p>
+ * A range scan that stops at a bound passes the bound, and no leaf is read
+ * past the first leaf whose last key (in scan order) is beyond it.
+ * <p>
+ * Leaves are read ahead without locking them; the scan still locks every
+ * leaf it actually reads.
+ *
+ * @see BufferPool#prefetchPage(PageId)
+ */
+class BTreeReadAhead implements Runnable {
+
+	/** The most leaves read ahead of a scan */
+	static final int MAX_WINDOW = 32;
+
+	private static final ExecutorService READERS = Executors.newFixedThreadPool(2, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "btree-read-ahead");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// the average time a leaf takes to be brought into the buffer pool, over all scans
+	private static volatile long readNanos = 0;
+
+	private final BufferPool pool;
+	private final boolean forward;
+	private final int keyField;
+	private final IndexPredicate bound;
+
+	// the leaves read ahead of the scan, in scan order, and the last of them (or the
+	// scan's leaf), whose sibling is read next
+	private final ArrayDeque<BTreePageId> ahead = new ArrayDeque<BTreePageId>();
+	private BTreeLeafPage tail = null;
+	// changes whenever the read-ahead restarts from the scan's leaf
+	private int generation = 0;
+	private int window = 1;
+	private boolean running = false;
+	private boolean closed = false;
+
+	// when the scan reached its leaf, and the average time it spends on a leaf
+	private long reachedAt = 0;
+	private long leafNanos = 0;
+
+	/**
+	 * @param forward - true to read the right siblings ahead, false for the left siblings
+	 */
+	BTreeReadAhead(boolean forward) {
+		this(forward, 0, null);
+	}
+
+	/**
+	 * @param forward  - true to read the right siblings ahead, false for the left siblings
+	 * @param keyField - the index of the key field of the leaves
+	 * @param bound    - the predicate the scan stops at, or null if it reads to the last leaf
+	 */
+	BTreeReadAhead(boolean forward, int keyField, IndexPredicate bound) {
+		this.pool = Database.getBufferPool();
+		this.forward = forward;
+		this.keyField = keyField;
+		this.bound = bound;
+	}
+
+	/**
+	 * Returns true if the scan stops at this leaf: its last key in scan order is beyond the bound
+	 */
+	private boolean pastBound(BTreeLeafPage leaf) {
+		if (bound == null)
+			return false;
+		try {
+			Iterator<Tuple> it = forward ? leaf.reverseIterator() : leaf.iterator();
+			return it.hasNext() && !it.next().getField(keyField).compare(bound.getOp(), bound.getField());
+		} catch (RuntimeException e) {
+			// the leaf is being changed under us; stop rather than guess
+			return true;
+		}
+	}
+
+	/**
+	 * Tell the read-ahead that the scan has moved on to a leaf, and read more leaves
+	 * ahead of it if the window is not full.
+	 *
+	 * @param leaf - the leaf the scan is reading now
+	 */
+	synchronized void reached(BTreeLeafPage leaf) {
+		if (closed)
+			return;
+		long now = System.nanoTime();
+		if (reachedAt != 0)
+			leafNanos = leafNanos == 0 ? now - reachedAt : (3 * leafNanos + now - reachedAt) / 4;
+		reachedAt = now;
+
+		// drop the leaves the scan has got to
+		while (!ahead.isEmpty() && !ahead.peekFirst().equals(leaf.getId()))
+			ahead.pollFirst();
+		if (ahead.isEmpty()) {
+			// the read-ahead has not got here yet, carry on from this leaf
+			tail = leaf;
+			generation++;
+		} else {
+			ahead.pollFirst();
+		}
+
+		int target = 1;
+		if (leafNanos > 0)
+			target = (int) Math.min(MAX_WINDOW, readNanos / leafNanos + 1);
+		int max = Math.max(1, Math.min(MAX_WINDOW, pool.getNumPages() / 4));
+		window = Math.min(max, Math.min(target, 2 * window));
+
+		if (!running && ahead.size() < window) {
+			running = true;
+			READERS.execute(this);
+		}
+	}
+
+	/**
+	 * Stop reading ahead
+	 */
+	synchronized void close() {
+		closed = true;
+		ahead.clear();
+		tail = null;
+	}
+
+	/**
+	 * Read leaves until the window is full or the last leaf has been read
+	 */
+	public void run() {
+		while (true) {
+			BTreePageId next;
+			int gen;
+			synchronized (this) {
+				next = null;
+				if (!closed && ahead.size() < window && !pastBound(tail))
+					next = forward ? tail.getRightSiblingId() : tail.getLeftSiblingId();
+				if (next == null) {
+					running = false;
+					return;
+				}
+				gen = generation;
+			}
+
+			BTreeLeafPage page;
+			try {
+				long start = System.nanoTime();
+				page = (BTreeLeafPage) pool.prefetchPage(next);
+				long t = System.nanoTime() - start;
+				if (page != null)
+					readNanos = readNanos == 0 ? t : (3 * readNanos + t) / 4;
+			} catch (Exception e) {
+				// reading ahead is only a hint; the scan reads the leaf itself when it gets there
+				page = null;
+			}
+			if (page == null) {
+				// another thread is reading the leaf, or it could not be read
+				synchronized (this) {
+					running = false;
+				}
+				return;
+			}
+
+			synchronized (this) {
+				if (gen == generation) {
+					ahead.addLast(next);
+					tail = page;
+				}
+			}
+		}
+	}
+}
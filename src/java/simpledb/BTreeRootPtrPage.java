@@ -12,6 +12,9 @@ public class BTreeRootPtrPage implements Page {
 	// size of this page
 	public final static int PAGE_SIZE = 9;
 
+	// set in the root category byte if the pages of the tree are in the compact format
+	private final static int COMPACT_FLAG = 0x80;
+
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
 
@@ -21,6 +24,7 @@ public class BTreeRootPtrPage implements Page {
 	private int root; 
 	private int rootCategory;
 	private int header;
+	private boolean compact;
 
 	private byte[] oldData;
 
@@ -31,7 +35,9 @@ public class BTreeRootPtrPage implements Page {
 	 * The format of an BTreeRootPtrPage is an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
 	 * (either leaf or internal), followed by an integer for the page number
-	 * of the first header page
+	 * of the first header page. The high bit of the category byte is set if the
+	 * pages of the tree are in the compact format (see {@link BTreePage#isCompact()});
+	 * trees written before that format existed never have it set.
 	 */
 	public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
 		this.pid = id;
@@ -39,7 +45,9 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the root pointer
 		root = dis.readInt();
-		rootCategory = (int) dis.readByte();
+		int category = dis.readUnsignedByte();
+		compact = (category & COMPACT_FLAG) != 0;
+		rootCategory = category & ~COMPACT_FLAG;
 
 		// read in the header pointer
 		header = dis.readInt();
@@ -91,7 +99,7 @@ public class BTreeRootPtrPage implements Page {
 
 		// write out the category of the root page (leaf or internal)
 		try{
-			dos.writeByte((byte) rootCategory);
+			dos.writeByte((byte) (compact ? rootCategory | COMPACT_FLAG : rootCategory));
 		}catch(IOException e){
 			e.printStackTrace();
 		}
@@ -214,6 +222,21 @@ public class BTreeRootPtrPage implements Page {
 		}
 	}
 
+	/**
+	 * Returns true if the pages of this B+ tree are in the compact format
+	 */
+	public boolean isCompact() {
+		return compact;
+	}
+
+	/**
+	 * Set whether the pages of this B+ tree are in the compact format
+	 * @param compact - true for the compact format, false for the fixed slot format
+	 */
+	public void setCompact(boolean compact) {
+		this.compact = compact;
+	}
+
 	/**
 	 * Get the page size of root pointer pages
 	 * @return the page size
@@ -3,10 +3,16 @@ package simpledb;
 import java.io.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Random;
-import java.util.Vector;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -16,6 +22,16 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Cached pages live in a sharded {@link PageTable}.  Cache hits do not take
+ * any lock of the pool, and pages are pinned while the pool works on them so
+ * that eviction never removes a page in use by another thread.  A page a
+ * transaction fetches READ_WRITE stays pinned until the transaction releases
+ * it or completes, so the copy it modifies is the one the pool keeps.  Pages
+ * fetched READ_ONLY are not kept pinned: nobody can change them while the
+ * reader holds its shared lock, so a copy evicted under it stays valid, and
+ * scans larger than the pool can still run.  When only pinned pages could
+ * make room, the pool holds more pages than its size until they are unpinned.
  *
  * @Threadsafe, all fields are final
  */
@@ -36,178 +52,82 @@ public class BufferPool {
     private int numPages;
 
     /**
-     * 定义一个从PageId到Page的散列表
+     * 从PageId到缓存页的分片散列表（命中时无锁）
      */
-    private ConcurrentHashMap<PageId,Page> pid2pages;
-
-    private ConcurrentHashMap<PageId,Integer> id2age;
-    private int age;
-    private ControlForLock controlForLock;
-
-
-    //为Lab4所写，实现一个锁的类
-    private class Lock
-    {
-        TransactionId tid;
-        int lockType;
-
-        public Lock(TransactionId tid,int lockType)
-        {
-            this.tid = tid;
-            this.lockType = lockType;
-        }
-    }
-
-    //对锁的控制类，以页为粒度进行锁的控制
-    private class ControlForLock
-    {
-        //定义一个哈希，用来映射page和其对应的锁
-        ConcurrentHashMap<PageId, Vector<Lock>> id2lock;
-
-        public ControlForLock()
-        {
-            id2lock = new ConcurrentHashMap<PageId, Vector<Lock>>();
-        }
-
-        /**
-         * 注意：synchronized是java的关键字，是一种同步锁：一个线程调用方法时，其它线程试图使用该方法的线程将被阻塞
-         * 参数：pid，标识是哪个page的锁；
-         *      tid标识哪个事务；
-         *      LockType标识锁的类型，0：shared clock   1：exclusive clock
-         * getLock：返回上锁成功or失败
-         * **/
-        public synchronized boolean getLock(PageId pid, TransactionId tid, int lockType)
-        {
-            //如果该页原本就没有锁，则根据事务id和锁的类型新建一个锁给它，并给它新建一个vector
-            if (id2lock.get(pid) == null)
-            {
-                //根据tid和locktype建立一个锁
-                Lock lock = new Lock(tid, lockType);
-                //由于这个page原本没锁，所以还得建一个vector装它的锁们
-                Vector<Lock> locks = new Vector<>();
-                locks.add(lock);
-                //放到哈希里
-                id2lock.put(pid, locks);
-                return true;
-            }
-
-            //获取这一页原本就有的锁的vector
-            Vector<Lock> lockVector = id2lock.get(pid);
+    private final PageTable pageTable;
 
-            for (Lock lock : lockVector)
-            {
-                //遍历现有的锁，找到在该事务上已经有的锁，其实对应四种情况：
-                /*
-                    想要shared，已有ex；
-                    想要ex，已有shared；
-                    想要ex，已有ex
-                    想要shared，已有shared
-                 */
-                if (lock.tid == tid)
-                {
+    /**
+     * 页面置换策略，决定缓冲池满时驱逐哪一页
+     */
+    private final EvictionPolicy evictionPolicy;
 
-                    //排除掉了后两种情况，此时说明该事务已经有了我们想要的锁，上锁成功
-                    if (lock.lockType == lockType)
-                        return true;
-                    //排除掉了第一种情况，已经有ex锁的事务，不需要再上shared锁
-                    if (lock.lockType == 1)
-                        return true;
-                    //下面的if和else都对应第二种情况：（想要ex，已有shared）
-                    //如果该资源现有的锁只有一个，则将其升格为exclusive，上锁成功
-                    if (lockVector.size() == 1)
-                    {
-                        lock.lockType = 1;
-                        return true;
-                    }
-                    //对应第二种情况，现有的是shared类型，且不止一个shared锁，则不能上ex锁，上锁失败
-                    else
-                    {
-                        return false;
-                    }
-                }
-            }
+    /**
+     * 页粒度的锁管理器（带等待队列，被阻塞的事务挂起而不是忙等）
+     */
+    private final LockManager lockManager;
 
-            //剩下没有return的都是这页在这个事务上原本没有加锁的
-            //如果这页已有exclusive lock，则不能再与其他锁共存，上锁失败
-            if (lockVector.get(0).lockType == 1)
-            {
-                assert lockVector.size() == 1 : "exclusive lock can't coexist with other locks";
-                return false;
-            }
-            //剩下的是既未在这个事务上有锁，又没有exclusive锁的
-            //此时根据你要上锁的类型划分：
-            //你要上的锁是shared的，直接加到vector里
-            if (lockType == 0)
-            {
-                Lock lock = new Lock(tid, 0);
-                lockVector.add(lock);
-                id2lock.put(pid, lockVector);
-                return true;
-            }
-            //这个页本来就有锁，并且你还想上个ex锁，则上锁失败
-            return false;
-        }
+    /**
+     * 每个事务通过insertTuple/deleteTuple弄脏的页；提交或回滚时只需访问这些页
+     * 和该事务加过锁的页，而不必扫描整个缓冲池
+     */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> dirtiedPages;
 
-        public synchronized boolean unLock(PageId pid,TransactionId tid){
-            //本来就没锁
-            assert id2lock.get(pid) != null : "page not locked!";
+    /**
+     * 每个事务以READ_WRITE取得的页所在的帧；事务释放该页或结束之前一直pin住，不会被驱逐
+     */
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, PageTable.Frame>> pinnedFrames =
+            new ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, PageTable.Frame>>();
 
-            //先拿到它的锁列表
-            Vector<Lock> lockVector = id2lock.get(pid);
-            //遍历锁列表
-            for(int i=0;i<lockVector.size();++i)
-            {
-                //找到tid在该页（pageid）对应的锁，并把它移除
-                Lock lock = lockVector.get(i);
-                if(lock.tid == tid)
-                {
-                    lockVector.remove(lock);
-                    //如果该页对应的锁只有一把，那么直接把该页对应的锁列表删除
-                    if(lockVector.size() == 0)
-                        id2lock.remove(pid);
-                    return true;
-                }
-            }
-            //如果没有找到该页对应的锁，说明解锁失败
-            return false;
-        }
+    /**
+     * 写回磁盘或从缓存丢弃的页数；预读据此判断它从磁盘读到的页在放进缓存之前是否可能已经过时
+     */
+    private final AtomicLong pageWrites = new AtomicLong();
 
+    /**
+     * 正在从磁盘读入的页；同一页同时未命中时只读一次盘，其他线程等它读完
+     */
+    private final ConcurrentHashMap<PageId, CountDownLatch> reading =
+            new ConcurrentHashMap<PageId, CountDownLatch>();
 
-        /**
-         * 返回这个事务是否对该页上锁的bool值
-         **/
-        public synchronized boolean holdsLock(PageId pid,TransactionId tid)
-        {
-            if(id2lock.get(pid) == null)
-                return false;
-            Vector<Lock> locks = id2lock.get(pid);
+    /**
+     * 每个事务的更新锁：insertTuple/deleteTuple期间持有读锁；后台写页线程持有写锁写该事务的脏页，
+     * 保证页在写日志和写盘之间不被改动
+     */
+    private final ConcurrentHashMap<TransactionId, ReentrantReadWriteLock> updating =
+            new ConcurrentHashMap<TransactionId, ReentrantReadWriteLock>();
 
-            for(Lock lock:locks)
-            {
-                if(lock.tid == tid)
-                {
-                    return true;
-                }
-            }
-            return false;
-        }
-    }
+    /**
+     * 后台写页线程，没有启动时为null
+     */
+    private PageWriter pageWriter = null; //受pageWriterLock保护
+    private final Object pageWriterLock = new Object();
 
 
-        /**
+    /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new ClockEvictionPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and uses the
+     * given policy to choose which page to evict when it is full.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the page replacement policy
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy) {
         // some code goes here
         this.numPages=numPages;
-        pid2pages=new ConcurrentHashMap<PageId,Page>(this.numPages);
+        pageTable=new PageTable();
 
         //为lab4新增的初始化
-        id2age = new ConcurrentHashMap<PageId,Integer>();
-        age = 0;
-        controlForLock = new ControlForLock();
+        this.evictionPolicy = evictionPolicy;
+        lockManager = new LockManager();
+        dirtiedPages = new ConcurrentHashMap<TransactionId, Set<PageId>>();
     }
 
     public static int getPageSize() {
@@ -224,6 +144,20 @@ public class BufferPool {
         BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * @return the maximum number of pages in this buffer pool
+     */
+    int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * @return true if the page is in the buffer pool
+     */
+    boolean isCached(PageId pid) {
+        return pageTable.get(pid) != null;
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -242,51 +176,206 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        //先给该page在事务tid上加锁
-        long start = System.currentTimeMillis();//获取开始时间
-        long timeout = new Random().nextInt(2000) + 1000;
+        //先给该page在事务tid上加锁，拿不到就阻塞等待；
+        //等待会形成环时由等待图选出牺牲者，抛DeadlockException使其事务中止
+        lockManager.acquire(tid, pid, perm);
+        if (perm == Permissions.READ_WRITE)
+            return pinFor(tid, pid).page;
+        return getPageUnlocked(pid);
+    }
 
-        boolean isLocked = false;//定义一个bool变量来看是否上好锁了，用于防止死锁
-        while(!isLocked)
-        {
-            long now = System.currentTimeMillis();//获取当前时间
+    /**
+     * Retrieve a page like getPage, but only if the lock on it can be had
+     * without waiting.  For callers that must not block, as the transaction
+     * they work for may hold locks the current holder is waiting for, like
+     * BTreeFile taking free pages off its header pages.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return the page, or null if another transaction holds a conflicting lock
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        if (!lockManager.tryAcquire(tid, pid, perm))
+            return null;
+        if (perm == Permissions.READ_WRITE)
+            return pinFor(tid, pid).page;
+        return getPageUnlocked(pid);
+    }
 
-            if(now-start > timeout){
-                //如果超时，则判断死锁，事务中断
-                throw new TransactionAbortedException();
-            }
-            //若还未给page上tid的锁，则给他上锁
-            if(perm == Permissions.READ_ONLY)
-                //shared锁——只读
-                isLocked = controlForLock.getLock(pid,tid,0);
-            else
-                //exclusive锁
-                isLocked = controlForLock.getLock(pid,tid,1);
+    /**
+     * Retrieve a page without locking it.  Only for callers that keep the
+     * page consistent by other means, like BTreeFile, which latches rather
+     * than locks the internal pages it walks through.
+     *
+     * @param pid the ID of the requested page
+     */
+    Page getPageUnlocked(PageId pid) throws DbException {
+        //取页期间pin住该帧，防止被其他线程驱逐
+        PageTable.Frame frame = pinFrame(pid);
+        try {
+            return frame.page;
+        } finally {
+            frame.unpin();
         }
+    }
 
+    /**
+     * Look up a page, reading it into the pool if it is not cached, and pin
+     * its frame.  The caller must unpin the frame when it is done with it.
+     *
+     * @param pid the ID of the requested page
+     * @return the pinned frame of the page
+     */
+    private PageTable.Frame pinFrame(PageId pid) throws DbException {
+        while (true) {
+            //如果这个page已经在缓存里，通知置换策略后直接返回即可
+            PageTable.Frame frame = pageTable.pin(pid);
+            if(frame != null){
+                evictionPolicy.pageAccessed(pid);
+                return frame;
+            }
+            //如果另一个线程（比如预读）正在读这一页，等它读完再从缓存里取
+            CountDownLatch done = new CountDownLatch(1);
+            CountDownLatch other = reading.putIfAbsent(pid, done);
+            if(other != null){
+                awaitRead(other);
+                continue;
+            }
+            try {
+                //登记之后再查一次，这一页可能刚被别的线程读进来
+                frame = pageTable.pin(pid);
+                if(frame != null){
+                    evictionPolicy.pageAccessed(pid);
+                    return frame;
+                }
+                //如果这个page不在缓存里，就把page放进缓存里
+                //如果page数已经满了，则要先赶出去一个页面，才能再新加进去
+                if(pageTable.size()>=numPages){
+                    evictPage();
+                }
+                //通过pid（PageId）找到这个page
+                DbFile dbFile=Database.getCatalog().getDatabaseFile(pid.getTableId());
+                Page page=dbFile.readPage(pid);
+                //把page存到buffpool里
+                PageTable.Frame existing = pageTable.putIfAbsent(page);
+                if(existing != null){
+                    //另一个线程已经读入了这一页
+                    evictionPolicy.pageAccessed(pid);
+                } else {
+                    evictionPolicy.pageLoaded(pid);
+                }
+                //放进缓存之后马上pin住；万一刚放进去就被驱逐了，再取一次
+                frame = pageTable.pin(pid);
+                if(frame != null)
+                    return frame;
+            } finally {
+                reading.remove(pid);
+                done.countDown();
+            }
+        }
+    }
 
-        //如果这个page已经在缓存里，直接返回即可
-        if(pid2pages.containsKey(pid)){
-            return pid2pages.get(pid);
+    /**
+     * pin住事务tid要写的页，直到它释放该页或事务结束；同一事务重复取同一页只pin一次
+     */
+    private PageTable.Frame pinFor(TransactionId tid, PageId pid) throws DbException {
+        ConcurrentHashMap<PageId, PageTable.Frame> frames = pinnedFrames.get(tid);
+        if (frames == null) {
+            ConcurrentHashMap<PageId, PageTable.Frame> fresh = new ConcurrentHashMap<PageId, PageTable.Frame>();
+            frames = pinnedFrames.putIfAbsent(tid, fresh);
+            if (frames == null)
+                frames = fresh;
         }
-        //如果这个page不在缓存里，就把page放进缓存里
-        else{
-            //如果page数已经满了，则要先赶出去一个页面，才能再新加进去
-            if(pid2pages.size()>=numPages){
+        PageTable.Frame held = frames.get(pid);
+        //已经pin住的帧还在缓存里（没有被丢弃）就直接用
+        if (held != null && pageTable.get(pid) == held) {
+            evictionPolicy.pageAccessed(pid);
+            return held;
+        }
+        PageTable.Frame frame = pinFrame(pid);
+        held = frames.put(pid, frame);
+        if (held != null)
+            held.unpin();
+        return frame;
+    }
+
+    /**
+     * 取消事务tid对页pid的pin
+     */
+    private void unpinFor(TransactionId tid, PageId pid) {
+        ConcurrentHashMap<PageId, PageTable.Frame> frames = pinnedFrames.get(tid);
+        if (frames == null)
+            return;
+        PageTable.Frame frame = frames.remove(pid);
+        if (frame != null)
+            frame.unpin();
+    }
+
+    /**
+     * @return true if the transaction keeps the page pinned
+     */
+    boolean isPinnedBy(TransactionId tid, PageId pid) {
+        ConcurrentHashMap<PageId, PageTable.Frame> frames = pinnedFrames.get(tid);
+        return frames != null && frames.containsKey(pid);
+    }
+
+    /**
+     * Read a page into the buffer pool ahead of its use, without locking it.
+     * Used by read-ahead, which only needs the page to be cached by the time
+     * a transaction asks for it.  A page read from disk is only cached if no
+     * page was written or discarded while it was read, as the copy read might
+     * then be out of date.
+     *
+     * @param pid the ID of the page to read
+     * @return the page, which the caller must not modify, or null if another
+     *         thread is reading it
+     * @throws DbException if the pool is full of dirty pages
+     */
+    Page prefetchPage(PageId pid) throws DbException {
+        PageTable.Frame frame = pageTable.get(pid);
+        if (frame != null)
+            return frame.page;
+        CountDownLatch done = new CountDownLatch(1);
+        if (reading.putIfAbsent(pid, done) != null)
+            return null;
+        try {
+            //登记之后再查一次，这一页可能刚被别的线程读进来
+            frame = pageTable.get(pid);
+            if (frame != null)
+                return frame.page;
+            if (pageTable.size() >= numPages)
                 evictPage();
+            long writes = pageWrites.get();
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            Page page = dbFile.readPage(pid);
+            synchronized (pageWrites) {
+                //读盘期间有页被写回或丢弃时，读到的可能是旧版本，不放进缓存
+                if (pageWrites.get() == writes && pageTable.putIfAbsent(page) == null)
+                    evictionPolicy.pageLoaded(pid);
             }
-            //通过pid（PageId）找到这个page
-            DbFile dbFile=Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page=dbFile.readPage(pid);
-            //把page存到buffpool里
-            pid2pages.put(pid,page);
-
-            //为lab4新增代码：
-            id2age.put(pid,age++);
+            return page;
+        } finally {
+            reading.remove(pid);
+            done.countDown();
         }
-        return pid2pages.get(pid);
-
+    }
 
+    /**
+     * Wait for another thread to finish reading a page from disk
+     */
+    private static void awaitRead(CountDownLatch done) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
     }
 
     /**
@@ -301,8 +390,9 @@ public class BufferPool {
     public void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
-        //对该页解锁
-        controlForLock.unLock(pid,tid);
+        //对该页解锁，不再用这一页，也就不再pin住它
+        lockManager.release(tid,pid);
+        unpinFor(tid, pid);
     }
 
     /**
@@ -321,29 +411,78 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        //这个功能已经在锁的控制类里实现了
-        return controlForLock.holdsLock(p,tid);
+        //这个功能已经在锁管理器里实现了
+        return lockManager.holdsLock(tid,p);
+    }
+
+    /**
+     * @return the transaction holding an exclusive lock on the page, or null
+     *   if nobody does
+     */
+    public TransactionId getExclusiveHolder(PageId p) {
+        return lockManager.getExclusiveHolder(p);
+    }
+
+    /**
+     * @return the number of deadlocks the lock manager has detected and
+     *   broken by aborting a victim
+     */
+    public long getDeadlockCount() {
+        return lockManager.getDeadlockCount();
     }
 
 
     //为Lab4新增，用于将事务tid对应操作过的page都恢复成未操作的状态
-    private synchronized void recover(TransactionId tid) {
+    private void recover(TransactionId tid) {
 
-        //遍历找tid处理过的page
-        for (PageId pid : pid2pages.keySet())
+        //遍历找tid处理过的page（只看该事务锁过或弄脏过的页）
+        for (PageId pid : pagesTouchedBy(tid))
         {
-            Page page = pid2pages.get(pid);
-            if (page.isDirty() == tid)
+            PageTable.Frame frame = pageTable.get(pid);
+            //除了已标记为脏的页，tid持有写锁的页也要恢复：
+            //操作中途中止时（比如B+树分裂到一半遇到死锁），改过的页还没来得及标记为脏
+            if (frame != null && (frame.page.isDirty() == tid
+                    || tid.equals(lockManager.getExclusiveHolder(pid))))
             {
                 //从磁盘上将该页读取出来
                 DbFile file =  Database.getCatalog().getDatabaseFile(pid.getTableId());
                 Page pageFromDisk = file.readPage(pid);
                 //再把该页从磁盘放到缓冲池里，恢复完成
-                pid2pages.put(pid, pageFromDisk);
+                pageTable.replace(pid, pageFromDisk);
+                //堆文件的空闲表也要忘掉这个事务对该页的改动
+                if (file instanceof HeapFile)
+                    ((HeapFile) file).pageRestored((HeapPage) pageFromDisk);
             }
         }
     }
 
+    /**
+     * 事务可能弄脏的所有页：它加过锁的页（改页必须持有写锁）加上经由缓冲池标记为脏的页
+     */
+    private Set<PageId> pagesTouchedBy(TransactionId tid) {
+        Set<PageId> pages = lockManager.getLockedPages(tid);
+        Set<PageId> dirtied = dirtiedPages.get(tid);
+        if (dirtied != null) {
+            pages = new HashSet<PageId>(pages);
+            pages.addAll(dirtied);
+        }
+        return pages;
+    }
+
+    /**
+     * 记录事务tid弄脏了页pid
+     */
+    private void recordDirty(TransactionId tid, PageId pid) {
+        Set<PageId> pages = dirtiedPages.get(tid);
+        if (pages == null) {
+            Set<PageId> fresh = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+            pages = dirtiedPages.putIfAbsent(tid, fresh);
+            if (pages == null)
+                pages = fresh;
+        }
+        pages.add(pid);
+    }
+
 
 
 
@@ -369,12 +508,25 @@ public class BufferPool {
             recover(tid);
         }
 
-        //为tid事务锁住的页都解锁
-        for(PageId pid:pid2pages.keySet())
-        {
-            if(holdsLock(tid,pid))
-                releasePage(tid,pid);
+        //B+树文件把中止的事务拿走的空闲页放回去
+        HashSet<Integer> tables = new HashSet<Integer>();
+        for (PageId pid : pagesTouchedBy(tid))
+            tables.add(pid.getTableId());
+        for (int tableId : tables) {
+            DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+            if (f instanceof BTreeFile)
+                ((BTreeFile) f).transactionComplete(tid, commit);
+        }
+
+        //为tid事务锁住的页都解锁，并取消该事务对页的pin
+        dirtiedPages.remove(tid);
+        updating.remove(tid);
+        ConcurrentHashMap<PageId, PageTable.Frame> frames = pinnedFrames.remove(tid);
+        if (frames != null) {
+            for (PageTable.Frame frame : frames.values())
+                frame.unpin();
         }
+        lockManager.releaseAll(tid);
     }
 
 
@@ -397,21 +549,101 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        //根据传入的参数tableId找到对应的file表
-        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
-        //在对应的file中插入tuple t，返回被插入数据的page列表pagelist
-        ArrayList<Page> pagelist = f.insertTuple(tid,t);
-        // 遍历这个page列表，标记脏页并加到cache里
-        for (Page p : pagelist)
-        {
-            p.markDirty(true, tid);
-            // adds versions of any pages that have been dirtied to the cache
-            // (replacing any existing versions of those pages)
-            // so that future requests see up-to-date pages.
-            if (pid2pages.size() > numPages)
-                evictPage();
-            pid2pages.put(p.getId(), p);
+        Lock update = beginUpdate(tid);
+        try {
+            //根据传入的参数tableId找到对应的file表
+            DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+            //在对应的file中插入tuple t，返回被插入数据的page列表pagelist
+            ArrayList<Page> pagelist = f.insertTuple(tid,t);
+            // 遍历这个page列表，标记脏页并加到cache里
+            for (Page p : pagelist)
+            {
+                p.markDirty(true, tid);
+                recordDirty(tid, p.getId());
+                // adds versions of any pages that have been dirtied to the cache
+                // (replacing any existing versions of those pages)
+                // so that future requests see up-to-date pages.
+                cachePage(p);
+            }
+            //把新元组的索引项加到表的二级索引里
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+                index.insert(tid, t);
+        } finally {
+            update.unlock();
+        }
+    }
+
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid.  Heap files fill whole pages at a time, so locks are taken (and
+     * log records later written) once per page instead of once per tuple;
+     * other files fall back to inserting the tuples one by one.
+     *
+     * Marks the dirtied pages dirty and caches them as insertTuple does.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        Lock update = beginUpdate(tid);
+        try {
+            DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+            ArrayList<Page> pagelist;
+            if (f instanceof HeapFile) {
+                pagelist = ((HeapFile) f).insertTuples(tid, tuples);
+            } else {
+                pagelist = new ArrayList<Page>();
+                for (Tuple t : tuples)
+                    pagelist.addAll(f.insertTuple(tid, t));
+            }
+            for (Page p : pagelist)
+            {
+                p.markDirty(true, tid);
+                recordDirty(tid, p.getId());
+                cachePage(p);
+            }
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+                for (Tuple t : tuples)
+                    index.insert(tid, t);
+            }
+        } finally {
+            update.unlock();
+        }
+    }
+
+    /**
+     * 取得事务tid的更新锁（读锁）；后台写页线程正在写该事务的页时等它写完
+     */
+    private Lock beginUpdate(TransactionId tid) {
+        Lock update = updateLock(tid).readLock();
+        update.lock();
+        return update;
+    }
+
+    private ReentrantReadWriteLock updateLock(TransactionId tid) {
+        ReentrantReadWriteLock lock = updating.get(tid);
+        if (lock == null) {
+            ReentrantReadWriteLock fresh = new ReentrantReadWriteLock();
+            lock = updating.putIfAbsent(tid, fresh);
+            if (lock == null)
+                lock = fresh;
         }
+        return lock;
+    }
+
+    /**
+     * 把被修改过的页放入缓存（替换掉旧版本），必要时先驱逐一页
+     */
+    private void cachePage(Page p) throws DbException {
+        PageId pid = p.getId();
+        if (pageTable.get(pid) == null && pageTable.size() >= numPages)
+            evictPage();
+        if (pageTable.put(p))
+            evictionPolicy.pageLoaded(pid);
+        else
+            evictionPolicy.pageAccessed(pid);
     }
 
 
@@ -433,14 +665,22 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         //思路同insert
-        DbFile f = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        ArrayList<Page> panellist = f.deleteTuple(tid,t);
-        for (Page p : panellist)
-        {
-            p.markDirty(true, tid);
-            if (pid2pages.size() > numPages)
-                evictPage();
-            pid2pages.put(p.getId(), p);
+        Lock update = beginUpdate(tid);
+        try {
+            int tableId = t.getRecordId().getPageId().getTableId();
+            //先删掉表上各个二级索引里这个元组的索引项（此时元组还在页上，字段可读）
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+                index.delete(tid, t.getField(index.getKeyField()), t.getRecordId());
+            DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+            ArrayList<Page> panellist = f.deleteTuple(tid,t);
+            for (Page p : panellist)
+            {
+                p.markDirty(true, tid);
+                recordDirty(tid, p.getId());
+                cachePage(p);
+            }
+        } finally {
+            update.unlock();
         }
     }
 
@@ -449,12 +689,90 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
         //对缓冲池中存的所有页面flush
-        for(Page p:pid2pages.values()) {
-            flushPage(p.getId());
+        for(PageTable.Frame frame : pageTable.frames()) {
+            flushPage(frame.pid, null);
+        }
+    }
+
+    /**
+     * Flush the dirty pages of a table to disk.
+     *
+     * @param tableId the id of the table
+     */
+    public void flushPages(int tableId) throws IOException {
+        for (PageTable.Frame frame : pageTable.frames()) {
+            if (frame.pid.getTableId() == tableId)
+                flushPage(frame.pid, null);
+        }
+    }
+
+    /**
+     * Write back up to maxPages dirty pages of running transactions, logging
+     * their updates first.  The pages become clean, so they can be evicted and
+     * need not be written again when their transaction commits.
+     *
+     * Only the pages of transactions that began in the log are written, as
+     * the log takes back what was written if they abort, and the pages of a
+     * transaction are skipped while it is inserting or deleting tuples.
+     *
+     * @param maxPages the most pages to write
+     * @return the number of pages written
+     */
+    public int writeBack(int maxPages) throws IOException {
+        int written = 0;
+        //持有缓冲池的锁，与日志的回滚和恢复互斥
+        synchronized (this) {
+            for (PageTable.Frame frame : pageTable.frames()) {
+                if (written >= maxPages)
+                    break;
+                TransactionId tid = frame.page.isDirty();
+                if (tid == null || !Database.getLogFile().isRunning(tid))
+                    continue;
+                Lock update = updateLock(tid).writeLock();
+                if (!update.tryLock())
+                    continue;
+                try {
+                    if (flushPage(frame.pid, tid))
+                        written++;
+                } finally {
+                    update.unlock();
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Start a background thread that writes back a few dirty pages of running
+     * transactions at a time, so that checkpoints need not write any, and
+     * transactions find their pages written already when they commit.
+     *
+     * @param periodMillis the time between two rounds of writes
+     * @param pagesPerRound the most pages written in a round
+     * @see #writeBack(int)
+     */
+    public void startPageWriter(long periodMillis, int pagesPerRound) {
+        synchronized (pageWriterLock) {
+            if (pageWriter != null)
+                pageWriter.stop();
+            pageWriter = new PageWriter(this, periodMillis, pagesPerRound);
+            pageWriter.start();
+        }
+    }
+
+    /**
+     * Stop the background writer, if it runs, and wait for its round of writes
+     * to finish.
+     */
+    public void stopPageWriter() {
+        synchronized (pageWriterLock) {
+            if (pageWriter != null)
+                pageWriter.stop();
+            pageWriter = null;
         }
     }
 
@@ -466,96 +784,173 @@ public class BufferPool {
      Also used by B+ tree files to ensure that deleted pages
      are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        pid2pages.remove(pid);
+        //丢弃的页在磁盘上可能已被改写（比如B+树重用的空页），与预读的放入缓存互斥
+        synchronized (pageWrites) {
+            pageWrites.incrementAndGet();
+            if (pageTable.remove(pid))
+                evictionPolicy.pageRemoved(pid);
+        }
+    }
+
+    /**
+     * Remove all the pages of a table from the buffer pool without writing
+     * them back.  Used when the file of the table has been rewritten under
+     * the pool, like a BTreeFile that was compacted; none of the pages may
+     * be dirty.
+     *
+     * @param tableId the id of the table
+     */
+    public void discardPages(int tableId) {
+        synchronized (pageWrites) {
+            pageWrites.incrementAndGet();
+            for (PageTable.Frame frame : pageTable.frames()) {
+                if (frame.pid.getTableId() == tableId && pageTable.remove(frame.pid))
+                    evictionPolicy.pageRemoved(frame.pid);
+            }
+        }
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
+     * @param only the transaction the page must be dirty for, or null to
+     *   flush it whoever dirtied it
+     * @return true if the page was written
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private boolean flushPage(PageId pid, TransactionId only) throws IOException {
         // some code goes here
         // not necessary for lab1
         //从缓冲池写入磁盘，并取消dirty标识，代表事务真正commit结束
-        Page p = pid2pages.get(pid);
-        TransactionId tid = null;
+        //写盘期间pin住该帧；同一帧上的并发flush按帧串行化
+        PageTable.Frame frame = pageTable.pin(pid);
+        if (frame == null)
+            return false;
+        try {
+            synchronized (frame) {
+                Page p = frame.page;
+                TransactionId tid = null;
 
-        if((tid = p.isDirty())!= null)
-        {
-            //写日志（事务，更新前，更新后）
-            Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
-            Database.getLogFile().force();
-            // 将page写到disk里
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
-            p.markDirty(false, null);//取消标记脏页
+                if((tid = p.isDirty())!= null && (only == null || only.equals(tid)))
+                {
+                    //写日志（事务，更新前，更新后），等日志落盘（与其他事务的force合并）后再写页
+                    long lsn = Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
+                    Database.getLogFile().force(lsn);
+                    // 将page写到disk里
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+                    //日志的脏页表里去掉该页，恢复时不必重做这之前的记录
+                    Database.getLogFile().pageFlushed(pid, lsn);
+                    pageWrites.incrementAndGet();
+                    p.markDirty(false, null);//取消标记脏页
+                    //before image与磁盘上的页保持一致，下一条日志记录（增量）以它为基准
+                    p.setBeforeImage();
+                    return true;
+                }
+            }
+        } finally {
+            frame.unpin();
         }
-
+        return false;
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
         //遍历找到tid事务处理过的所有页，把他们都flush到磁盘里（也就是：从缓冲池写入磁盘，并取消dirty标识，代表事务真正commit结束）
-        for (PageId pid : pid2pages.keySet())
-        {
-            Page page = pid2pages.get(pid);
-            if (page.isDirty() == tid)
+        //先为所有脏页写日志，只等一次日志落盘，再逐页写盘；tid持有这些页的写锁，期间页不会变
+        ArrayList<PageTable.Frame> pinned = new ArrayList<PageTable.Frame>();
+        try {
+            long lsn = 0;
+            for (PageId pid : pagesTouchedBy(tid))
+            {
+                PageTable.Frame frame = pageTable.pin(pid);
+                if (frame == null)
+                    continue;
+                pinned.add(frame);
+                synchronized (frame) {
+                    Page p = frame.page;
+                    if (p.isDirty() == tid)
+                        lsn = Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
+                }
+            }
+            if (lsn == 0)
+                return;
+            Database.getLogFile().force(lsn);
+
+            for (PageTable.Frame frame : pinned)
             {
-                flushPage(pid);
+                synchronized (frame) {
+                    Page p = frame.page;
+                    if (p.isDirty() == tid)
+                    {
+                        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                        //lsn是这些页最后一条日志记录的LSN
+                        Database.getLogFile().pageFlushed(p.getId(), lsn);
+                        pageWrites.incrementAndGet();
+                        p.markDirty(false, null);
+                        p.setBeforeImage();
+                    }
+                }
             }
+        } finally {
+            for (PageTable.Frame frame : pinned)
+                frame.unpin();
         }
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Discards pages from the buffer pool until it has room for one more.
+     * Pinned pages are never evicted: if only pinned pages stand in the way,
+     * the pool holds more pages than its size until they are unpinned.
+     *
+     * @throws DbException if all the pages are dirty
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        //驱逐出bufferpool存的一个page（并且不能是dirty的page）
-
-        assert numPages == pid2pages.size() : "There is no need to evict page";
-
-        //用于寻找并存放最老的pageid及其age
-        PageId pageId = null;
-        int oldestAge = -1;
-
-        // 寻找age最大的非dirty的page去驱逐出去
-        for (PageId pid: id2age.keySet())
-        {
-            Page page = pid2pages.get(pid);
-            if (page.isDirty() != null)//非dirty
-                continue;
-
-            if (pageId == null)
-            {
-                pageId = pid;
-                oldestAge = id2age.get(pid);
-                continue;
+        //驱逐出bufferpool存的page（不能是dirty或被pin住的page），由置换策略选出牺牲页
+        EvictionPolicy.Evictable evictable = new EvictionPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                PageTable.Frame frame = pageTable.get(pid);
+                return frame == null || (!frame.isPinned() && frame.page.isDirty() == null);
             }
-
-            if (id2age.get(pid) < oldestAge)
-            {
-                pageId = pid;
-                oldestAge = id2age.get(pid);
+        };
+        //之前因为页被pin住而超出容量时，一直驱逐到低于容量为止
+        while (pageTable.size() >= numPages) {
+            if (evictOne(evictable))
+                continue;
+            //有干净但被pin住的页时暂时超出容量；否则对应着所有page都是dirty的情况
+            for (PageTable.Frame frame : pageTable.frames()) {
+                if (frame.isPinned() && frame.page.isDirty() == null)
+                    return;
             }
-        }
-
-        //如果没找到：对应着所有page都是dirty的情况
-        if (pageId == null)
             throw  new DbException("failed to evict page: all pages are dirty");
-        Page page = pid2pages.get(pageId);
+        }
+    }
 
-        //把找到的这个page从缓冲池中驱逐掉
-        pid2pages.remove(pageId);
-        id2age.remove(pageId);
+    /**
+     * @return true if a page was evicted
+     */
+    private boolean evictOne(EvictionPolicy.Evictable evictable) {
+        //置换策略选出牺牲页之后，该页可能又被别的线程pin住或弄脏（或已被丢弃），此时换一页重试
+        for (int attempt = 0; attempt <= numPages; attempt++) {
+            PageId victim = evictionPolicy.evict(evictable);
 
+            //如果没找到：所有page都是dirty或被pin住的
+            if (victim == null)
+                return false;
 
+            //把找到的这个page从缓冲池中驱逐掉
+            if (pageTable.evict(victim))
+                return true;
+            //还在缓存里的页交还给置换策略，不算作一次访问；已不在缓存里的页置换策略也已不再跟踪
+            if (pageTable.get(victim) != null)
+                evictionPolicy.evictionFailed(victim);
+        }
+        return false;
     }
 }
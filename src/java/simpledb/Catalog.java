@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
@@ -29,6 +30,10 @@ public class Catalog {
     private HashMap<Integer,String> id2name;
     private HashMap<Integer, String> id2pkeyField;
     private HashMap<String, Integer> name2id;
+    /**
+     * 每个表上的二级索引；索引文件也登记在id2file里，以便缓冲池按页读写，但不算作表
+     */
+    private HashMap<Integer, List<SecondaryIndex>> id2indexes;
 
     /**
      * Constructor.
@@ -43,6 +48,7 @@ public class Catalog {
         id2pkeyField = new HashMap<>();
         id2name = new HashMap<>();
         name2id = new HashMap<>();
+        id2indexes = new HashMap<>();
     }
 
     /**
@@ -70,6 +76,11 @@ public class Catalog {
             id2pkeyField.remove(nowId);
             id2name.remove(nowId);
             name2id.remove(name);
+            List<SecondaryIndex> indexes = id2indexes.remove(nowId);
+            if (indexes != null) {
+                for (SecondaryIndex index : indexes)
+                    id2file.remove(index.getFile().getId());
+            }
         }
         //添加新表
         id2file.put(fileId, file);
@@ -78,6 +89,38 @@ public class Catalog {
         name2id.put(name, fileId);
     }
 
+    /**
+     * Add a secondary index to a table of the catalog. From then on, tuples
+     * inserted into or deleted from the table through the BufferPool are
+     * added to or removed from the index.
+     * @param index the index to add; the table it indexes must be in the catalog
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public void addIndex(SecondaryIndex index) {
+        int tableid = index.getTableId();
+        if (!id2name.containsKey(tableid))
+            throw new NoSuchElementException("tableid doesn't exist");
+        List<SecondaryIndex> indexes = id2indexes.get(tableid);
+        if (indexes == null) {
+            indexes = new ArrayList<SecondaryIndex>();
+            id2indexes.put(tableid, indexes);
+        }
+        indexes.add(index);
+        id2file.put(index.getFile().getId(), index.getFile());
+    }
+
+    /**
+     * Returns the secondary indexes of the specified table
+     * @param tableid The id of the table
+     * @return the indexes, which may be an empty list
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = id2indexes.get(tableid);
+        if (indexes == null)
+            return Collections.emptyList();
+        return Collections.unmodifiableList(indexes);
+    }
+
     public void addTable(DbFile file, String name) {
         addTable(file, name, "");
     }
@@ -150,13 +193,24 @@ public class Catalog {
         return id2name.get(id);
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog and release their file handles */
     public void clear() {
         // some code goes here
+        //关闭各个表常开的文件句柄
+        for (DbFile file : id2file.values()) {
+            if (file instanceof Closeable) {
+                try {
+                    ((Closeable) file).close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
         id2name.clear();
         id2pkeyField.clear();
         id2file.clear();
         name2id.clear();
+        id2indexes.clear();
     }
     
     /**
@@ -170,7 +224,9 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type [pk] [index], field type, ...) [mmap]
+                //a trailing "mmap" serves the table's pages from a memory mapping
+                //"index" keeps a B+ tree index of the field in the file name.field.idx
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -178,6 +234,7 @@ public class Catalog {
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                ArrayList<Integer> indexed = new ArrayList<Integer>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -189,11 +246,13 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    for (int i = 2; i < els2.length; i++) {
+                        if (els2[i].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[i].trim().equals("index"))
+                            indexed.add(names.size() - 1);
                         else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown annotation " + els2[i]);
                             System.exit(0);
                         }
                     }
@@ -202,12 +261,34 @@ public class Catalog {
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String option = line.substring(line.indexOf(")") + 1).trim();
+                if (option.toLowerCase().equals("mmap"))
+                    tabHf.setMemoryMapped(true);
+                else if (option.length() > 0) {
+                    System.out.println("Unknown table option " + option);
+                    System.exit(0);
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                for (int field : indexed) {
+                    File indexFile = new File(baseFolder+"/"+name + "." + namesAr[field] + ".idx");
+                    SecondaryIndex index = new SecondaryIndex(tabHf, field, indexFile);
+                    addIndex(index);
+                    //索引文件不存在（或为空）时由表的内容建立
+                    if (indexFile.length() == 0)
+                        index.build();
+                    System.out.println("Added index : " + name + "." + namesAr[field]);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
+        } catch (DbException e) {
+            e.printStackTrace();
+            System.exit(0);
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+            System.exit(0);
         } catch (IndexOutOfBoundsException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * CLOCK (second chance) replacement.  Resident pages sit in a ring of slots,
+ * each with a reference bit; a hit only sets the bit, and eviction sweeps the
+ * hand around the ring clearing bits until it finds an unreferenced page the
+ * BufferPool is willing to give up.
+ * <p>
+ * Cache hits are lock free, and the amortized cost of an eviction is O(1)
+ * instead of a scan over the whole pool.  Pages enter the ring with their
+ * reference bit cleared, so a page touched exactly once (e.g. by a large
+ * sequential scan) is the first thing the hand reclaims while repeatedly
+ * used pages get their second chance.
+ *
+ * @Threadsafe
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private final ConcurrentHashMap<PageId, Integer> slotOf;
+    private PageId[] ring;
+    private volatile AtomicIntegerArray referenced;
+    private int[] freeSlots;
+    private int numFree;
+    private int hand;
+
+    /**
+     * Create a CLOCK policy for a pool of (roughly) the given size.  The ring
+     * grows if the pool temporarily holds more pages than that.
+     *
+     * @param capacity the number of pages in the BufferPool
+     */
+    public ClockEvictionPolicy(int capacity) {
+        int size = Math.max(capacity, 1);
+        slotOf = new ConcurrentHashMap<PageId, Integer>(size);
+        ring = new PageId[size];
+        referenced = new AtomicIntegerArray(size);
+        freeSlots = new int[size];
+        for (int i = 0; i < size; i++)
+            freeSlots[i] = size - 1 - i;
+        numFree = size;
+        hand = 0;
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (slotOf.containsKey(pid))
+            return;
+        if (numFree == 0)
+            grow();
+        int slot = freeSlots[--numFree];
+        ring[slot] = pid;
+        referenced.set(slot, 0);
+        slotOf.put(pid, slot);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null)
+            referenced.set(slot, 1);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null)
+            release(slot);
+    }
+
+    public void evictionFailed(PageId pid) {
+        // pages enter the ring unreferenced, so this is just a reload
+        pageLoaded(pid);
+    }
+
+    public synchronized PageId evict(Evictable evictable) {
+        // two full turns: the first may only clear reference bits
+        for (int step = 0; step < 2 * ring.length; step++) {
+            int slot = hand;
+            hand = (hand + 1) % ring.length;
+            PageId pid = ring[slot];
+            if (pid == null)
+                continue;
+            if (referenced.getAndSet(slot, 0) == 1)
+                continue;
+            if (!evictable.canEvict(pid))
+                continue;
+            slotOf.remove(pid);
+            release(slot);
+            return pid;
+        }
+        return null;
+    }
+
+    private void release(int slot) {
+        ring[slot] = null;
+        referenced.set(slot, 0);
+        freeSlots[numFree++] = slot;
+    }
+
+    private void grow() {
+        int oldSize = ring.length;
+        int newSize = oldSize * 2;
+        PageId[] newRing = new PageId[newSize];
+        AtomicIntegerArray newReferenced = new AtomicIntegerArray(newSize);
+        System.arraycopy(ring, 0, newRing, 0, oldSize);
+        for (int i = 0; i < oldSize; i++)
+            newReferenced.set(i, referenced.get(i));
+        int[] newFree = new int[newSize];
+        for (int i = newSize - 1; i >= oldSize; i--)
+            newFree[numFree++] = i;
+        ring = newRing;
+        referenced = newReferenced;
+        freeSlots = newFree;
+    }
+}
@@ -0,0 +1,59 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool should give up
+ * when it needs room for a new one.  The BufferPool tells the policy about
+ * every page that enters the pool, every cache hit and every page that
+ * leaves the pool for some other reason (discard, abort); the policy in turn
+ * nominates victims on request.
+ * <p>
+ * Implementations must be safe to call from multiple threads; they are
+ * never called while the BufferPool holds a global lock.
+ *
+ * @see BufferPool
+ * @see ClockEvictionPolicy
+ * @see TwoQueueEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Callback used by {@link #evict} to ask the BufferPool whether a
+     * candidate may actually be removed (e.g. it is not dirty).
+     */
+    public interface Evictable {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Record that the page with the given id was just read into the pool.
+     */
+    public void pageLoaded(PageId pid);
+
+    /**
+     * Record a cache hit on a page that is already resident.
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Forget about a page that was removed from the pool by the BufferPool
+     * itself rather than through {@link #evict}.
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Track again a victim returned by {@link #evict} that the BufferPool
+     * could not remove after all (another thread pinned or dirtied it in the
+     * meantime).  Unlike {@link #pageLoaded}, this does not count as an access
+     * to the page.
+     */
+    public void evictionFailed(PageId pid);
+
+    /**
+     * Choose a victim and stop tracking it.
+     *
+     * @param evictable filter rejecting pages that must stay resident
+     * @return the id of the page to evict, or null if every tracked page was
+     *   rejected by the filter
+     */
+    public PageId evict(Evictable evictable);
+}
@@ -0,0 +1,326 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * ExternalSort is an operator that sorts the tuples of its child in ascending
+ * order of one field, like OrderBy, but with a bounded amount of memory.
+ * <p>
+ * Tuples are collected in runs of at most runSize tuples. If the child has no
+ * more tuples than that, the run is sorted in memory; otherwise every run is
+ * sorted and spilled to a temporary file, and the runs are merged, at most
+ * MERGE_FAN_IN of them at a time, while the tuples are read.
+ */
+public class ExternalSort extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The default maximum number of tuples held in memory */
+    public static final int DEFAULT_RUN_SIZE = 100000;
+
+    /** The maximum number of runs merged in one pass */
+    static final int MERGE_FAN_IN = 64;
+
+    private OpIterator child;
+    private final TupleDesc td;
+    private final int sortField;
+    private final int runSize;
+    private final FieldComparator comparator;
+
+    // the child's tuples, if they all fit in one run
+    private ArrayList<Tuple> childTups;
+    private Iterator<Tuple> it;
+
+    // otherwise the sorted runs on disk, and a reader on each of them
+    private ArrayList<Run> runs;
+    private PriorityQueue<RunReader> readers;
+
+    /**
+     * Creates a new ExternalSort node over the tuples from the iterator.
+     *
+     * @param sortField
+     *            the field to which the sort is applied.
+     * @param child
+     *            the tuples to sort.
+     * @param runSize
+     *            the maximum number of tuples to hold in memory.
+     */
+    public ExternalSort(int sortField, OpIterator child, int runSize) {
+        if (runSize < 1)
+            throw new IllegalArgumentException("run size must be positive");
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.sortField = sortField;
+        this.runSize = runSize;
+        this.comparator = new FieldComparator(sortField);
+    }
+
+    /**
+     * Creates a new ExternalSort node with the default run size.
+     */
+    public ExternalSort(int sortField, OpIterator child) {
+        this(sortField, child, DEFAULT_RUN_SIZE);
+    }
+
+    public int getSortField() {
+        return sortField;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+        runs = new ArrayList<Run>();
+        try {
+            while (child.hasNext()) {
+                buffer.add(child.next());
+                if (buffer.size() == runSize) {
+                    runs.add(spill(buffer));
+                    buffer.clear();
+                }
+            }
+            if (runs.isEmpty()) {
+                // everything fits in memory, sort it there
+                Collections.sort(buffer, comparator);
+                childTups = buffer;
+                it = childTups.iterator();
+            } else {
+                if (!buffer.isEmpty())
+                    runs.add(spill(buffer));
+                // merge until the remaining runs can be read side by side
+                while (runs.size() > MERGE_FAN_IN) {
+                    ArrayList<Run> merged = new ArrayList<Run>();
+                    for (int i = 0; i < runs.size(); i += MERGE_FAN_IN)
+                        merged.add(merge(runs.subList(i, Math.min(i + MERGE_FAN_IN, runs.size()))));
+                    runs = merged;
+                }
+                openReaders();
+            }
+        } catch (IOException e) {
+            deleteRuns();
+            throw new DbException("external sort failed: " + e.getMessage());
+        }
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        it = null;
+        childTups = null;
+        deleteRuns();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (childTups != null) {
+            it = childTups.iterator();
+            return;
+        }
+        try {
+            openReaders();
+        } catch (IOException e) {
+            throw new DbException("external sort failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns tuples from the child operator
+     * in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null)
+            return it.hasNext() ? it.next() : null;
+        if (readers == null || readers.isEmpty())
+            return null;
+        RunReader r = readers.poll();
+        Tuple t = r.head;
+        try {
+            if (r.advance())
+                readers.add(r);
+            else
+                r.close();
+        } catch (IOException e) {
+            throw new DbException("external sort failed: " + e.getMessage());
+        }
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+    /** Orders tuples by one field, ascending */
+    private static class FieldComparator implements Comparator<Tuple> {
+        final int field;
+
+        FieldComparator(int field) {
+            this.field = field;
+        }
+
+        public int compare(Tuple a, Tuple b) {
+            Field fa = a.getField(field);
+            Field fb = b.getField(field);
+            if (fa.compare(Predicate.Op.EQUALS, fb))
+                return 0;
+            return fa.compare(Predicate.Op.GREATER_THAN, fb) ? 1 : -1;
+        }
+    }
+
+    /** A sorted run of tuples in a temporary file */
+    private static class Run {
+        final File file;
+        final int count;
+
+        Run(File file, int count) {
+            this.file = file;
+            this.count = count;
+        }
+    }
+
+    /** Reads the tuples of a run back in order */
+    private class RunReader {
+        final DataInputStream dis;
+        final int index;
+        int remaining;
+        Tuple head;
+
+        RunReader(Run run, int index) throws IOException {
+            this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file)));
+            this.index = index;
+            this.remaining = run.count;
+        }
+
+        /** Read the next tuple of the run into head; returns false at the end of the run */
+        boolean advance() throws IOException {
+            if (remaining == 0)
+                return false;
+            remaining--;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(dis));
+            } catch (ParseException e) {
+                throw new IOException("corrupt sort run: " + e.getMessage());
+            }
+            head = t;
+            return true;
+        }
+
+        void close() {
+            try {
+                dis.close();
+            } catch (IOException e) {
+                // the run is deleted anyway
+            }
+        }
+    }
+
+    /** Sort the buffered tuples and write them to a new run */
+    private Run spill(ArrayList<Tuple> buffer) throws IOException {
+        Collections.sort(buffer, comparator);
+        File file = File.createTempFile("sortrun", ".dat");
+        file.deleteOnExit();
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            for (Tuple t : buffer)
+                write(dos, t);
+        } finally {
+            dos.close();
+        }
+        return new Run(file, buffer.size());
+    }
+
+    /** Merge some runs into a new run and delete them */
+    private Run merge(List<Run> group) throws IOException {
+        PriorityQueue<RunReader> queue = newQueue(group.size());
+        int count = 0;
+        for (int i = 0; i < group.size(); i++) {
+            RunReader r = new RunReader(group.get(i), i);
+            if (r.advance())
+                queue.add(r);
+            else
+                r.close();
+            count += group.get(i).count;
+        }
+        File file = File.createTempFile("sortrun", ".dat");
+        file.deleteOnExit();
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            while (!queue.isEmpty()) {
+                RunReader r = queue.poll();
+                write(dos, r.head);
+                if (r.advance())
+                    queue.add(r);
+                else
+                    r.close();
+            }
+        } finally {
+            dos.close();
+            for (RunReader r : queue)
+                r.close();
+        }
+        for (Run run : group)
+            run.file.delete();
+        return new Run(file, count);
+    }
+
+    private void write(DataOutputStream dos, Tuple t) throws IOException {
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(dos);
+    }
+
+    /** (Re)start reading the runs from their beginning */
+    private void openReaders() throws IOException {
+        closeReaders();
+        readers = newQueue(runs.size());
+        for (int i = 0; i < runs.size(); i++) {
+            RunReader r = new RunReader(runs.get(i), i);
+            if (r.advance())
+                readers.add(r);
+            else
+                r.close();
+        }
+    }
+
+    private void closeReaders() {
+        if (readers != null) {
+            for (RunReader r : readers)
+                r.close();
+            readers = null;
+        }
+    }
+
+    private void deleteRuns() {
+        closeReaders();
+        if (runs != null) {
+            for (Run run : runs)
+                run.file.delete();
+            runs = null;
+        }
+    }
+
+    /** A queue of run readers ordered by their head tuple, ties broken by run order */
+    private PriorityQueue<RunReader> newQueue(int size) {
+        return new PriorityQueue<RunReader>(Math.max(1, size), new Comparator<RunReader>() {
+            public int compare(RunReader a, RunReader b) {
+                int cmp = comparator.compare(a.head, b.head);
+                return cmp != 0 ? cmp : a.index - b.index;
+            }
+        });
+    }
+}
@@ -0,0 +1,211 @@
+package simpledb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileHandle keeps a FileChannel on the file backing a DbFile open for the
+ * lifetime of the DbFile, so that buffer pool misses do not pay for an
+ * open/close pair per page.
+ * <p>
+ * All I/O is positional: reads and writes name their file offset instead of
+ * seeking a shared file pointer, so concurrent readers of the same file do
+ * not serialize.  The channel is opened on first use and reopened if it was
+ * closed, either by {@link #close()} or because a thread blocked in I/O on
+ * it was interrupted.
+ * <p>
+ * An interrupt closes the channel for every thread using it, so the interrupt
+ * flag is cleared while a thread does I/O, and set again afterwards.  A thread
+ * interrupted in the middle of the I/O gets an InterruptedIOException; the
+ * other threads retry on a fresh channel.
+ *
+ * @Threadsafe
+ */
+class FileHandle implements Closeable {
+
+    private final File file;
+    private volatile FileChannel channel;
+
+    FileHandle(File file) {
+        this.file = file;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch != null && ch.isOpen())
+            return ch;
+        synchronized (this) {
+            if (channel == null || !channel.isOpen())
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            return channel;
+        }
+    }
+
+    /** An operation on the channel. */
+    private interface Io<T> {
+        T run(FileChannel ch) throws IOException;
+    }
+
+    private <T> T run(Io<T> io) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            try {
+                return io.run(channel());
+            } catch (ClosedByInterruptException e) {
+                throw interrupted(e);
+            } catch (ClosedChannelException e) {
+                // closed underneath us; retry once on a fresh channel
+                try {
+                    return io.run(channel());
+                } catch (ClosedByInterruptException e2) {
+                    throw interrupted(e2);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The channel was closed because this thread was interrupted; the next
+     * user reopens it.
+     */
+    private static InterruptedIOException interrupted(ClosedByInterruptException e) {
+        InterruptedIOException ie = new InterruptedIOException("interrupted during file I/O");
+        ie.initCause(e);
+        return ie;
+    }
+
+    /**
+     * Read up to buf.length bytes starting at the given file offset.  Fewer
+     * bytes are read only if the end of the file is reached.
+     *
+     * @return the number of bytes read, or -1 if offset is at or past the end
+     *   of the file
+     */
+    int read(final byte[] buf, final long offset) throws IOException {
+        return run(new Io<Integer>() {
+            public Integer run(FileChannel ch) throws IOException {
+                return readFully(ch, buf, offset);
+            }
+        });
+    }
+
+    private static int readFully(FileChannel ch, byte[] buf, long offset) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        while (bb.hasRemaining()) {
+            int n = ch.read(bb, offset + bb.position());
+            if (n < 0)
+                break;
+        }
+        return bb.position() == 0 && buf.length > 0 ? -1 : bb.position();
+    }
+
+    /**
+     * Write all of data starting at the given file offset, extending the file
+     * if needed.
+     */
+    void write(final byte[] data, final long offset) throws IOException {
+        run(new Io<Void>() {
+            public Void run(FileChannel ch) throws IOException {
+                writeFully(ch, data, offset);
+                return null;
+            }
+        });
+    }
+
+    private static void writeFully(FileChannel ch, byte[] data, long offset) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        while (bb.hasRemaining())
+            ch.write(bb, offset + bb.position());
+    }
+
+    /**
+     * Append data at the current end of the file.  Callers that append
+     * concurrently must serialize among themselves.
+     *
+     * @return the offset the data was written at
+     */
+    long append(byte[] data) throws IOException {
+        long offset = file.length();
+        write(data, offset);
+        return offset;
+    }
+
+    /**
+     * Cut the file down to size bytes.  Callers must make sure nobody reads or
+     * writes past the new end of the file concurrently.
+     */
+    void truncate(final long size) throws IOException {
+        run(new Io<Void>() {
+            public Void run(FileChannel ch) throws IOException {
+                ch.truncate(size);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Map the first size bytes of the file into memory, read-only.  The
+     * mapping stays valid after the handle is closed.
+     */
+    MappedByteBuffer map(final long size) throws IOException {
+        return run(new Io<MappedByteBuffer>() {
+            public MappedByteBuffer run(FileChannel ch) throws IOException {
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        });
+    }
+
+    /**
+     * Force the writes to the file, and its length, out to the disk.
+     */
+    void force() throws IOException {
+        run(new Io<Void>() {
+            public Void run(FileChannel ch) throws IOException {
+                ch.force(true);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Force the entries of a directory out to the disk, so that a file
+     * created in it or renamed into it is still there after a crash.  Some
+     * platforms cannot open a directory; the entries are left to the file
+     * system there.
+     */
+    static void forceDirectory(File dir) throws IOException {
+        FileChannel ch;
+        try {
+            ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            ch.force(true);
+        } catch (IOException e) {
+            // not supported for directories here
+        } finally {
+            ch.close();
+        }
+    }
+
+    /** Release the channel; it is reopened if the file is used again. */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile have at least one free
+ * slot, so that inserts can go straight to such a page instead of scanning
+ * the file from the start.
+ * <p>
+ * The map is only a hint.  Pages are scanned into it when it first sees
+ * them (on the first insert, and when the file grows behind the map's back)
+ * and then it is kept up to date by inserts, deletes and the pages restored
+ * by aborts, but a page it names may have filled up in the meantime;
+ * callers check the page itself and report what they find with
+ * {@link #update}.
+ *
+ * @Threadsafe
+ */
+class FreeSpaceMap {
+
+    private final ConcurrentSkipListSet<Integer> pagesWithSpace = new ConcurrentSkipListSet<Integer>();
+    private volatile int scannedPages = 0;
+
+    /** @return the number of pages, from the start of the file, scanned into the map */
+    int scannedPages() {
+        return scannedPages;
+    }
+
+    /** Record that the first numPages pages have been scanned into the map. */
+    void setScannedPages(int numPages) {
+        scannedPages = numPages;
+    }
+
+    /** Record whether a page has at least one free slot. */
+    void update(int pgNo, boolean hasSpace) {
+        if (hasSpace)
+            pagesWithSpace.add(pgNo);
+        else
+            pagesWithSpace.remove(pgNo);
+    }
+
+    /**
+     * Find a page believed to have a free slot.  Different hints lead
+     * concurrent inserters to different pages when several have room.
+     *
+     * @param hint the page number to start looking from; the search wraps
+     *   around to the start of the file
+     * @return a page number, or -1 if no page is known to have space
+     */
+    int find(int hint) {
+        Integer pgNo = pagesWithSpace.ceiling(hint);
+        if (pgNo == null) {
+            if (pagesWithSpace.isEmpty())
+                return -1;
+            try {
+                pgNo = pagesWithSpace.first();
+            } catch (java.util.NoSuchElementException e) {
+                return -1;
+            }
+        }
+        return pgNo;
+    }
+}
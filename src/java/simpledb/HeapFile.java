@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.*;
 
 /**
@@ -10,6 +13,20 @@ import java.util.*;
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
  * 
+ * <p>
+ * Tables that are loaded once and then only read can be put in memory-mapped
+ * mode with {@link #setMemoryMapped}: pages are then parsed straight out of a
+ * read-only mapping of the file instead of being copied into a fresh byte
+ * array first.  The first write to such a table switches it back to the
+ * copying read path; the pages parsed out of the mapping that are still in
+ * use are copied to the heap first, so that their tuples do not change under
+ * their readers.
+ * <p>
+ * Inserts are directed by a {@link FreeSpaceMap} of the pages that have
+ * free slots, built from the file on the first insert, so they do not
+ * scan (and lock) the file from page 0.  Each transaction starts its search
+ * at a different page so that concurrent inserters spread out.
+ * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
@@ -19,10 +36,19 @@ import java.util.*;
  * the number of pages in a file and to read a page from the file. You will then be able to fetch tuples from
  * a file stored on disk.
  */
-public class HeapFile implements DbFile {
+public class HeapFile implements DbFile, Closeable {
     //java的File类：代表磁盘实际存在的文件和目录
     private File file;
     private TupleDesc tupleDesc;
+    //在HeapFile的整个生命周期里保持打开的文件通道，按位置读写
+    private final FileHandle handle;
+    //是否用内存映射的方式读页（适合只读的表），以及当前的映射区
+    private volatile boolean memoryMapped = false;
+    private volatile MappedByteBuffer mapping;
+    //从映射区直接解析出来的页；丢弃映射区时把它们的字节复制到堆上 //protected by itself
+    private final List<WeakReference<HeapPage>> mappedPages = new ArrayList<WeakReference<HeapPage>>();
+    //记录哪些页还有空槽位，插入时直接定位到这些页
+    private final FreeSpaceMap freeSpace = new FreeSpaceMap();
 
 
     /**
@@ -36,6 +62,7 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.file=f;
         this.tupleDesc=td;
+        this.handle=new FileHandle(f);
     }
 
     /**
@@ -86,15 +113,19 @@ public class HeapFile implements DbFile {
         int tableId= pid.getTableId();
         int pgNo=pid.getPageNumber();
 
-        //定义随机访问文件的类对象
-        RandomAccessFile randomAccessFile=null;
-
         try {
-            //定义随机访问文件的类对象
-            randomAccessFile = new RandomAccessFile(file, "r");
-            int pos = pid.getPageNumber() * BufferPool.getPageSize();
-            randomAccessFile.seek(pos);
-            randomAccessFile.read(data, 0, data.length);
+            //内存映射模式：直接在映射区的切片上解析，不复制到堆上
+            if (memoryMapped) {
+                ByteBuffer slice = mappedPage(pgNo);
+                if (slice != null) {
+                    HeapPage page = mappedHeapPage((HeapPageId) pid, slice);
+                    if (page != null)
+                        return page;
+                }
+            }
+            //用常开的文件通道按位置读，不移动共享的文件指针
+            long pos = (long) pgNo * BufferPool.getPageSize();
+            handle.read(data, pos);
             heapPage=new HeapPage((HeapPageId) pid,data);
 
         } catch (IOException e) {
@@ -126,17 +157,199 @@ public class HeapFile implements DbFile {
         }
         int pgSize = BufferPool.getPageSize();
 
-        //在内存中存page
-        RandomAccessFile f = new RandomAccessFile(file,"rw");
-        // 在file里找到对应的page位置
-        f.seek((long) pgNo *pgSize);
+        // 这张表会被写入，不再适合内存映射，退回到复制的读路径
+        if (memoryMapped)
+            setMemoryMapped(false);
 
         // 从参数page里面拿出它的存储内容
         byte[] data = page.getPageData();
 
-        //将page里面的数据写到文件里
-        f.write(data);
-        f.close();
+        //将page里面的数据按位置写到文件里对应的page处
+        handle.write(data, (long) pgNo * pgSize);
+    }
+
+    /**
+     * Returns a page with at least one free slot, locked READ_WRITE, or null
+     * if no existing page has room.  Candidate pages come from the free-space
+     * map; pages found to be full are dropped from it.
+     */
+    private HeapPage findPageWithSpace(TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        int numPages = numPages();
+        if (freeSpace.scannedPages() < numPages)
+            scanFreeSpace(numPages);
+        if (numPages == 0)
+            return null;
+        //按事务id散列出一个起始页，让并发的插入者落到不同的页上
+        long h = tid.getId() * 0x9E3779B97F4A7C15L;
+        int hint = (int) Math.floorMod(h ^ (h >>> 32), (long) numPages);
+
+        int pgNo;
+        while ((pgNo = freeSpace.find(hint)) >= 0)
+        {
+            HeapPageId pid = new HeapPageId(getId(), pgNo);
+            boolean held = Database.getBufferPool().holdsLock(tid, pid);
+            //用读写的方式取出该page，注意传入tid事务参数
+            HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
+            //若该页有空位置，说明找到了
+            if(page.getNumEmptySlots()!=0)
+                return page;
+            //该页没有空位置，从空闲表中去掉；如果是刚为检查而加的锁，解锁即可
+            freeSpace.update(pgNo, false);
+            if (!held)
+                Database.getBufferPool().releasePage(tid,pid);
+        }
+        return null;
+    }
+
+    /**
+     * Appends an empty page to the file and returns it locked READ_WRITE.
+     */
+    private HeapPage appendEmptyPage(TransactionId tid)
+            throws IOException, DbException, TransactionAbortedException {
+        HeapPageId pid;
+        synchronized (this) {
+            //新建空页，写到disk
+            pid = new HeapPageId(getId(),numPages());
+            writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+            if (freeSpace.scannedPages() == pid.getPageNumber())
+                freeSpace.setScannedPages(pid.getPageNumber() + 1);
+        }
+        //先锁住新页，再让其他插入者通过空闲表看到它
+        HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
+        freeSpace.update(pid.getPageNumber(), true);
+        return page;
+    }
+
+    /**
+     * Extends the file by count empty pages with a single write of the last
+     * one; the gap before it reads back as zeroes, i.e. empty pages.  The new
+     * pages are not entered in the free-space map: the caller enters the ones
+     * it leaves room on.
+     *
+     * @return the page number of the first new page
+     */
+    private synchronized int appendEmptyPages(int count) throws IOException {
+        int first = numPages();
+        if (count > 0) {
+            int pgSize = BufferPool.getPageSize();
+            handle.write(HeapPage.createEmptyPageData(), (long) (first + count - 1) * pgSize);
+            if (freeSpace.scannedPages() == first)
+                freeSpace.setScannedPages(first + count);
+        }
+        return first;
+    }
+
+    /**
+     * Adds the pages the free-space map has not seen yet, up to numPages, by
+     * reading their slot bitmaps from disk without locking; the result is
+     * corrected as pages are visited.
+     */
+    private synchronized void scanFreeSpace(int numPages) {
+        for (int pgNo = freeSpace.scannedPages(); pgNo < numPages; pgNo++) {
+            HeapPage page = (HeapPage) readPage(new HeapPageId(getId(), pgNo));
+            if (page != null && page.getNumEmptySlots() > 0)
+                freeSpace.update(pgNo, true);
+        }
+        if (numPages > freeSpace.scannedPages())
+            freeSpace.setScannedPages(numPages);
+    }
+
+    /**
+     * Called by the BufferPool when it puts a page back the way it is on
+     * disk, because the transaction that changed it aborted: the page may
+     * have room again that the free-space map was told it does not.
+     */
+    void pageRestored(HeapPage page) {
+        if (page != null)
+            freeSpace.update(page.getId().getPageNumber(), page.getNumEmptySlots() > 0);
+    }
+
+    /**
+     * Releases the file handle held by this HeapFile.  It is reopened if the
+     * file is accessed again.
+     */
+    public void close() throws IOException {
+        mapping = null;
+        handle.close();
+    }
+
+    /**
+     * Turns memory-mapped reads on or off for this file.  Meant for tables
+     * that are only read after they are loaded; writing a page turns it off
+     * again.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        synchronized (mappedPages) {
+            this.memoryMapped = memoryMapped;
+            mapping = null;
+            for (WeakReference<HeapPage> ref : mappedPages) {
+                HeapPage page = ref.get();
+                if (page != null)
+                    page.detach();
+            }
+            mappedPages.clear();
+        }
+    }
+
+    /**
+     * Parses a page out of a slice of the mapping, and remembers it so that
+     * it can be detached from the mapping when the mapping is dropped.
+     *
+     * @return the page, or null if the mapping was dropped meanwhile
+     */
+    private HeapPage mappedHeapPage(HeapPageId pid, ByteBuffer slice) throws IOException {
+        synchronized (mappedPages) {
+            if (!memoryMapped)
+                return null;
+            HeapPage page = new HeapPage(pid, slice);
+            //顺便清掉已被回收的页的引用
+            if (mappedPages.size() >= 64 && Integer.bitCount(mappedPages.size()) == 1) {
+                Iterator<WeakReference<HeapPage>> it = mappedPages.iterator();
+                while (it.hasNext()) {
+                    if (it.next().get() == null)
+                        it.remove();
+                }
+            }
+            mappedPages.add(new WeakReference<HeapPage>(page));
+            return page;
+        }
+    }
+
+    /**
+     * Returns true if pages of this file are read through a memory mapping.
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Returns the bytes of page pgNo as a slice of the file mapping, mapping
+     * the file (again) if it grew past the current mapping.
+     *
+     * @return the page's bytes, or null if the page is past the end of the
+     *   file or the file is too large to map in one piece
+     */
+    private ByteBuffer mappedPage(int pgNo) throws IOException {
+        int pgSize = BufferPool.getPageSize();
+        long pos = (long) pgNo * pgSize;
+        MappedByteBuffer m = mapping;
+        if (m == null || pos + pgSize > m.capacity()) {
+            synchronized (this) {
+                m = mapping;
+                if (m == null || pos + pgSize > m.capacity()) {
+                    long len = file.length();
+                    if (pos + pgSize > len || len > Integer.MAX_VALUE)
+                        return null;
+                    m = handle.map(len);
+                    mapping = m;
+                }
+            }
+        }
+        ByteBuffer slice = m.duplicate();
+        slice.position((int) pos);
+        slice.limit((int) pos + pgSize);
+        return slice.slice();
     }
 
     /**
@@ -147,6 +360,74 @@ public class HeapFile implements DbFile {
         return (int) (file.length() / BufferPool.getPageSize());
     }
 
+    /**
+     * Inserts a batch of tuples on behalf of a transaction.  Tops up one page
+     * that still has free slots, then fills whole new pages appended to the
+     * end of the file, so each page is locked (and later logged and written)
+     * once per batch rather than once per tuple.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add; each is updated to reflect where it
+     *               is now stored
+     * @return An ArrayList contain the pages that were modified
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the file can't be extended
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> res = new ArrayList<>();
+        Iterator<Tuple> it = tuples.iterator();
+        if (!it.hasNext())
+            return res;
+
+        //先把一个还有空位的页填满
+        int remaining = tuples.size();
+        HeapPage page = findPageWithSpace(tid);
+        if (page != null) {
+            remaining -= fill(page, it);
+            res.add(page);
+        }
+        if (!it.hasNext())
+            return res;
+
+        //剩下的元组放进一次性追加到文件末尾的新页里
+        int perPage = new HeapPage(new HeapPageId(getId(), 0), HeapPage.createEmptyPageData()).getNumEmptySlots();
+        int newPages = (remaining + perPage - 1) / perPage;
+        int first = appendEmptyPages(newPages);
+        int pgNo = first;
+        try {
+            for (; pgNo < first + newPages && it.hasNext(); pgNo++) {
+                HeapPageId pid = new HeapPageId(getId(), pgNo);
+                page = (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
+                fill(page, it);
+                res.add(page);
+            }
+        } finally {
+            //没用上的新页（元组提前用完，或事务在此中止）交给空闲表；
+            //用过的页由fill登记，事务中止时由BufferPool恢复后重新登记
+            for (; pgNo < first + newPages; pgNo++)
+                freeSpace.update(pgNo, true);
+        }
+        //新页若在此期间被别的插入者用掉了一部分，剩下的逐个插入
+        while (it.hasNext())
+            res.addAll(insertTuple(tid, it.next()));
+        return res;
+    }
+
+    /**
+     * Inserts tuples from it into page until it is full or it runs out.
+     *
+     * @return the number of tuples inserted
+     */
+    private int fill(HeapPage page, Iterator<Tuple> it) throws DbException {
+        int free = page.getNumEmptySlots();
+        int n = 0;
+        for (; n < free && it.hasNext(); n++)
+            page.insertTuple(it.next());
+        freeSpace.update(page.getId().getPageNumber(), n < free);
+        return n;
+    }
+
     //从DbFile得到的帮助文档：
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
@@ -164,43 +445,18 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        HeapPage page  = null;
-
-        // 遍历整张表的所有数据页，然后判断数据页是否有空slot，有的话调用对应有空slot的page的insertTuple方法去插入页面
-        //下面这句话对pgNo遍历，paNo是pageNum，其实就是遍历所有page
-        for(int pgNo=0;pgNo<numPages();++pgNo)
-        {
-            //用读写的方式取出该page，注意传入tid事务参数
-            HeapPageId pid = new HeapPageId(getId(),pgNo);
-            page = (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
-            //若该页有空位置，说明找到了，跳出该遍历循环
-            if(page.getNumEmptySlots()!=0)
-            {
-                break;
-            }
-            //该页没有空位置，解锁即可
-            else
-            {
-                Database.getBufferPool().releasePage(tid,pid);
-            }
-        }
+        HeapPage page = findPageWithSpace(tid);
 
-        //说明上面的循环都遍历完了，也没找到能有空位置的
+        //没有哪一页还有空位置
         //在磁盘中创建一个空的数据页，再调用HeapPage的insertTuple方法进行插入
-        if(page == null || page.getNumEmptySlots() == 0)
+        if(page == null)
         {
-            //新建空页
-            HeapPageId pid = new HeapPageId(getId(),numPages());
-            byte[] data = HeapPage.createEmptyPageData();
-            HeapPage heapPage = new HeapPage(pid,data);
-            // 将这个新建的HeapPage写到disk
-            writePage(heapPage);
-            //令page为这个刚刚新建的数据页，与上面找到的有空槽的page一起，表示将要被插入tuple的页
-            page = (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
+            page = appendEmptyPage(tid);
         }
 
         //插入我们约定好的page（找到的或新建的）
         page.insertTuple(t);
+        freeSpace.update(page.getId().getPageNumber(), page.getNumEmptySlots() > 0);
 
         //return An ArrayList contain the pages that were modified
         ArrayList<Page> res = new ArrayList<>();
@@ -235,6 +491,7 @@ public class HeapFile implements DbFile {
 
         //调用对应page的deleteTuple函数
         page.deleteTuple(t);
+        freeSpace.update(pid.getPageNumber(), true);
 
         //return An ArrayList contain the pages that were modified
         ArrayList<Page> res = new ArrayList<>();
@@ -242,6 +499,22 @@ public class HeapFile implements DbFile {
         return res;
     }
 
+    /**
+     * Fetch one tuple of this file by its RecordId, as found in a secondary
+     * index. The page holding the tuple is read through the BufferPool with a
+     * read lock.
+     *
+     * @param tid The transaction reading the tuple
+     * @param rid The RecordId of the tuple
+     * @return the tuple, or null if its slot is empty
+     */
+    public Tuple getTuple(TransactionId tid, RecordId rid) throws DbException,
+            TransactionAbortedException {
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(),
+                Permissions.READ_ONLY);
+        return page.getTuple(rid.getTupleNumber());
+    }
+
     // see DbFile.java for javadocs
     /**
      * Returns an iterator over all the tuples stored in this DbFile. The
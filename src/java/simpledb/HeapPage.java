@@ -2,25 +2,43 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Tuples are decoded lazily: the page keeps the bytes it was read from, and
+ * a stored tuple is only created when it is first reached through
+ * {@link #iterator()}.  Its fields are in turn decoded straight from the
+ * page bytes, at offsets fixed by the TupleDesc, the first time
+ * {@link Tuple#getField} asks for them.  Scans that filter out most rows or
+ * project a few columns therefore never build the fields they do not look
+ * at.
  *
  * @see HeapFile
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements SlottedPage {
 
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
+    //已经生成（或新插入）的元组；被使用但仍为null的槽位还没有解码，其内容在raw里
     final Tuple tuples[];
     final int numSlots;
 
+    //读入该页时的原始字节（第一次被标记为脏时，映射区的字节会被复制到堆上）
+    private volatile ByteBuffer raw;
+    //元组内每个字段相对于元组起点的偏移
+    private final int fieldOffsets[];
+
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    //从内存映射文件读入的页，其before image就是映射区里的原始字节，
+    //直到该页第一次被标记为脏时才复制到堆上
+    ByteBuffer oldDataBuffer;
+    private final Object oldDataLock=new Object();
 
     //为后面的dirty相关函数添加对应的类属性
     private TransactionId dirtyId; //record that transaction that did the dirtying
@@ -44,27 +62,50 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data), data);
+    }
+
+    /**
+     * Create a HeapPage from the remaining bytes of a buffer, typically a
+     * slice of a memory-mapped file, without copying them to the heap.  The
+     * buffer must not change while the page is clean: it also serves as the
+     * page's before image until the page is first marked dirty.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, data, null);
+    }
+
+    /**
+     * @param array the array backing data, or null if data is a mapping of
+     *   the file; it is never written to, so it doubles as the before image
+     */
+    private HeapPage(HeapPageId id, ByteBuffer data, byte[] array) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.raw = data.slice();
+        if (raw.remaining() < getHeaderSize() + numSlots * td.getSize())
+            throw new EOFException("page data too short");
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        raw.duplicate().get(header);
+
+        // tuples are decoded on demand from raw
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
 
-        setBeforeImage();
+        synchronized(oldDataLock)
+        {
+            if (array != null)
+                oldData = array;
+            else
+                oldDataBuffer = raw.asReadOnlyBuffer();
+        }
     }
 
     /** Retrieve the number of tuples on this page.
@@ -98,9 +139,16 @@ public class HeapPage implements Page {
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
+            ByteBuffer oldDataBufferRef = null;
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
+                oldDataBufferRef = oldDataBuffer;
+            }
+            //映射区的字节之后可能被写回改掉，before image要用复制出来的
+            if (oldDataRef == null) {
+                oldDataRef = new byte[oldDataBufferRef.remaining()];
+                oldDataBufferRef.duplicate().get(oldDataRef);
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -114,10 +162,27 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = getPageData();
+        oldDataBuffer = null;
         }
     }
 
+    public int getHeaderOffset() {
+        return 0;
+    }
+
+    public int getSlotsOffset() {
+        return header.length;
+    }
+
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -127,37 +192,103 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple stored in a slot of this page
+     * @param slotId the slot, as in the RecordId of the tuple
+     * @return the tuple, or null if the slot is empty
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    public Tuple getTuple(int slotId) {
+        if (slotId < 0 || slotId >= numSlots || !isSlotUsed(slotId))
             return null;
+        return tupleAt(slotId);
+    }
+
+    /**
+     * Returns the tuple stored in a used slot, creating it on first access.
+     */
+    private Tuple tupleAt(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = new LazyTuple(slotId);
+            tuples[slotId] = t;
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * Offset of a slot's tuple from the start of the page.
+     */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
+    /**
+     * A tuple stored on this page whose fields are decoded from the page
+     * bytes when they are first asked for.
+     */
+    private class LazyTuple extends Tuple {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int slotId;
+        private volatile Field fields[];
+        private boolean modified;
+
+        LazyTuple(int slotId) {
+            super(td);
+            this.slotId = slotId;
+            setRecordId(new RecordId(pid, slotId));
+        }
+
+        private Field[] fieldArray() {
+            Field f[] = fields;
+            if (f == null) {
+                f = new Field[td.numFields()];
+                fields = f;
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            return f;
         }
 
-        return t;
+        public Field getField(int i) {
+            if (i < 0 || i >= td.numFields())
+                throw new NoSuchElementException("Field 索引值不合法");
+            Field f[] = fieldArray();
+            if (f[i] == null)
+                f[i] = td.getFieldType(i).parse(raw, slotOffset(slotId) + fieldOffsets[i]);
+            return f[i];
+        }
+
+        public void setField(int i, Field f) {
+            if (i < 0 || i >= td.numFields())
+                throw new NoSuchElementException("Field 索引值不合法");
+            fieldArray()[i] = f;
+            modified = true;
+        }
+
+        public Iterator<Field> fields() {
+            List<Field> all = new ArrayList<Field>(td.numFields());
+            for (int i = 0; i < td.numFields(); i++)
+                all.add(getField(i));
+            return all.iterator();
+        }
+
+        public String toString() {
+            List<String> str = new ArrayList<String>();
+            for (int i = 0; i < td.numFields(); i++) {
+                if (i < td.numFields() - 1)
+                    str.add(getField(i).toString() + '\t');
+                else
+                    str.add(getField(i).toString() + '\n');
+            }
+            return str.toString();
+        }
+
+        /**
+         * @return true if the tuple still matches the bytes of slot i of
+         *   page p (it may have been inserted into another page since)
+         */
+        boolean isUnmodifiedAt(HeapPage p, int i) {
+            return !modified && p == HeapPage.this && slotId == i;
+        }
     }
 
     /**
@@ -187,8 +318,24 @@ public class HeapPage implements Page {
         }
 
         // create the tuples
+        byte slotData[] = new byte[td.getSize()];
         for (int i=0; i<tuples.length; i++) {
 
+            // slot whose tuple was never changed: copy its bytes as read
+            Tuple t = tuples[i];
+            if (isSlotUsed(i) && (t == null
+                    || (t instanceof LazyTuple && ((LazyTuple) t).isUnmodifiedAt(this, i)))) {
+                ByteBuffer src = raw.duplicate();
+                src.position(slotOffset(i));
+                src.get(slotData);
+                try {
+                    dos.write(slotData);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // empty slot
             if (!isSlotUsed(i)) {
                 for (int j=0; j<td.getSize(); j++) {
@@ -260,14 +407,13 @@ public class HeapPage implements Page {
         RecordId recordId = t.getRecordId();
         if (recordId != null && pid.equals(recordId.getPageId()))
         {
-            for (int i = 0; i < numSlots; i++)
+            //RecordId直接给出了槽位号
+            int i = recordId.getTupleNumber();
+            if (i >= 0 && i < numSlots && isSlotUsed(i))
             {
-                if (isSlotUsed(i) && t.getRecordId().equals(tuples[i].getRecordId()))
-                {
-                    markSlotUsed(i, false);
-                    tuples[i] = null;
-                    return;
-                }
+                markSlotUsed(i, false);
+                tuples[i] = null;
+                return;
             }
             throw new DbException("deleteTuple: Error: tuple slot is empty");
         }
@@ -346,9 +492,31 @@ public class HeapPage implements Page {
 	// not necessary for lab1
         this.dirty  = dirty;
         this.dirtyId = tid;
+        //页将被修改并最终写回文件，写回会改动映射区，所以先把原始字节复制到堆上，
+        //作为before image和尚未解码的元组的来源
+        if (dirty)
+            detach();
 
     }
 
+    /**
+     * Copies the bytes of a page read from a memory mapping to the heap, so
+     * that later writes to the file change neither its tuples nor its before
+     * image.  Does nothing for a page read into a byte array.
+     */
+    void detach() {
+        synchronized(oldDataLock)
+        {
+            if (oldDataBuffer != null) {
+                byte[] copy = new byte[oldDataBuffer.remaining()];
+                oldDataBuffer.duplicate().get(copy);
+                raw = ByteBuffer.wrap(copy);
+                oldData = copy;
+                oldDataBuffer = null;
+            }
+        }
+    }
+
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
@@ -417,15 +585,32 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> filledTuples = new ArrayList<Tuple>();
-        for(int i=0;i<numSlots;++i){
-            if(isSlotUsed(i)){
-                filledTuples.add(tuples[i]);
+        //按槽位顺序逐个返回已使用槽位的元组，到访问时才生成
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < numSlots && !isSlotUsed(from))
+                    from++;
+                return from;
             }
 
-        }
-        return filledTuples.iterator();
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = tupleAt(next);
+                next = advance(next + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
 }
-
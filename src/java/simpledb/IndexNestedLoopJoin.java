@@ -0,0 +1,178 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin is an equality join whose inner relation is a B+ tree
+ * keyed on the join field. Instead of scanning the inner relation once per
+ * outer tuple, the outer tuples are read in batches of at most BATCH_SIZE,
+ * and the distinct join keys of a batch are looked up in the B+ tree in one
+ * left-to-right pass over its leaves.
+ * <p>
+ * The result holds the same tuples as Join, but ordered by the inner key
+ * within each batch of outer tuples.
+ *
+ * @see BTreeFile#indexIterator(TransactionId, List)
+ */
+public class IndexNestedLoopJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The maximum number of outer tuples looked up at once */
+    public static final int BATCH_SIZE = 1000;
+
+    private final TupleDesc comboTD;
+
+    // the outer tuples of the current batch by join key, and the matches of the batch
+    private final HashMap<Field, ArrayList<Tuple>> batch = new HashMap<Field, ArrayList<Tuple>>();
+    private transient DbFileIterator matches;
+    // the current inner tuple and the outer tuples still to be joined with it
+    private transient Tuple inner;
+    private transient Iterator<Tuple> outerIt;
+
+    /**
+     * Constructor. Accepts the children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; must be an
+     *            equality on the key field of the inner relation
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Scan of the right(inner) relation, which must be a BTreeFile
+     * @throws IllegalArgumentException
+     *             if the join cannot be answered from the B+ tree of child2
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, SeqScan child2) {
+        super(p, child1, child2);
+        if (!canIndex(p, child1, child2))
+            throw new IllegalArgumentException("join predicate cannot use the B+ tree of the inner relation");
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * Returns true if a join of child1 and child2 on p can look up the outer
+     * tuples in the B+ tree of child2: child2 scans a BTreeFile keyed on the
+     * second field of p, p is an equality, and both fields have the same type.
+     */
+    public static boolean canIndex(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!(child2 instanceof SeqScan) || p.getOperator() != Predicate.Op.EQUALS)
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) child2).getTableId());
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == p.getField2()
+                && child1.getTupleDesc().getFieldType(p.getField1())
+                        .equals(child2.getTupleDesc().getFieldType(p.getField2()));
+    }
+
+    private OpIterator outer() {
+        return getChildren()[0];
+    }
+
+    private SeqScan scan() {
+        return (SeqScan) getChildren()[1];
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /**
+     * The inner relation is read through its index rather than scanned
+     */
+    @Override
+    protected void openInner(OpIterator child2) {
+        reset();
+    }
+
+    public void close() {
+        super.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // Join.rewind() would restart the inner scan
+        outer().rewind();
+        reset();
+    }
+
+    private void reset() {
+        if (matches != null)
+            matches.close();
+        matches = null;
+        batch.clear();
+        inner = null;
+        outerIt = null;
+    }
+
+    /**
+     * Read the next batch of outer tuples and start looking up their keys
+     *
+     * @return false if there are no more outer tuples
+     */
+    private boolean loadBatch() throws DbException, TransactionAbortedException {
+        reset();
+        int fieldNo = getJoinPredicate().getField1();
+        int cnt = 0;
+        while (cnt < BATCH_SIZE && outer().hasNext()) {
+            Tuple t = outer().next();
+            Field key = t.getField(fieldNo);
+            ArrayList<Tuple> list = batch.get(key);
+            if (list == null) {
+                list = new ArrayList<Tuple>();
+                batch.put(key, list);
+            }
+            list.add(t);
+            cnt++;
+        }
+        if (cnt == 0)
+            return false;
+
+        ArrayList<Field> keys = new ArrayList<Field>(batch.keySet());
+        Collections.sort(keys, new Comparator<Field>() {
+            public int compare(Field a, Field b) {
+                if (a.compare(Predicate.Op.LESS_THAN, b))
+                    return -1;
+                return a.equals(b) ? 0 : 1;
+            }
+        });
+        SeqScan s = scan();
+        BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(s.getTableId());
+        matches = f.indexIterator(s.getTransactionId(), keys);
+        matches.open();
+        return true;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of an outer tuple and an inner tuple with
+     * the same key, as for Join.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (outerIt != null && outerIt.hasNext())
+                return merge(outerIt.next(), inner);
+            if (matches != null && matches.hasNext()) {
+                inner = matches.next();
+                outerIt = batch.get(inner.getField(getJoinPredicate().getField2())).iterator();
+                continue;
+            }
+            if (!loadBatch())
+                return null;
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        t.setRecordId(t1.getRecordId());
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+}
@@ -0,0 +1,163 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * IndexScan reads the tuples of a HeapFile table that match an IndexPredicate
+ * on an indexed field. It looks the predicate up in a SecondaryIndex of the
+ * table and fetches each tuple by the RecordId of its entry, so only the pages
+ * of the table that hold matching tuples are read.
+ * <p>
+ * The tuples are returned in the order of the index, sorted on the indexed
+ * field.
+ */
+public class IndexScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final IndexPredicate ipred;
+    private final String alias;
+    private final TupleDesc td;
+    private transient DbFileIterator it;
+    private boolean isOpen = false;
+
+    /**
+     * Creates a scan of a table through one of its indexes as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index of the table to scan
+     * @param tableAlias
+     *            the alias of this table (needed by the parser); the returned
+     *            tupleDesc has fields with name tableAlias.fieldName
+     * @param ipred
+     *            The predicate on the indexed field to match. If null, the scan
+     *            returns all tuples in the order of the index
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+        this.tid = tid;
+        this.index = index;
+        this.ipred = ipred;
+        this.alias = tableAlias;
+
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(index.getTableId());
+        Type[] types = new Type[tableTd.numFields()];
+        String[] names = new String[tableTd.numFields()];
+        for (int i = 0; i < tableTd.numFields(); i++) {
+            types[i] = tableTd.getFieldType(i);
+            names[i] = tableAlias + "." + tableTd.getFieldName(i);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the table name of the table the operator scans
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return index.getTableId();
+    }
+
+    /**
+     * @return the index this operator reads the table through
+     */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the index predicate the scan matches, or null if it returns all tuples
+     */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one OpIterator.");
+        it = new FetchIterator();
+        it.open();
+        isOpen = true;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.next();
+    }
+
+    public void close() {
+        if (it != null)
+            it.close();
+        it = null;
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * Reads the matching entries of the index and fetches the tuple of each
+     */
+    private class FetchIterator extends AbstractDbFileIterator {
+
+        private final HeapFile table = (HeapFile) Database.getCatalog().getDatabaseFile(index.getTableId());
+        private DbFileIterator entries;
+
+        public void open() throws DbException, TransactionAbortedException {
+            BTreeFile f = index.getFile();
+            entries = ipred == null ? f.iterator(tid) : f.indexIterator(tid, ipred);
+            entries.open();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (entries != null && entries.hasNext()) {
+                Tuple t = table.getTuple(tid, index.recordId(entries.next()));
+                if (t != null)
+                    return t;
+            }
+            return null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (entries != null)
+                entries.close();
+            entries = null;
+        }
+    }
+}
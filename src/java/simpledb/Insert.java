@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -10,6 +11,9 @@ public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** number of child tuples handed to the buffer pool at a time */
+    private static final int BATCH_SIZE = 1024;
+
     //根据构造函数，设计下面的属性：
     private TransactionId transactionId;
     private OpIterator child;
@@ -98,18 +102,27 @@ public class Insert extends Operator {
             return null;
 
         this.inserted = true;
-        while (this.child.hasNext())
+        //攒够一批再交给缓冲池，按页而不是按元组加锁
+        ArrayList<Tuple> batch = new ArrayList<Tuple>(BATCH_SIZE);
+        boolean more = true;
+        while (more)
         {
-            Tuple t = this.child.next();
-            try
-            {
-                Database.getBufferPool().insertTuple(this.transactionId, this.tableId, t);
-                this.count++;
-            }
-            catch (IOException e)
+            more = this.child.hasNext();
+            if (more)
+                batch.add(this.child.next());
+            if (batch.size() == BATCH_SIZE || (!more && !batch.isEmpty()))
             {
-                e.printStackTrace();
-                break;
+                try
+                {
+                    Database.getBufferPool().insertTuples(this.transactionId, this.tableId, batch);
+                    this.count += batch.size();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                    break;
+                }
+                batch = new ArrayList<Tuple>(BATCH_SIZE);
             }
         }
         Tuple t = new Tuple(this.td);
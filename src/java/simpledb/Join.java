@@ -74,10 +74,19 @@ public class Join extends Operator {
             TransactionAbortedException {
         // some code goes here
         child1.open();
-        child2.open();
+        openInner(child2);
         super.open();
     }
 
+    /**
+     * Opens the inner relation. Joins that do not scan the inner relation
+     * override this.
+     */
+    protected void openInner(OpIterator child2) throws DbException,
+            TransactionAbortedException {
+        child2.open();
+    }
+
     public void close() {
         // some code goes here
         super.close();
@@ -68,7 +68,12 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        // look the outer tuples up in batches when the inner relation is a B+ tree
+        // keyed on the join field
+        if (IndexNestedLoopJoin.canIndex(p, plan1, plan2))
+            j = new IndexNestedLoopJoin(p, plan1, (SeqScan) plan2);
+        else
+            j = new Join(p,plan1,plan2);
 
         return j;
 
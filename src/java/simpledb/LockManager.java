@@ -0,0 +1,415 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LockManager implements the page-level shared/exclusive locks used by
+ * BufferPool for strict two-phase locking.
+ * <p>
+ * Every locked page has a holder set and a FIFO queue of waiting requests.
+ * A request that cannot be granted immediately is queued and its thread is
+ * parked until a release hands the lock over, so blocked transactions do not
+ * burn CPU.  Requests are granted in arrival order, except that a shared
+ * holder asking to upgrade to exclusive goes to the front of the queue (it
+ * can only be granted once it is the sole holder anyway).
+ * <p>
+ * The lock table is striped by PageId hash; each stripe is protected by its
+ * own monitor, so requests for pages on different stripes never contend.
+ * The pages each transaction has locked are tracked as well, so releasing
+ * all of a transaction's locks only visits the pages it touched.
+ * <p>
+ * Deadlocks are detected with a {@link WaitsForGraph} that is kept up to
+ * date as requests queue up and locks change hands.  When a cycle forms,
+ * the youngest transaction on it (the one with the largest id, which has
+ * usually done the least work) is chosen as the victim and its pending
+ * request fails with a {@link DeadlockException}.  Transactions that are
+ * merely waiting a long time are never aborted.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    private static final int DEFAULT_STRIPES = 256;
+
+    /** A queued lock request. */
+    private static class Request {
+        final TransactionId tid;
+        final boolean exclusive;
+        final Thread thread;
+        volatile boolean granted;
+        volatile boolean aborted;
+
+        Request(TransactionId tid, boolean exclusive) {
+            this.tid = tid;
+            this.exclusive = exclusive;
+            this.thread = Thread.currentThread();
+        }
+    }
+
+    /** Holders and waiters of a single page. */
+    private static class LockState {
+        final PageId pid;
+        /** holder -> true if the holder has an exclusive lock */
+        final HashMap<TransactionId, Boolean> holders = new HashMap<TransactionId, Boolean>();
+        final ArrayDeque<Request> waiters = new ArrayDeque<Request>();
+
+        LockState(PageId pid) {
+            this.pid = pid;
+        }
+
+        boolean isFree() {
+            return holders.isEmpty() && waiters.isEmpty();
+        }
+
+        /** @return true if a request by tid conflicts with a lock held by other */
+        static boolean conflicts(TransactionId tid, boolean exclusive,
+                                 TransactionId other, boolean otherExclusive) {
+            return !tid.equals(other) && (exclusive || otherExclusive);
+        }
+
+        /** @return true if tid could be granted the lock right now */
+        boolean compatible(TransactionId tid, boolean exclusive) {
+            if (exclusive) {
+                return holders.isEmpty()
+                        || (holders.size() == 1 && holders.containsKey(tid));
+            }
+            if (holders.containsKey(tid))
+                return true;
+            return !holders.containsValue(Boolean.TRUE);
+        }
+
+    }
+
+    /** One stripe of the lock table. */
+    private static class Stripe {
+        final HashMap<PageId, LockState> locks = new HashMap<PageId, LockState>();
+    }
+
+    private final Stripe[] stripes;
+    private final WaitsForGraph waitsFor = new WaitsForGraph();
+    /** the pending request of every blocked transaction */
+    private final ConcurrentHashMap<TransactionId, Request> waiting =
+            new ConcurrentHashMap<TransactionId, Request>();
+    private final AtomicLong deadlocks = new AtomicLong(0);
+    /** the pages each transaction holds a lock on */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> lockedPages =
+            new ConcurrentHashMap<TransactionId, Set<PageId>>();
+
+    public LockManager() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param numStripes the number of independently synchronized partitions
+     *   of the lock table; rounded up to a power of two
+     */
+    public LockManager(int numStripes) {
+        int n = 1;
+        while (n < numStripes)
+            n <<= 1;
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i++)
+            stripes[i] = new Stripe();
+    }
+
+    private Stripe stripeFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    /**
+     * Acquire a lock on a page on behalf of a transaction, blocking until it
+     * is granted.
+     *
+     * @param tid the requesting transaction
+     * @param pid the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws DeadlockException if waiting for the lock would deadlock and
+     *   tid was chosen as the victim
+     * @throws TransactionAbortedException if the thread is interrupted while
+     *   it waits; the interrupt flag is left set
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        Stripe stripe = stripeFor(pid);
+        Request request;
+        synchronized (stripe) {
+            LockState state = stripe.locks.get(pid);
+            if (state == null) {
+                state = new LockState(pid);
+                stripe.locks.put(pid, state);
+            }
+            Boolean held = state.holders.get(tid);
+            if (held != null && (held || !exclusive))
+                return;
+            boolean upgrade = held != null;
+            // don't overtake transactions that are already waiting, unless
+            // this is an upgrade, which must not queue behind requests that
+            // are blocked by our own shared lock
+            if ((upgrade || state.waiters.isEmpty()) && state.compatible(tid, exclusive)) {
+                grant(state, tid, exclusive);
+                return;
+            }
+            request = new Request(tid, exclusive);
+            if (upgrade)
+                state.waiters.addFirst(request);
+            else
+                state.waiters.addLast(request);
+            waiting.put(tid, request);
+            updateWaits(state);
+        }
+
+        try {
+            while (!request.granted) {
+                if (request.aborted)
+                    throw new DeadlockException();
+                // park returns at once while the interrupt flag is set
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new TransactionAbortedException();
+                }
+                LockSupport.park(this);
+            }
+        } finally {
+            if (!request.granted)
+                cancel(stripe, pid, request);
+        }
+    }
+
+    /**
+     * Acquire a lock on a page on behalf of a transaction if that can be done
+     * without waiting.
+     *
+     * @param tid the requesting transaction
+     * @param pid the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @return true if tid holds the lock now, false if another transaction
+     *   holds or is waiting for a conflicting lock
+     */
+    public boolean tryAcquire(TransactionId tid, PageId pid, Permissions perm) {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            LockState state = stripe.locks.get(pid);
+            if (state == null) {
+                state = new LockState(pid);
+                stripe.locks.put(pid, state);
+            }
+            Boolean held = state.holders.get(tid);
+            if (held != null && (held || !exclusive))
+                return true;
+            if ((held != null || state.waiters.isEmpty()) && state.compatible(tid, exclusive)) {
+                grant(state, tid, exclusive);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Record that tid holds a lock on the page.  Caller must hold the
+     * stripe's monitor.
+     */
+    private void grant(LockState state, TransactionId tid, boolean exclusive) {
+        Boolean held = state.holders.get(tid);
+        state.holders.put(tid, exclusive || (held != null && held));
+        if (held == null) {
+            Set<PageId> pages = lockedPages.get(tid);
+            if (pages == null) {
+                Set<PageId> fresh = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+                pages = lockedPages.putIfAbsent(tid, fresh);
+                if (pages == null)
+                    pages = fresh;
+            }
+            pages.add(state.pid);
+        }
+    }
+
+    /**
+     * Hand the lock to waiters at the head of the queue, in order, then
+     * refresh the waits-for edges of those still waiting.  Caller must hold
+     * the stripe's monitor.
+     */
+    private void grantWaiters(LockState state) {
+        while (!state.waiters.isEmpty()) {
+            Request r = state.waiters.peekFirst();
+            if (!state.compatible(r.tid, r.exclusive))
+                break;
+            state.waiters.pollFirst();
+            grant(state, r.tid, r.exclusive);
+            waiting.remove(r.tid, r);
+            waitsFor.clearWaits(r.tid);
+            r.granted = true;
+            LockSupport.unpark(r.thread);
+        }
+        updateWaits(state);
+    }
+
+    /**
+     * Recompute the waits-for edges of every request queued on a page: a
+     * waiter waits for the holders it conflicts with and for the conflicting
+     * requests queued ahead of it.  Caller must hold the stripe's monitor.
+     */
+    private void updateWaits(LockState state) {
+        int position = 0;
+        for (Request r : state.waiters) {
+            HashSet<TransactionId> blockers = new HashSet<TransactionId>();
+            for (Map.Entry<TransactionId, Boolean> h : state.holders.entrySet()) {
+                if (LockState.conflicts(r.tid, r.exclusive, h.getKey(), h.getValue()))
+                    blockers.add(h.getKey());
+            }
+            int ahead = 0;
+            for (Request other : state.waiters) {
+                if (ahead++ == position)
+                    break;
+                if (LockState.conflicts(r.tid, r.exclusive, other.tid, other.exclusive))
+                    blockers.add(other.tid);
+            }
+            position++;
+            List<TransactionId> cycle = waitsFor.setWaits(r.tid, blockers);
+            if (cycle != null)
+                breakDeadlock(cycle);
+        }
+    }
+
+    /**
+     * Abort the youngest transaction on a waits-for cycle by failing its
+     * pending request.
+     */
+    private void breakDeadlock(List<TransactionId> cycle) {
+        Request victim = null;
+        for (TransactionId t : cycle) {
+            Request r = waiting.get(t);
+            if (r == null || r.granted)
+                return; // the cycle is already being broken
+            if (r.aborted)
+                return; // a victim was already chosen for this cycle
+            if (victim == null || t.getId() > victim.tid.getId())
+                victim = r;
+        }
+        deadlocks.incrementAndGet();
+        victim.aborted = true;
+        LockSupport.unpark(victim.thread);
+    }
+
+    /**
+     * @return the number of deadlocks detected (and broken) so far
+     */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    /**
+     * Withdraw a request that gave up waiting.  If it was granted in the
+     * meantime the lock is kept; the aborting transaction releases it along
+     * with the rest of its locks.
+     */
+    private void cancel(Stripe stripe, PageId pid, Request request) {
+        synchronized (stripe) {
+            waiting.remove(request.tid, request);
+            waitsFor.clearWaits(request.tid);
+            LockState state = stripe.locks.get(pid);
+            if (state == null)
+                return;
+            if (!state.waiters.remove(request) && request.granted) {
+                // lost the race with a release that granted us the lock; keep
+                // holding it, the caller's transaction is aborting anyway and
+                // will release everything
+                return;
+            }
+            grantWaiters(state);
+            if (state.isFree())
+                stripe.locks.remove(pid);
+        }
+    }
+
+    /**
+     * Release the lock a transaction holds on a page, if any, and wake up
+     * waiters that can now proceed.
+     *
+     * @return true if the transaction held a lock on the page
+     */
+    public boolean release(TransactionId tid, PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            LockState state = stripe.locks.get(pid);
+            if (state == null || state.holders.remove(tid) == null)
+                return false;
+            Set<PageId> pages = lockedPages.get(tid);
+            if (pages != null)
+                pages.remove(pid);
+            grantWaiters(state);
+            if (state.isFree())
+                stripe.locks.remove(pid);
+            return true;
+        }
+    }
+
+    /**
+     * Release every lock held by the given transaction.
+     */
+    public void releaseAll(TransactionId tid) {
+        Set<PageId> pages = lockedPages.remove(tid);
+        if (pages == null)
+            return;
+        for (PageId pid : pages) {
+            Stripe stripe = stripeFor(pid);
+            synchronized (stripe) {
+                LockState state = stripe.locks.get(pid);
+                if (state != null && state.holders.remove(tid) != null) {
+                    grantWaiters(state);
+                    if (state.isFree())
+                        stripe.locks.remove(pid);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a snapshot of the pages the transaction holds locks on
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Set<PageId> pages = lockedPages.get(tid);
+        if (pages == null)
+            return Collections.emptySet();
+        return new HashSet<PageId>(pages);
+    }
+
+    /** Return true if the transaction holds any lock on the page. */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            LockState state = stripe.locks.get(pid);
+            return state != null && state.holders.containsKey(tid);
+        }
+    }
+
+    /**
+     * @return the transaction holding an exclusive lock on the page, or null
+     *   if nobody does
+     */
+    public TransactionId getExclusiveHolder(PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            LockState state = stripe.locks.get(pid);
+            if (state == null)
+                return null;
+            for (Map.Entry<TransactionId, Boolean> e : state.holders.entrySet()) {
+                if (e.getValue())
+                    return e.getKey();
+            }
+            return null;
+        }
+    }
+}
@@ -4,6 +4,10 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.*;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,27 +36,71 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Group commit: </u>
+<p>
+
+Appending a record returns its log sequence number (LSN), the address
+in the log of the end of the record.  A committing
+transaction appends its records and then calls {@link #force(long)} on
+the LSN of its last record outside of the log monitor, so that others
+can append meanwhile.  One of the waiting threads forces the log, after
+waiting for at most the group commit delay for more records to come in,
+and the fsync covers everybody whose records were appended by then.
+
+<u> Recovery: </u>
+<p>
+
+The log keeps a dirty page table of the pages with logged updates that
+may not have reached the disk yet, along with the address of the first
+such record, and the BufferPool tells it when a page was written out.
+Checkpoints write the table along with the active transactions, and
+{@link #recover} runs in three passes: analysis reads forward from the
+last checkpoint to rebuild both tables as of the crash; redo repeats
+history from the oldest record of a dirty page, skipping the records of
+pages that were written out after them, with the changes partitioned by
+page among a few worker threads; undo takes back the updates of the
+transactions that were still running, newest first.  Every update taken
+back, during recovery or a rollback, is logged as a compensation log
+record (CLR) that is only ever redone, so a crash during recovery does
+not undo anything twice.
+
+<u> Checkpoints: </u>
+<p>
+
+Checkpoints are fuzzy: they only write the active transaction table and
+the dirty page table, without flushing the BufferPool, so transactions
+go on while one is taken.  Recovery redoes the updates of the pages in
+the dirty page table anyway, and a background writer in the BufferPool
+(see {@link BufferPool#startPageWriter}) trickles dirty pages to disk so
+that the table stays small.  With {@link #setCheckpointInterval} a
+daemon thread takes a checkpoint whenever that much log was written
+since the last one.
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file holds a long integer, the address of the last
+written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in fixed size segment files next to
+the log file (see {@link LogSegments}).  Records are addressed by their
+position in the sequence of all bytes ever appended to the log, which
+does not change when the segments at the head of the log are deleted.
+Log records are variable length, and may span segments.  The part of
+the last segment after the end of the log is zeros.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer address representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+CHECKPOINT and CLR
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,11 +109,25 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>DELTA records log an update of a {@link SlottedPage}, such as a
+HeapPage or a BTreeLeafPage, by the slots it inserted or deleted and
+the fields it changed.  They consist of the page class name and page
+id, as in the images of UPDATE records, followed by a serialized
+{@link PageDelta}.
+
+<li>CLR records log the undo of an UPDATE or DELTA record.  They consist
+of a long integer address of the record that was undone, the integer type
+of the change (UPDATE or DELTA), and the change that takes the update
+back, in the format of that type.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, and of the
+dirty page table.  The format of the record is an integer count of the
+number of transactions, as well as a long integer transaction id and a
+long integer first record address for each active transaction, followed
+by an integer count of dirty pages, and a page id (as in the images of
+UPDATE records) and a long integer address of the first record that may
+not be on disk for each dirty page.
 
 </ul>
 
@@ -74,7 +136,9 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final RandomAccessFile control; // holds the checkpoint address
+    final LogSegments segments;
+    private final Appender appender = new Appender(); //protected by this
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,17 +146,117 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    static final int DEFAULT_SEGMENT_SIZE = 4 << 20;
+    static final int APPEND_BUFFER_SIZE = 64 << 10;
+    static final int READ_BUFFER_SIZE = 16 << 10;
+
+    long currentOffset = -1;//protected by this; the address of the end of the log
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    private final Object forceLock = new Object();
+    private long forcedLsn = 0; // the log is on disk up to here //protected by forceLock
+    private boolean forcing = false; // a thread is forcing the log //protected by forceLock
+    private long forceCount = 0; //protected by forceLock
+    private volatile long groupCommitDelay = 0; // microseconds
+
+    // the dirty page table: the address of the first record of each page
+    // that may not be on disk //protected by this
+    HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+    // the LSN of the last record of each page in dirtyPages //protected by this
+    HashMap<PageId,Long> pageLsns = new HashMap<PageId,Long>();
+
+    private volatile int redoThreads =
+        Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final Object checkpointLock = new Object();
+    private volatile long checkpointInterval = 0; // bytes of log, 0 for no checkpoints
+    private volatile long checkpointLsn = 0; // where the last checkpoint started
+    private long checkpointCount = 0; //protected by this
+    private boolean checkpointDue = false; //protected by checkpointLock
+    private Thread checkpointer = null; //protected by checkpointLock
+
+    /** A change to one page, as logged by UPDATE, DELTA and CLR records:
+        the before and after images of the page, or a delta. */
+    static class PageChange {
+        final String pageClassName;
+        final PageId pid;
+        final byte[] before; // null for a delta
+        final byte[] after;
+        final PageDelta delta;
+
+        PageChange(String pageClassName, PageId pid, byte[] before, byte[] after) {
+            this.pageClassName = pageClassName;
+            this.pid = pid;
+            this.before = before;
+            this.after = after;
+            this.delta = null;
+        }
+
+        PageChange(String pageClassName, PageId pid, PageDelta delta) {
+            this.pageClassName = pageClassName;
+            this.pid = pid;
+            this.before = null;
+            this.after = null;
+            this.delta = delta;
+        }
+
+        /** @return the type of record the change is logged as */
+        int kind() {
+            return delta != null ? DELTA_RECORD : UPDATE_RECORD;
+        }
+
+        /** @return the image after the change; data is only read for a delta */
+        byte[] redo(byte[] data) {
+            return delta != null ? delta.redo(data) : after;
+        }
+
+        /** @return the image before the change; data is only read for a delta */
+        byte[] undo(byte[] data) {
+            return delta != null ? delta.undo(data) : before;
+        }
+
+        /** @return the change that takes this one back */
+        PageChange inverse() {
+            if (delta != null)
+                return new PageChange(pageClassName, pid, delta.inverse());
+            return new PageChange(pageClassName, pid, after, before);
+        }
+    }
+
+    /** A log record, as read back from the log */
+    static class LogRecord {
+        int type;
+        long tid;
+        long start; // the offset the record starts at
+        PageChange change; // UPDATE, DELTA and CLR records
+        long undone = -1; // CLR records: the start of the record undone
+        // CHECKPOINT records: the active transactions and their first
+        // records, and the dirty pages and their first records not on disk
+        LinkedHashMap<Long,Long> transactions;
+        LinkedHashMap<PageId,Long> dirtyPages;
+
+        public String toString() {
+            String s = start + ": type " + type + ", tid " + tid;
+            if (change != null)
+                s += ", page " + change.pid + (change.delta != null ? " (delta)" : "");
+            if (type == CLR_RECORD)
+                s += ", undoes " + undone;
+            if (type == CHECKPOINT_RECORD)
+                s += ", transactions " + transactions + ", dirty pages " + dirtyPages;
+            return s;
+        }
+    }
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,8 +269,18 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor, with the size of the segment files of the log.
+
+        @param f The log file's name
+        @param segmentSize The size of a segment file in bytes
+    */
+    public LogFile(File f, int segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        control = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,17 +301,117 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startLog();
         }
+        long interval = checkpointInterval;
+        if (interval > 0 && currentOffset - checkpointLsn >= interval) {
+            synchronized (checkpointLock) {
+                checkpointDue = true;
+                checkpointLock.notifyAll();
+            }
+        }
+    }
+
+    // throw out the old log, and start an empty one
+    private void startLog() throws IOException {
+        control.seek(0);
+        control.setLength(0);
+        control.writeLong(NO_CHECKPOINT_ID);
+        control.getChannel().force(false);
+        segments.deleteAll();
+        currentOffset = 0;
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the LSN of the end of the log */
+    public synchronized long getEndLsn() {
+        return currentOffset;
+    }
+
+    /** Set how long the thread forcing the log waits for more records
+        to be appended before it forces them all at once.  A longer
+        delay makes for fewer forces when many transactions commit at
+        the same time, at the cost of commit latency.
+
+        @param micros the delay in microseconds, 0 to force right away
+    */
+    public void setGroupCommitDelay(long micros) {
+        groupCommitDelay = micros;
+    }
+
+    /** Take a checkpoint in the background whenever the given amount of
+        log was written since the last one.  The checkpoint is taken by a
+        daemon thread, which is started on the first call and stops when
+        the interval is set back to 0.
+
+        @param bytes the amount of log between checkpoints, 0 for no
+        checkpoints in the background
+    */
+    public void setCheckpointInterval(long bytes) {
+        synchronized (checkpointLock) {
+            checkpointInterval = bytes;
+            checkpointLock.notifyAll();
+            if (bytes > 0 && checkpointer == null) {
+                checkpointer = new Thread(new Runnable() {
+                    public void run() {
+                        checkpoints();
+                    }
+                }, "log-checkpointer");
+                checkpointer.setDaemon(true);
+                checkpointer.start();
+            }
+        }
+    }
+
+    /** Take checkpoints as they come due, until the interval is set to 0 */
+    private void checkpoints() {
+        while (true) {
+            synchronized (checkpointLock) {
+                while (checkpointInterval > 0 && !checkpointDue) {
+                    try {
+                        checkpointLock.wait();
+                    } catch (InterruptedException e) {
+                        checkpointInterval = 0;
+                    }
+                }
+                if (checkpointInterval == 0) {
+                    checkpointer = null;
+                    return;
+                }
+                checkpointDue = false;
+            }
+            try {
+                logCheckpoint();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** @return the number of checkpoints taken */
+    public synchronized long getCheckpointCount() {
+        return checkpointCount;
+    }
+
+    /** Set the number of threads redoing updates during recovery.
+
+        @param n the number of threads, at least 1
+    */
+    public void setRedoThreads(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("need at least one redo thread");
+        redoThreads = n;
+    }
+
+    /** @return the number of times the log was forced to disk */
+    public long getForceCount() {
+        synchronized (forceLock) {
+            return forceCount;
+        }
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -158,10 +432,7 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                appendRecord(ABORT_RECORD, tid.getId());
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -173,32 +444,38 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            lsn = appendRecord(COMMIT_RECORD, tid.getId());
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        // wait for the commit record to reach the disk outside of the log
+        // monitor, along with those of other committing transactions
+        force(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  Updates of
+        slotted pages are written as DELTA records of the slots and
+        fields that changed instead.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
+        @return the LSN of the end of the record, to force the log up to
+        before the page is written
+
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
+        Debug.log("WRITE, offset = " + currentOffset);
         /* update record conists of
 
            record type
@@ -207,21 +484,188 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        String pageClassName = after.getClass().getName();
+        PageDelta delta = PageDelta.diff(before, after);
+        PageChange change;
+        if (delta != null)
+            change = new PageChange(pageClassName, after.getId(), delta);
+        else
+            change = new PageChange(pageClassName, after.getId(), before.getPageData(), after.getPageData());
+        long lsn = appendChange(tid.getId(), change, -1);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** Append an UPDATE or DELTA record of a change to a page, or a CLR
+        if the record takes back an earlier one, and enter the page in
+        the dirty page table.
+
+        @param undone the address of the record the change takes back, or
+        -1 if it is an update
+        @return the LSN of the end of the record
+    */
+    private long appendChange(long tid, PageChange change, long undone) throws IOException {
+        preAppend();
+        LogRecord r = new LogRecord();
+        r.type = undone < 0 ? change.kind() : CLR_RECORD;
+        r.tid = tid;
+        r.change = change;
+        r.undone = undone;
+        long start = currentOffset;
+        appendRecord(r);
+
+        if (!dirtyPages.containsKey(change.pid))
+            dirtyPages.put(change.pid, start);
+        pageLsns.put(change.pid, currentOffset);
+        return currentOffset;
+    }
+
+    /** @return true if the transaction began in the log, and did not
+        commit or abort yet */
+    public synchronized boolean isRunning(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /** Note that a page was written to disk, with the updates logged
+        up to the given LSN, so that recovery need not redo them.  Pages
+        updated again since stay in the dirty page table.
+
+        @param pid the page written
+        @param lsn the LSN returned when its last update was logged
+    */
+    public synchronized void pageFlushed(PageId pid, long lsn) {
+        Long last = pageLsns.get(pid);
+        if (last != null && last <= lsn) {
+            pageLsns.remove(pid);
+            dirtyPages.remove(pid);
+        }
+    }
+
+    /** Append a record without a body of the given type.
+
+        @return the LSN of the end of the record
+    */
+    private long appendRecord(int type, long tid) throws IOException {
+        LogRecord r = new LogRecord();
+        r.type = type;
+        r.tid = tid;
+        return appendRecord(r);
+    }
+
+    /** Append a record at the end of the log, followed by the address
+        it starts at.  The record is serialized into the append buffer,
+        which is written out when it fills up and at the end of the
+        record.
+
+        @return the LSN of the end of the record
+    */
+    private long appendRecord(LogRecord r) throws IOException {
+        long start = currentOffset;
+        Appender out = appender;
+        out.begin(start);
+        out.writeInt(r.type);
+        out.writeLong(r.tid);
+        switch (r.type) {
+        case UPDATE_RECORD:
+        case DELTA_RECORD:
+            writeChange(out, r.change);
+            break;
+        case CLR_RECORD:
+            out.writeLong(r.undone);
+            out.writeInt(r.change.kind());
+            writeChange(out, r.change);
+            break;
+        case CHECKPOINT_RECORD:
+            out.writeInt(r.transactions.size());
+            for (Map.Entry<Long,Long> e : r.transactions.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.writeInt(r.dirtyPages.size());
+            for (Map.Entry<PageId,Long> e : r.dirtyPages.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(e.getValue());
+            }
+            break;
+        }
+        out.writeLong(start);
+        currentOffset = out.end();
+        return currentOffset;
+    }
+
+    /** Read the record at the current position of in, leaving it
+        positioned after the record.
 
+        @throws EOFException if the log ends before the record does, or
+        there is no record (the rest of the segment is zeros)
+    */
+    LogRecord readRecord(LogReader in) throws IOException {
+        LogRecord r = new LogRecord();
+        r.start = in.position();
+        r.type = in.readInt();
+        if (r.type == 0)
+            throw new EOFException("end of log at " + r.start);
+        r.tid = in.readLong();
+        switch (r.type) {
+        case UPDATE_RECORD:
+        case DELTA_RECORD:
+            r.change = readChange(in, r.type);
+            break;
+        case CLR_RECORD:
+            r.undone = in.readLong();
+            r.change = readChange(in, in.readInt());
+            break;
+        case CHECKPOINT_RECORD:
+            r.transactions = new LinkedHashMap<Long,Long>();
+            int numXactions = in.readInt();
+            for (int i = 0; i < numXactions; i++)
+                r.transactions.put(in.readLong(), in.readLong());
+            r.dirtyPages = new LinkedHashMap<PageId,Long>();
+            int numPages = in.readInt();
+            for (int i = 0; i < numPages; i++)
+                r.dirtyPages.put(readPageId(in), in.readLong());
+            break;
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            break;
+        default:
+            throw new IOException("bad log record type " + r.type + " at address " + r.start);
+        }
+        if (in.readLong() != r.start)
+            throw new EOFException("record at " + r.start + " was cut short");
+        return r;
+    }
+
+    void writeChange(DataOutput out, PageChange change) throws IOException {
+        if (change.delta != null) {
+            out.writeUTF(change.pageClassName);
+            writePageId(out, change.pid);
+            change.delta.write(out);
+        } else {
+            writeImage(out, change.pageClassName, change.pid, change.before);
+            writeImage(out, change.pageClassName, change.pid, change.after);
+        }
+    }
+
+    PageChange readChange(DataInput in, int kind) throws IOException {
+        String pageClassName = in.readUTF();
+        PageId pid = readPageId(in);
+        if (kind == DELTA_RECORD)
+            return new PageChange(pageClassName, pid, PageDelta.read(in));
+        if (kind != UPDATE_RECORD)
+            throw new IOException("bad page change type " + kind);
+        byte[] before = new byte[in.readInt()];
+        in.readFully(before);
+        in.readUTF();
+        readPageId(in);
+        byte[] after = new byte[in.readInt()];
+        in.readFully(after);
+        return new PageChange(pageClassName, pid, before, after);
+    }
+
+    void writePageData(DataOutput raf, Page p) throws IOException{
         //page data is:
         // page class name
         // id class name
@@ -230,32 +674,43 @@ public class LogFile {
         // page class bytes
         // page class data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        writeImage(raf, p.getClass().getName(), p.getId(), p.getPageData());
+        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    }
 
+    void writeImage(DataOutput raf, String pageClassName, PageId pid, byte[] pageData) throws IOException {
         raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        writePageId(raf, pid);
+        raf.writeInt(pageData.length);
+        raf.write(pageData);
+    }
+
+    void writePageId(DataOutput raf, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
 
+        raf.writeUTF(pid.getClass().getName());
         raf.writeInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
             raf.writeInt(pageInfo[i]);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
+    Page readPageData(DataInput raf) throws IOException {
         String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        PageId pid = readPageId(raf);
+
+        int pageSize = raf.readInt();
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
 
+        //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+        return newPage(pageClassName, pid, pageData);
+    }
+
+    PageId readPageId(DataInput raf) throws IOException {
+        String idClassName = raf.readUTF();
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
 
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
             int numIdArgs = raf.readInt();
@@ -263,21 +718,55 @@ public class LogFile {
             for (int i = 0; i<numIdArgs;i++) {
                 idArgs[i] = new Integer(raf.readInt());
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            // use the constructor taking the ints written by PageId.serialize()
+            Constructor<?> idConst = idConsts[0];
+            for (Constructor<?> c : idConsts) {
+                if (c.getParameterTypes().length == numIdArgs) {
+                    idConst = c;
+                    break;
+                }
+            }
+            return (PageId)idConst.newInstance(idArgs);
+        } catch (ClassNotFoundException e){
+            e.printStackTrace();
+            throw new IOException();
+        } catch (IllegalArgumentException e) {
+            // no constructor takes the ints read, as in a torn record
+            throw new IOException("bad page id of class " + idClassName, e);
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
 
+    /** Create a page of the given class from its data */
+    Page newPage(String pageClassName, PageId pid, byte[] pageData) throws IOException {
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
             Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+            // pages may have several constructors; use the one that parses
+            // the bytes written by getPageData(), which for B+ tree pages
+            // also takes the key field
+            for (Constructor<?> c : pageConsts) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length == 2 && params[1] == byte[].class)
+                    return (Page)c.newInstance(pid, pageData);
+            }
+            for (Constructor<?> c : pageConsts) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length == 3 && params[1] == byte[].class && params[2] == int.class) {
+                    DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    return (Page)c.newInstance(pid, pageData, ((BTreeFile) f).keyField());
+                }
+            }
+            throw new IOException("no constructor to read a " + pageClassName + " from its data");
         } catch (ClassNotFoundException e){
             e.printStackTrace();
             throw new IOException();
@@ -291,8 +780,6 @@ public class LogFile {
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
-
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +794,100 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        appendRecord(BEGIN_RECORD, tid.getId());
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
-    public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
-            }
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: no pages are written, and the BufferPool is not locked. */
+    public synchronized void logCheckpoint() throws IOException {
+        //Debug.log("CHECKPOINT, offset = " + currentOffset);
+        preAppend();
+        checkpointLsn = currentOffset;
+        synchronized (checkpointLock) {
+            checkpointDue = false;
         }
+        long startCpOffset;
+        LogRecord cp = new LogRecord();
+        cp.type = CHECKPOINT_RECORD;
+        cp.tid = -1; //no tid , but leave space for convenience
+
+        //write list of outstanding transactions, and the pages
+        // whose updates may not be on disk
+        cp.transactions = new LinkedHashMap<Long,Long>(tidToFirstLogRecord);
+        cp.dirtyPages = new LinkedHashMap<PageId,Long>(dirtyPages);
+        startCpOffset = currentOffset;
+        appendRecord(cp);
+        force();
+
+        //once the CP is on disk, make sure the CP location in the log
+        // file is updated
+        control.seek(0);
+        control.writeLong(startCpOffset);
+        control.getChannel().force(false);
+        checkpointCount++;
+        //Debug.log("CP OFFSET = " + currentOffset);
 
         logTruncate();
     }
 
+    /** Checkpoint the log before the file of a table is replaced by a
+        rewritten one, like a compacted BTreeFile, whose pages the updates
+        of the table logged so far do not apply to.  The pages of the table
+        are dropped from the dirty page table first, so that recovery does
+        not redo any of those updates, on either file.  The caller must
+        have written the pages of committed transactions to the old file
+        and forced it, and no running transaction may have updated the
+        table.
+
+        @param tableid the table whose file is replaced
+    */
+    public synchronized void logCheckpoint(int tableid) throws IOException {
+        Iterator<PageId> it = dirtyPages.keySet().iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (pid.getTableId() == tableid) {
+                it.remove();
+                pageLsns.remove(pid);
+            }
+        }
+        logCheckpoint();
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  The log is kept from the oldest record that the last
+        checkpoint may need on, and the segments before the one that
+        record is in are deleted; no records are moved. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        control.seek(0);
+        long cpLoc = control.readLong();
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
+
+        LogRecord cp = readRecord(reader(cpLoc, currentOffset));
+        if (cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
+        // keep the first records of the active transactions, and the
+        // records recovery may have to redo
         long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        for (long firstLogRecord : cp.transactions.values()) {
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+        for (long firstLogRecord : cp.dirtyPages.values()) {
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord + " END: " + currentOffset);
+        segments.deleteBefore(minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -467,10 +904,88 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long firstLogRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstLogRecord == null)
+                    throw new NoSuchElementException("no log records for transaction " + tid.getId());
+
+                undo(Collections.singletonMap(tid.getId(), firstLogRecord));
             }
         }
     }
 
+    /** Take back the updates of the given transactions, newest first,
+        logging a CLR for each.  The updates that CLRs took back already,
+        before a crash, are skipped.  The pages are written with their
+        images before the updates, once the CLRs are on disk, and are
+        discarded from the BufferPool.
+
+        @param firstRecords the transactions, and the address of the first
+        log record of each
+    */
+    private void undo(Map<Long,Long> firstRecords) throws IOException {
+        if (firstRecords.isEmpty())
+            return;
+
+        // the updates of the transactions, and the oldest update of each
+        // that a CLR took back
+        ArrayList<Long> updates = new ArrayList<Long>();
+        HashMap<Long,Long> undone = new HashMap<Long,Long>();
+        LogReader in = reader(Collections.min(firstRecords.values()), currentOffset);
+        while (in.position() < currentOffset) {
+            LogRecord r = readRecord(in);
+            Long first = firstRecords.get(r.tid);
+            if (first == null || r.start < first)
+                continue;
+            if (r.type == UPDATE_RECORD || r.type == DELTA_RECORD) {
+                updates.add(r.start);
+            } else if (r.type == CLR_RECORD) {
+                Long oldest = undone.get(r.tid);
+                if (oldest == null || r.undone < oldest)
+                    undone.put(r.tid, r.undone);
+            }
+        }
+
+        HashMap<PageId,byte[]> images = new HashMap<PageId,byte[]>();
+        HashMap<PageId,String> pageClassNames = new HashMap<PageId,String>();
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            LogRecord r = readRecord(reader(updates.get(i), currentOffset));
+            Long oldest = undone.get(r.tid);
+            if (oldest != null && r.start >= oldest)
+                continue;
+            PageChange change = r.change;
+            byte[] image = images.get(change.pid);
+            if (image == null && change.delta != null)
+                image = readImage(change.pid);
+            images.put(change.pid, change.undo(image));
+            pageClassNames.put(change.pid, change.pageClassName);
+
+            appendChange(r.tid, change.inverse(), r.start);
+        }
+        if (images.isEmpty())
+            return;
+
+        force();
+        long lsn = currentOffset;
+        for (Map.Entry<PageId,byte[]> e : images.entrySet()) {
+            PageId pid = e.getKey();
+            Page page = newPage(pageClassNames.get(pid), pid, e.getValue());
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+            Database.getBufferPool().discardPage(pid);
+            pageFlushed(pid, lsn);
+        }
+    }
+
+    /** @return the data of a page on disk, or an empty page if the file
+        does not have it */
+    private byte[] readImage(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        try {
+            return file.readPage(pid).getPageData();
+        } catch (IllegalArgumentException e) {
+            return new byte[BufferPool.getPageSize()];
+        }
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -478,7 +993,8 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            control.close();
+            segments.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -494,17 +1010,446 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                tidToFirstLogRecord.clear();
+                dirtyPages.clear();
+                pageLsns.clear();
+                if (control.length() < LONG_SIZE) {
+                    // nothing was logged
+                    startLog();
+                    return;
+                }
+
+                // analysis: the transactions still running at the crash,
+                // and the pages whose updates may not have reached the disk
+                HashMap<Long,Long> losers = new HashMap<Long,Long>();
+                HashMap<PageId,Long> dirty = new HashMap<PageId,Long>();
+                control.seek(0);
+                long cpLoc = control.readLong();
+                long start = cpLoc;
+                if (cpLoc == NO_CHECKPOINT_ID) {
+                    long[] onDisk = segments.list();
+                    start = onDisk.length == 0 ? 0 : onDisk[0] * segments.segmentSize();
+                }
+                LogReader in = reader(start, Long.MAX_VALUE);
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    LogRecord cp = readRecord(in);
+                    losers.putAll(cp.transactions);
+                    dirty.putAll(cp.dirtyPages);
+                }
+                long end = in.position();
+                while (true) {
+                    LogRecord r;
+                    try {
+                        r = readRecord(in);
+                    } catch (IOException e) {
+                        // the end of the log, or a record torn by the crash
+                        break;
+                    }
+                    switch (r.type) {
+                    case BEGIN_RECORD:
+                        losers.put(r.tid, r.start);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        losers.remove(r.tid);
+                        break;
+                    case UPDATE_RECORD:
+                    case DELTA_RECORD:
+                    case CLR_RECORD:
+                        if (!dirty.containsKey(r.change.pid))
+                            dirty.put(r.change.pid, r.start);
+                        break;
+                    }
+                    end = in.position();
+                }
+                // drop a record cut short by the crash
+                segments.truncate(end);
+                currentOffset = end;
+
+                redo(dirty);
+
+                // undo, and end the transactions that were running
+                undo(losers);
+                for (Long tid : losers.keySet()) {
+                    preAppend();
+                    appendRecord(ABORT_RECORD, tid);
+                }
+                force();
             }
          }
     }
 
+    /** Repeat history: apply the changes logged since the first record
+        of each dirty page that may not be on disk, and write the pages.
+        The changes are partitioned by page among the redo threads, which
+        apply those of a page in log order. */
+    private void redo(Map<PageId,Long> dirty) throws IOException {
+        if (dirty.isEmpty())
+            return;
+
+        int n = redoThreads;
+        ArrayList<ArrayList<PageChange>> partitions = new ArrayList<ArrayList<PageChange>>();
+        for (int i = 0; i < n; i++)
+            partitions.add(new ArrayList<PageChange>());
+        LogReader in = reader(Collections.min(dirty.values()), currentOffset);
+        while (in.position() < currentOffset) {
+            LogRecord r = readRecord(in);
+            if (r.change == null)
+                continue;
+            Long first = dirty.get(r.change.pid);
+            if (first == null || r.start < first)
+                continue; // on disk already
+            partitions.get((r.change.pid.hashCode() & Integer.MAX_VALUE) % n).add(r.change);
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(n);
+        ArrayList<Future<ArrayList<Page>>> results = new ArrayList<Future<ArrayList<Page>>>();
+        try {
+            for (final ArrayList<PageChange> partition : partitions) {
+                results.add(workers.submit(new Callable<ArrayList<Page>>() {
+                    public ArrayList<Page> call() throws IOException {
+                        LinkedHashMap<PageId,PageChange> last = new LinkedHashMap<PageId,PageChange>();
+                        HashMap<PageId,byte[]> images = new HashMap<PageId,byte[]>();
+                        for (PageChange change : partition) {
+                            byte[] image = images.get(change.pid);
+                            if (image == null && change.delta != null)
+                                image = readImage(change.pid);
+                            images.put(change.pid, change.redo(image));
+                            last.put(change.pid, change);
+                        }
+                        ArrayList<Page> pages = new ArrayList<Page>();
+                        for (PageChange change : last.values())
+                            pages.add(newPage(change.pageClassName, change.pid, images.get(change.pid)));
+                        return pages;
+                    }
+                }));
+            }
+
+            // write the pages of each file in order, as heap files only
+            // grow by the page after their last one
+            ArrayList<Page> pages = new ArrayList<Page>();
+            for (Future<ArrayList<Page>> result : results)
+                pages.addAll(result.get());
+            Collections.sort(pages, new Comparator<Page>() {
+                public int compare(Page a, Page b) {
+                    int c = Integer.compare(a.getId().getTableId(), b.getId().getTableId());
+                    return c != 0 ? c : Integer.compare(a.getId().getPageNumber(), b.getId().getPageNumber());
+                }
+            });
+            for (Page page : pages) {
+                Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+                Database.getBufferPool().discardPage(page.getId());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted redoing the log");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
+        synchronized (this) {
+            control.seek(0);
+            System.out.println("checkpoint at " + control.readLong());
+            long[] onDisk = segments.list();
+            if (onDisk.length == 0)
+                return;
+            LogReader in = reader(onDisk[0] * segments.segmentSize(), currentOffset);
+            while (in.position() < currentOffset) {
+                try {
+                    System.out.println(readRecord(in));
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
     }
 
+    /** Force the whole log to disk right away. */
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        FileChannel channel = segments.channelToForce(currentOffset);
+        if (channel != null)
+            channel.force(false);
+        forced(currentOffset);
+    }
+
+    /** Wait for the log to be on disk up to the given LSN.  If nobody is
+        forcing the log, the calling thread does it, for everybody that
+        appended records by then; otherwise it waits for the thread that
+        is, and forces the log itself if that did not get far enough.
+        Called from within the log monitor it forces the log right away,
+        as the thread forcing it may be waiting to enter the monitor.
+
+        @param lsn the LSN returned when the last record to force was appended
+    */
+    public void force(long lsn) throws IOException {
+        if (Thread.holdsLock(this)) {
+            force();
+            return;
+        }
+        while (true) {
+            synchronized (forceLock) {
+                while (forcing && forcedLsn < lsn) {
+                    try {
+                        forceLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted waiting for the log to be forced");
+                    }
+                }
+                if (forcedLsn >= lsn)
+                    return;
+                forcing = true;
+            }
+
+            long endLsn = 0;
+            FileChannel channel = null;
+            try {
+                // let others append their records, to force them along
+                long delay = groupCommitDelay;
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay / 1000, (int) (delay % 1000) * 1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                synchronized (this) {
+                    endLsn = currentOffset;
+                    channel = segments.channelToForce(endLsn);
+                }
+                // the segments are preallocated, so appends do not change
+                // the file metadata, and the data is all there is to force;
+                // the segments before this one were forced when the log
+                // moved on from them
+                if (channel != null)
+                    channel.force(false);
+            } catch (ClosedChannelException e) {
+                // the log was started over meanwhile, which deletes the
+                // segment; see whether that was far enough
+                synchronized (this) {
+                    if (channel == segments.channelToForce(currentOffset))
+                        throw e;
+                }
+                endLsn = 0;
+            } finally {
+                synchronized (forceLock) {
+                    forcing = false;
+                    forced(endLsn);
+                    forceLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Record that the log is on disk up to the given LSN */
+    private void forced(long lsn) {
+        synchronized (forceLock) {
+            if (lsn > 0)
+                forceCount++;
+            if (lsn > forcedLsn) {
+                forcedLsn = lsn;
+                forceLock.notifyAll();
+            }
+        }
+    }
+
+    /** @return a reader of the log from the given address, that ends at
+        the given limit */
+    LogReader reader(long from, long limit) {
+        return new LogReader(new LogInputStream(from, limit));
+    }
+
+    /** Reads the records of the log, keeping track of the address it is at */
+    static class LogReader extends DataInputStream {
+        LogReader(LogInputStream in) {
+            super(in);
+        }
+
+        /** @return the address of the next byte to read */
+        long position() {
+            return ((LogInputStream) in).position;
+        }
+    }
+
+    /** Reads the bytes of the log through a buffer, a segment at a time.
+        The log ends at the limit, or at the first segment that is not on
+        disk. */
+    class LogInputStream extends InputStream {
+        private final ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final long limit;
+        long position; // the address of the next byte to read
+
+        LogInputStream(long from, long limit) {
+            this.position = from;
+            this.limit = limit;
+            buf.limit(0);
+        }
+
+        // fill the buffer if it is empty; false at the end of the log
+        private boolean fill() throws IOException {
+            if (buf.hasRemaining())
+                return true;
+            if (position >= limit)
+                return false;
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), limit - position));
+            int n = segments.read(position, buf);
+            buf.flip();
+            return n > 0;
+        }
+
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+            position++;
+            return buf.get() & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            position += n;
+            return n;
+        }
+    }
+
+    /** Serializes the records appended to the log into a direct buffer
+        that is reused for every record, and writes the buffer to the
+        segments when it fills up and at the end of the record. */
+    private class Appender implements DataOutput {
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(APPEND_BUFFER_SIZE);
+        private long address; // the address of the first byte in buf
+
+        /** Start a record at the given address */
+        void begin(long address) {
+            this.address = address;
+            buf.clear();
+        }
+
+        /** End the record, writing out what is left in the buffer.
+
+            @return the address of the end of the record
+        */
+        long end() throws IOException {
+            spill();
+            return address;
+        }
+
+        private void spill() throws IOException {
+            buf.flip();
+            int n = buf.remaining();
+            segments.write(address, buf);
+            address += n;
+            buf.clear();
+        }
+
+        private void room(int n) throws IOException {
+            if (buf.remaining() < n)
+                spill();
+        }
+
+        public void write(int b) throws IOException {
+            room(1);
+            buf.put((byte) b);
+        }
+
+        public void write(byte[] b) throws IOException {
+            write(b, 0, b.length);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buf.hasRemaining())
+                    spill();
+                int n = Math.min(len, buf.remaining());
+                buf.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        public void writeBoolean(boolean v) throws IOException {
+            write(v ? 1 : 0);
+        }
+
+        public void writeByte(int v) throws IOException {
+            write(v);
+        }
+
+        public void writeShort(int v) throws IOException {
+            room(2);
+            buf.putShort((short) v);
+        }
+
+        public void writeChar(int v) throws IOException {
+            room(2);
+            buf.putChar((char) v);
+        }
+
+        public void writeInt(int v) throws IOException {
+            room(INT_SIZE);
+            buf.putInt(v);
+        }
+
+        public void writeLong(long v) throws IOException {
+            room(LONG_SIZE);
+            buf.putLong(v);
+        }
+
+        public void writeFloat(float v) throws IOException {
+            writeInt(Float.floatToIntBits(v));
+        }
+
+        public void writeDouble(double v) throws IOException {
+            writeLong(Double.doubleToLongBits(v));
+        }
+
+        public void writeBytes(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++)
+                write(s.charAt(i));
+        }
+
+        public void writeChars(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++)
+                writeChar(s.charAt(i));
+        }
+
+        // modified UTF-8, as read by DataInput.readUTF
+        public void writeUTF(String s) throws IOException {
+            int len = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                len += (c >= 0x01 && c <= 0x7f) ? 1 : (c <= 0x7ff ? 2 : 3);
+            }
+            if (len > 0xffff)
+                throw new UTFDataFormatException("string of " + len + " bytes is too long");
+            writeShort(len);
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x01 && c <= 0x7f) {
+                    write(c);
+                } else if (c <= 0x7ff) {
+                    write(0xc0 | (c >> 6));
+                    write(0x80 | (c & 0x3f));
+                } else {
+                    write(0xe0 | (c >> 12));
+                    write(0x80 | ((c >> 6) & 0x3f));
+                    write(0x80 | (c & 0x3f));
+                }
+            }
+        }
     }
 
 }
@@ -0,0 +1,235 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogSegments stores the log as a sequence of segment files of a fixed size.
+ * The byte at log address a is in segment a / segmentSize, at offset
+ * a % segmentSize, so log addresses never change once written and the head
+ * of the log is dropped by deleting whole segments.
+ * <p>
+ * The segment files are named after the log file, with the number of the
+ * segment appended, and are preallocated when they are created: the whole
+ * segment is written with zeros and forced, along with the directory
+ * entry, so appends never change the file metadata, and the part of a
+ * segment past the end of the log reads as zeros.
+ * <p>
+ * Writing into a new segment forces the one before it, so forcing the log
+ * only ever needs to force the segment the log ends in.
+ *
+ * @Threadsafe
+ */
+class LogSegments {
+
+    private final File base;
+    private final int segmentSize;
+
+    // the open segments, by number //protected by this
+    private final TreeMap<Long, FileChannel> channels = new TreeMap<Long, FileChannel>();
+    // the segment written last //protected by this
+    private long lastWritten = -1;
+
+    /**
+     * @param base the log file the segments are named after
+     * @param segmentSize the size of a segment in bytes
+     */
+    LogSegments(File base, int segmentSize) {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("the segment size must be positive");
+        this.base = base.getAbsoluteFile();
+        this.segmentSize = segmentSize;
+    }
+
+    int segmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the segment the given address is in */
+    long segmentOf(long address) {
+        return address / segmentSize;
+    }
+
+    File segmentFile(long segment) {
+        return new File(base.getPath() + "." + String.format("%012d", segment));
+    }
+
+    /**
+     * @return the numbers of the segments on disk, in increasing order
+     */
+    long[] list() {
+        final String prefix = base.getName() + ".";
+        String[] names = base.getParentFile().list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && name.length() > prefix.length()
+                        && name.substring(prefix.length()).matches("[0-9]+");
+            }
+        });
+        if (names == null)
+            return new long[0];
+        long[] segments = new long[names.length];
+        for (int i = 0; i < names.length; i++)
+            segments[i] = Long.parseLong(names[i].substring(prefix.length()));
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * @param create true to create the segment if it does not exist
+     * @return the channel of a segment, or null if the segment does not
+     *   exist and is not to be created
+     */
+    synchronized FileChannel channel(long segment, boolean create) throws IOException {
+        FileChannel ch = channels.get(segment);
+        if (ch != null && ch.isOpen())
+            return ch;
+        File f = segmentFile(segment);
+        if (!create && !f.exists())
+            return null;
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        ch = raf.getChannel();
+        if (raf.length() < segmentSize)
+            preallocate(ch);
+        channels.put(segment, ch);
+        return ch;
+    }
+
+    /**
+     * Write zeros to a new segment up to its full size, picking up where a
+     * crash in the middle of this left off, and force it and its directory
+     * entry. Setting the length would leave a sparse file, whose blocks are
+     * allocated by the appends.
+     */
+    private void preallocate(FileChannel ch) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(Math.min(segmentSize, 64 * 1024));
+        long position = ch.size();
+        while (position < segmentSize) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), segmentSize - position));
+            position += ch.write(zeros, position);
+        }
+        ch.force(true);
+        FileHandle.forceDirectory(base.getParentFile());
+    }
+
+    /**
+     * Write the remaining bytes of buf at the given address, creating the
+     * segments they go to.
+     */
+    synchronized void write(long address, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            long segment = segmentOf(address);
+            if (lastWritten >= 0 && segment > lastWritten) {
+                FileChannel previous = channel(lastWritten, false);
+                if (previous != null)
+                    previous.force(false);
+            }
+            lastWritten = segment;
+
+            FileChannel ch = channel(segment, true);
+            int offset = (int) (address % segmentSize);
+            int len = Math.min(buf.remaining(), segmentSize - offset);
+            int limit = buf.limit();
+            buf.limit(buf.position() + len);
+            while (buf.hasRemaining())
+                ch.write(buf, offset + (len - buf.remaining()));
+            buf.limit(limit);
+            address += len;
+        }
+    }
+
+    /**
+     * Read bytes from the given address into buf, up to the end of the
+     * segment the address is in.
+     *
+     * @return the number of bytes read, or -1 if the segment does not exist
+     */
+    int read(long address, ByteBuffer buf) throws IOException {
+        FileChannel ch = channel(segmentOf(address), false);
+        if (ch == null)
+            return -1;
+        int offset = (int) (address % segmentSize);
+        int len = Math.min(buf.remaining(), segmentSize - offset);
+        int limit = buf.limit();
+        buf.limit(buf.position() + len);
+        int read = 0;
+        try {
+            while (buf.hasRemaining()) {
+                int n = ch.read(buf, offset + read);
+                if (n < 0)
+                    break;
+                read += n;
+            }
+        } finally {
+            buf.limit(limit);
+        }
+        return read;
+    }
+
+    /**
+     * @return the channel to force so that the log is on disk up to the
+     *   given end address, or null if the log is empty
+     */
+    FileChannel channelToForce(long end) throws IOException {
+        if (end <= 0)
+            return null;
+        return channel(segmentOf(end - 1), true);
+    }
+
+    /**
+     * Zero the segment the given address is in from the address on, and
+     * delete the segments after it, so that the log ends there.
+     */
+    synchronized void truncate(long address) throws IOException {
+        long segment = segmentOf(address);
+        for (long s : list()) {
+            if (s > segment)
+                delete(s);
+        }
+        int offset = (int) (address % segmentSize);
+        ByteBuffer zeros = ByteBuffer.allocate(segmentSize - offset);
+        write(address, zeros);
+        channel(segment, true).force(false);
+    }
+
+    /**
+     * Delete the segments that end at or before the given address.
+     */
+    synchronized void deleteBefore(long address) throws IOException {
+        for (long s : list()) {
+            if ((s + 1) * segmentSize <= address)
+                delete(s);
+        }
+    }
+
+    /**
+     * Delete all the segments.
+     */
+    synchronized void deleteAll() throws IOException {
+        for (long s : list())
+            delete(s);
+        lastWritten = -1;
+    }
+
+    private void delete(long segment) throws IOException {
+        FileChannel ch = channels.remove(segment);
+        if (ch != null)
+            ch.close();
+        File f = segmentFile(segment);
+        if (f.exists() && !f.delete())
+            throw new IOException("cannot delete log segment " + f);
+        if (segment == lastWritten)
+            lastWritten = -1;
+    }
+
+    /**
+     * Close the open segments.
+     */
+    synchronized void close() throws IOException {
+        for (FileChannel ch : channels.values())
+            ch.close();
+        channels.clear();
+    }
+}
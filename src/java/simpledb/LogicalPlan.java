@@ -271,8 +271,103 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** The largest estimated fraction of a heap table that a range filter reads through
+     *  a secondary index rather than by scanning the table */
+    public static final double INDEX_SCAN_MAX_SELECTIVITY = 0.1;
+
+    /**
+     * @return the secondary index of the table on the named field, or null if there is none
+     */
+    private static SecondaryIndex secondaryIndex(int tableId, String fieldName) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            if (fieldName.equals(td.getFieldName(index.getKeyField())))
+                return index;
+        }
+        return null;
+    }
+
+    /**
+     * Choose, for each table, a filter that an index can answer: a filter on the key field
+     * of a table stored in a BTreeFile, or on a field with a secondary index. An equality
+     * is chosen if there is one. Otherwise a BTreeFile gets its first range comparison,
+     * and a heap table the range comparison with the lowest estimated selectivity, if that
+     * is at most INDEX_SCAN_MAX_SELECTIVITY, as each tuple an index finds there is fetched
+     * from its own page.
+     * @param statsMap the statistics of each base table
+     * @return the chosen filter of each table alias that has one
+     */
+    private HashMap<String,LogicalFilterNode> chooseIndexFilters(Map<String,TableStats> statsMap) {
+        HashMap<String,LogicalFilterNode> chosen = new HashMap<String,LogicalFilterNode>();
+        HashMap<String,Double> chosenSelectivity = new HashMap<String,Double>();
+        for (LogicalFilterNode lf : filters) {
+            if (lf.p == Predicate.Op.NOT_EQUALS || lf.p == Predicate.Op.LIKE)
+                continue;
+            Integer tableId = this.getTableId(lf.tableAlias);
+            if (tableId == null)
+                continue;
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            //B+树上的范围扫描只读叶子，不用估计选择率
+            double sel = 1.0;
+            if (file instanceof BTreeFile) {
+                if (!lf.fieldPureName.equals(file.getTupleDesc().getFieldName(((BTreeFile) file).keyField())))
+                    continue;
+            } else {
+                SecondaryIndex index = secondaryIndex(tableId, lf.fieldPureName);
+                if (index == null)
+                    continue;
+                if (lf.p != Predicate.Op.EQUALS) {
+                    sel = rangeSelectivity(tableId, index, lf, statsMap);
+                    if (sel > INDEX_SCAN_MAX_SELECTIVITY)
+                        continue;
+                }
+            }
+            LogicalFilterNode prev = chosen.get(lf.tableAlias);
+            if (prev == null
+                    || (prev.p != Predicate.Op.EQUALS && lf.p == Predicate.Op.EQUALS)
+                    || (prev.p != Predicate.Op.EQUALS && sel < chosenSelectivity.get(lf.tableAlias))) {
+                chosen.put(lf.tableAlias, lf);
+                chosenSelectivity.put(lf.tableAlias, sel);
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * @return the estimated selectivity of a range filter on the key field of a secondary
+     *   index, or 1.0 if the table has no statistics
+     */
+    private static double rangeSelectivity(int tableId, SecondaryIndex index, LogicalFilterNode lf,
+            Map<String,TableStats> statsMap) {
+        TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return 1.0;
+        Field f;
+        if (Database.getCatalog().getTupleDesc(tableId).getFieldType(index.getKeyField()) == Type.INT_TYPE)
+            f = new IntField(new Integer(lf.c).intValue());
+        else
+            f = new StringField(lf.c, Type.STRING_LEN);
+        return s.estimateSelectivity(index.getKeyField(), lf.p, f);
+    }
+
+    /**
+     * Build the scan that answers a filter chosen by {@link #chooseIndexFilters}.
+     */
+    private OpIterator indexScan(TransactionId t, LogicalFilterNode lf, Field f) {
+        int tableId = this.getTableId(lf.tableAlias);
+        IndexPredicate ipred = new IndexPredicate(lf.p, f);
+        if (Database.getCatalog().getDatabaseFile(tableId) instanceof BTreeFile)
+            return new BTreeScan(t, tableId, lf.tableAlias, ipred);
+        return new IndexScan(t, secondaryIndex(tableId, lf.fieldPureName), lf.tableAlias, ipred);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
+     *   A table stored in a {@link BTreeFile} with a filter on its key field is read by a
+     *   {@link BTreeScan} that answers the filter from the tree, rather than by filtering a
+     *   {@link SeqScan}; as the leaves hold whole tuples, such a scan reads no other pages.
+     *   A heap table with a selective filter on a field with a {@link SecondaryIndex} is
+     *   read by an {@link IndexScan}.
      *  @param t The transaction that the returned OpIterator will run as a part of
      *  @param baseTableStats a HashMap providing a {@link TableStats}
      *    object for each table used in the LogicalPlan.  This should
@@ -306,7 +401,15 @@ public class LogicalPlan {
 
         }
 
-        Iterator<LogicalFilterNode> filterIt = filters.iterator();        
+        //filters answered by an index are applied first, as they replace the scan of their table
+        HashMap<String,LogicalFilterNode> indexFilters = chooseIndexFilters(statsMap);
+        ArrayList<LogicalFilterNode> orderedFilters = new ArrayList<LogicalFilterNode>(indexFilters.values());
+        for (LogicalFilterNode lf : filters) {
+            if (indexFilters.get(lf.tableAlias) != lf)
+                orderedFilters.add(lf);
+        }
+
+        Iterator<LogicalFilterNode> filterIt = orderedFilters.iterator();
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
             OpIterator subplan = subplanMap.get(lf.tableAlias);
@@ -334,7 +437,10 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (indexFilters.get(lf.tableAlias) == lf)
+                subplanMap.put(lf.tableAlias, indexScan(t, lf, f));
+            else
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -0,0 +1,299 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The difference between two images of a {@link SlottedPage}, as the slots
+ * that were inserted or deleted and the fields that were updated, along with
+ * the page level bytes in front of the slot bitmap if they changed.  A delta
+ * keeps both the old and the new bytes of everything it touches, so it can
+ * be redone on the old image and undone on the new one.
+ */
+final class PageDelta {
+
+    static final byte INSERT = 1;
+    static final byte DELETE = 2;
+    static final byte UPDATE = 3;
+
+    private final int headerOffset;
+    private final int slotsOffset;
+    private final int slotSize;
+
+    // the bytes in front of the bitmap, or null if they did not change
+    private byte[] prefixBefore;
+    private byte[] prefixAfter;
+
+    private final ArrayList<SlotChange> changes = new ArrayList<SlotChange>();
+
+    /**
+     * A change to one slot.  Inserts only keep the new tuple and deletes only
+     * the old one; updates keep the old and new bytes of each changed field.
+     */
+    private static class SlotChange {
+        final int slot;
+        final byte kind;
+        // for an update: the offset within the slot and the length of each field
+        int[] offsets = new int[0];
+        int[] lengths = new int[0];
+        byte[][] before;
+        byte[][] after;
+
+        SlotChange(int slot, byte kind) {
+            this.slot = slot;
+            this.kind = kind;
+        }
+    }
+
+    private PageDelta(int headerOffset, int slotsOffset, int slotSize) {
+        this.headerOffset = headerOffset;
+        this.slotsOffset = slotsOffset;
+        this.slotSize = slotSize;
+    }
+
+    /**
+     * Compute the delta between two images of a page.
+     *
+     * @param before the old image of the page
+     * @param after the new image of the page
+     * @return the delta, or null if the page does not store its tuples in
+     *   fixed size slots, or the images are laid out differently
+     */
+    static PageDelta diff(Page before, Page after) {
+        if (!(before instanceof SlottedPage) || !(after instanceof SlottedPage)
+                || before.getClass() != after.getClass())
+            return null;
+        SlottedPage b = (SlottedPage) before;
+        SlottedPage a = (SlottedPage) after;
+        int numSlots = a.getNumSlots();
+        if (numSlots == 0 || b.getNumSlots() != numSlots
+                || b.getHeaderOffset() != a.getHeaderOffset()
+                || b.getSlotsOffset() != a.getSlotsOffset())
+            return null;
+
+        TupleDesc td = a.getTupleDesc();
+        PageDelta delta = new PageDelta(a.getHeaderOffset(), a.getSlotsOffset(), td.getSize());
+        byte[] bd = before.getPageData();
+        byte[] ad = after.getPageData();
+
+        if (!rangeEquals(bd, ad, 0, delta.headerOffset)) {
+            delta.prefixBefore = Arrays.copyOfRange(bd, 0, delta.headerOffset);
+            delta.prefixAfter = Arrays.copyOfRange(ad, 0, delta.headerOffset);
+        }
+
+        for (int i = 0; i < numSlots; i++) {
+            boolean usedBefore = delta.isSlotUsed(bd, i);
+            boolean usedAfter = delta.isSlotUsed(ad, i);
+            int start = delta.slotsOffset + i * delta.slotSize;
+            if (usedBefore && usedAfter) {
+                // the offsets within the slot and lengths of the changed fields
+                ArrayList<int[]> fields = new ArrayList<int[]>();
+                int offset = 0;
+                for (int j = 0; j < td.numFields(); j++) {
+                    int len = td.getFieldType(j).getLen();
+                    if (!rangeEquals(bd, ad, start + offset, len))
+                        fields.add(new int[] { offset, len });
+                    offset += len;
+                }
+                if (fields.isEmpty())
+                    continue;
+                SlotChange c = new SlotChange(i, UPDATE);
+                c.offsets = new int[fields.size()];
+                c.lengths = new int[fields.size()];
+                c.before = new byte[fields.size()][];
+                c.after = new byte[fields.size()][];
+                for (int k = 0; k < fields.size(); k++) {
+                    int from = start + fields.get(k)[0];
+                    int to = from + fields.get(k)[1];
+                    c.offsets[k] = fields.get(k)[0];
+                    c.lengths[k] = fields.get(k)[1];
+                    c.before[k] = Arrays.copyOfRange(bd, from, to);
+                    c.after[k] = Arrays.copyOfRange(ad, from, to);
+                }
+                delta.changes.add(c);
+            } else if (usedAfter) {
+                SlotChange c = new SlotChange(i, INSERT);
+                c.after = new byte[][] { Arrays.copyOfRange(ad, start, start + delta.slotSize) };
+                delta.changes.add(c);
+            } else if (usedBefore) {
+                SlotChange c = new SlotChange(i, DELETE);
+                c.before = new byte[][] { Arrays.copyOfRange(bd, start, start + delta.slotSize) };
+                delta.changes.add(c);
+            }
+        }
+        return delta;
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] b, int from, int len) {
+        for (int i = from; i < from + len; i++) {
+            if (a[i] != b[i])
+                return false;
+        }
+        return true;
+    }
+
+    private boolean isSlotUsed(byte[] data, int slot) {
+        return (data[headerOffset + slot / 8] & (1 << (slot % 8))) != 0;
+    }
+
+    private void markSlotUsed(byte[] data, int slot, boolean used) {
+        if (used)
+            data[headerOffset + slot / 8] |= 1 << (slot % 8);
+        else
+            data[headerOffset + slot / 8] &= ~(1 << (slot % 8));
+    }
+
+    /**
+     * @return true if the two images were the same
+     */
+    boolean isEmpty() {
+        return prefixBefore == null && changes.isEmpty();
+    }
+
+    /**
+     * Apply this delta to the old image of the page.
+     *
+     * @return the new image; data is left as it is
+     */
+    byte[] redo(byte[] data) {
+        return apply(data, true);
+    }
+
+    /**
+     * Take this delta back from the new image of the page.
+     *
+     * @return the old image; data is left as it is
+     */
+    byte[] undo(byte[] data) {
+        return apply(data, false);
+    }
+
+    private byte[] apply(byte[] data, boolean redo) {
+        byte[] out = data.clone();
+        if (prefixBefore != null) {
+            byte[] prefix = redo ? prefixAfter : prefixBefore;
+            System.arraycopy(prefix, 0, out, 0, prefix.length);
+        }
+        for (SlotChange c : changes) {
+            int start = slotsOffset + c.slot * slotSize;
+            if (c.kind == UPDATE) {
+                for (int k = 0; k < c.offsets.length; k++)
+                    System.arraycopy(redo ? c.after[k] : c.before[k], 0, out, start + c.offsets[k], c.lengths[k]);
+                continue;
+            }
+            // the slot holds the tuple after an insert is redone or a delete is
+            // undone, and is empty (zeroed) otherwise
+            boolean used = (c.kind == INSERT) == redo;
+            markSlotUsed(out, c.slot, used);
+            if (used)
+                System.arraycopy(c.kind == INSERT ? c.after[0] : c.before[0], 0, out, start, slotSize);
+            else
+                Arrays.fill(out, start, start + slotSize, (byte) 0);
+        }
+        return out;
+    }
+
+    /**
+     * @return the delta that takes this one back: redoing it undoes this
+     *   one, and the other way around
+     */
+    PageDelta inverse() {
+        PageDelta inv = new PageDelta(headerOffset, slotsOffset, slotSize);
+        inv.prefixBefore = prefixAfter;
+        inv.prefixAfter = prefixBefore;
+        for (SlotChange c : changes) {
+            byte kind = c.kind == INSERT ? DELETE : c.kind == DELETE ? INSERT : UPDATE;
+            SlotChange i = new SlotChange(c.slot, kind);
+            i.offsets = c.offsets;
+            i.lengths = c.lengths;
+            i.before = c.after;
+            i.after = c.before;
+            inv.changes.add(i);
+        }
+        return inv;
+    }
+
+    /**
+     * Write this delta out; {@link #read} reads it back.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(headerOffset);
+        out.writeInt(slotsOffset);
+        out.writeInt(slotSize);
+        if (prefixBefore == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(prefixBefore.length);
+            out.write(prefixBefore);
+            out.write(prefixAfter);
+        }
+        out.writeInt(changes.size());
+        for (SlotChange c : changes) {
+            out.writeInt(c.slot);
+            out.writeByte(c.kind);
+            switch (c.kind) {
+            case INSERT:
+                out.write(c.after[0]);
+                break;
+            case DELETE:
+                out.write(c.before[0]);
+                break;
+            default:
+                out.writeInt(c.offsets.length);
+                for (int k = 0; k < c.offsets.length; k++) {
+                    out.writeInt(c.offsets[k]);
+                    out.writeInt(c.lengths[k]);
+                    out.write(c.before[k]);
+                    out.write(c.after[k]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a delta written by {@link #write}.
+     */
+    static PageDelta read(DataInput in) throws IOException {
+        PageDelta delta = new PageDelta(in.readInt(), in.readInt(), in.readInt());
+        int prefixLen = in.readInt();
+        if (prefixLen > 0) {
+            delta.prefixBefore = new byte[prefixLen];
+            delta.prefixAfter = new byte[prefixLen];
+            in.readFully(delta.prefixBefore);
+            in.readFully(delta.prefixAfter);
+        }
+        int numChanges = in.readInt();
+        for (int i = 0; i < numChanges; i++) {
+            SlotChange c = new SlotChange(in.readInt(), in.readByte());
+            switch (c.kind) {
+            case INSERT:
+                c.after = new byte[][] { new byte[delta.slotSize] };
+                in.readFully(c.after[0]);
+                break;
+            case DELETE:
+                c.before = new byte[][] { new byte[delta.slotSize] };
+                in.readFully(c.before[0]);
+                break;
+            case UPDATE:
+                int n = in.readInt();
+                c.offsets = new int[n];
+                c.lengths = new int[n];
+                c.before = new byte[n][];
+                c.after = new byte[n][];
+                for (int k = 0; k < n; k++) {
+                    c.offsets[k] = in.readInt();
+                    c.lengths[k] = in.readInt();
+                    c.before[k] = new byte[c.lengths[k]];
+                    c.after[k] = new byte[c.lengths[k]];
+                    in.readFully(c.before[k]);
+                    in.readFully(c.after[k]);
+                }
+                break;
+            default:
+                throw new IOException("bad slot change kind " + c.kind);
+            }
+            delta.changes.add(c);
+        }
+        return delta;
+    }
+}
@@ -0,0 +1,74 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * PageLatches holds the short-term latches BTreeFile uses to protect the
+ * internal pages of a tree while a thread walks through them.
+ * <p>
+ * Latches are separate from the transaction locks of LockManager: they are
+ * held only while a thread reads a page, never until the end of the
+ * transaction, and waiting for them is not deadlock-checked, so a thread
+ * must not block on a transaction lock while it holds a latch.
+ * <p>
+ * Every latch carries a version number.  A writer bumps it, under the
+ * exclusive latch, before it starts to change the page; a reader that
+ * remembers the version it saw under the shared latch can later tell
+ * whether the page may have changed since.
+ *
+ * @Threadsafe
+ */
+class PageLatches {
+
+    /** The latch of a single page. */
+    static final class Latch {
+        private final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
+        private volatile long version;
+
+        void lockShared() {
+            rw.readLock().lock();
+        }
+
+        void unlockShared() {
+            rw.readLock().unlock();
+        }
+
+        /** @return the version of the page, stable while the latch is held shared */
+        long version() {
+            return version;
+        }
+
+        /**
+         * Wait until no reader holds the latch and bump the version, so that
+         * readers which saw the page before can tell it is about to change.
+         */
+        void invalidate() {
+            rw.writeLock().lock();
+            try {
+                version++;
+            } finally {
+                rw.writeLock().unlock();
+            }
+        }
+    }
+
+    /** page number -> latch */
+    private final ConcurrentHashMap<Integer, Latch> latches = new ConcurrentHashMap<Integer, Latch>();
+
+    /**
+     * @return the latch of the given page, created on first use.  Latches are
+     *   keyed by page number alone, so a page keeps its latch when it is
+     *   freed and reused as a page of another category.
+     */
+    Latch get(int pgNo) {
+        Latch latch = latches.get(pgNo);
+        if (latch == null) {
+            Latch fresh = new Latch();
+            latch = latches.putIfAbsent(pgNo, fresh);
+            if (latch == null)
+                latch = fresh;
+        }
+        return latch;
+    }
+}
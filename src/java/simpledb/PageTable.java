@@ -0,0 +1,223 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PageTable maps the ids of the pages cached by BufferPool to the frames
+ * holding them.
+ * <p>
+ * The table is split into independently locked shards by PageId hash.
+ * Lookups never take a lock, so cache hits on different pages do not
+ * contend; inserts, replacements and removals lock only the shard of the
+ * page they touch.
+ * <p>
+ * Every frame carries a pin count.  A thread pins a frame while it uses the
+ * page in it, and eviction only removes frames nobody has pinned: it
+ * retires the frame by swinging the pin count from 0 to -1, after which
+ * the frame can no longer be pinned and lookups treat it as gone.
+ *
+ * @Threadsafe
+ */
+class PageTable {
+
+    private static final int DEFAULT_SHARDS = 64;
+
+    /** A cached page and the number of threads currently using it. */
+    static final class Frame {
+        final PageId pid;
+        volatile Page page;
+        /** number of pins, or -1 once the frame has been retired */
+        private final AtomicInteger pins = new AtomicInteger(0);
+
+        Frame(PageId pid, Page page) {
+            this.pid = pid;
+            this.page = page;
+        }
+
+        /**
+         * Pin the frame so that it cannot be evicted.
+         *
+         * @return false if the frame has already been retired
+         */
+        boolean pin() {
+            for (;;) {
+                int n = pins.get();
+                if (n < 0)
+                    return false;
+                if (pins.compareAndSet(n, n + 1))
+                    return true;
+            }
+        }
+
+        void unpin() {
+            pins.decrementAndGet();
+        }
+
+        boolean isPinned() {
+            return pins.get() > 0;
+        }
+
+        /** Retire the frame if nobody has it pinned. */
+        private boolean retire() {
+            return pins.compareAndSet(0, -1);
+        }
+    }
+
+    /** One shard of the table; the map is only modified under the shard's monitor. */
+    private static final class Shard {
+        final ConcurrentHashMap<PageId, Frame> frames = new ConcurrentHashMap<PageId, Frame>();
+    }
+
+    private final Shard[] shards;
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    PageTable() {
+        this(DEFAULT_SHARDS);
+    }
+
+    /**
+     * @param numShards the number of independently locked shards; rounded
+     *   up to a power of two
+     */
+    PageTable(int numShards) {
+        int n = 1;
+        while (n < numShards)
+            n <<= 1;
+        shards = new Shard[n];
+        for (int i = 0; i < n; i++)
+            shards[i] = new Shard();
+    }
+
+    private Shard shardFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return shards[h & (shards.length - 1)];
+    }
+
+    /** @return the number of cached pages */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Look up the frame of a page without locking.
+     *
+     * @return the frame, or null if the page is not cached
+     */
+    Frame get(PageId pid) {
+        return shardFor(pid).frames.get(pid);
+    }
+
+    /**
+     * Look up the frame of a page and pin it.
+     *
+     * @return the pinned frame, or null if the page is not cached
+     */
+    Frame pin(PageId pid) {
+        Frame f = get(pid);
+        if (f != null && f.pin())
+            return f;
+        return null;
+    }
+
+    /**
+     * Cache a page unless it is already cached.
+     *
+     * @return the frame that was already caching the page, or null if the
+     *   page was added
+     */
+    Frame putIfAbsent(Page page) {
+        PageId pid = page.getId();
+        Shard shard = shardFor(pid);
+        synchronized (shard) {
+            Frame f = shard.frames.get(pid);
+            if (f != null)
+                return f;
+            shard.frames.put(pid, new Frame(pid, page));
+            size.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Cache a page, replacing any version of it already cached.
+     *
+     * @return true if the page was not cached before
+     */
+    boolean put(Page page) {
+        PageId pid = page.getId();
+        Shard shard = shardFor(pid);
+        synchronized (shard) {
+            Frame f = shard.frames.get(pid);
+            if (f != null) {
+                f.page = page;
+                return false;
+            }
+            shard.frames.put(pid, new Frame(pid, page));
+            size.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Replace the cached version of a page, if it is still cached.
+     */
+    void replace(PageId pid, Page page) {
+        Shard shard = shardFor(pid);
+        synchronized (shard) {
+            Frame f = shard.frames.get(pid);
+            if (f != null)
+                f.page = page;
+        }
+    }
+
+    /**
+     * Drop a page from the table whether or not it is pinned.
+     *
+     * @return true if the page was cached
+     */
+    boolean remove(PageId pid) {
+        Shard shard = shardFor(pid);
+        synchronized (shard) {
+            Frame f = shard.frames.remove(pid);
+            if (f == null)
+                return false;
+            f.pins.set(-1);
+            size.decrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Evict a page if it is clean and not pinned.
+     *
+     * @return true if the page was evicted; false if it is pinned, dirty
+     *   or not cached at all
+     */
+    boolean evict(PageId pid) {
+        Shard shard = shardFor(pid);
+        synchronized (shard) {
+            Frame f = shard.frames.get(pid);
+            if (f == null)
+                return false;
+            if (f.page.isDirty() != null || !f.retire())
+                return false;
+            shard.frames.remove(pid);
+            size.decrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * @return a snapshot of the frames currently in the table
+     */
+    List<Frame> frames() {
+        ArrayList<Frame> all = new ArrayList<Frame>(size());
+        for (Shard shard : shards)
+            all.addAll(shard.frames.values());
+        return all;
+    }
+}
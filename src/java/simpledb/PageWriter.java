@@ -0,0 +1,84 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * PageWriter trickles the dirty pages of running transactions to disk in the
+ * background, a few pages every period, through {@link BufferPool#writeBack}.
+ * <p>
+ * Writing pages as they go keeps the dirty page table of the log small, so
+ * that fuzzy checkpoints do not have to write any pages, recovery has little
+ * to redo, and commits find most of their pages on disk already.
+ * <p>
+ * The thread is never interrupted, as an interrupt closes the file channels
+ * it may be writing to; {@link #stop} wakes it up instead.
+ */
+class PageWriter implements Runnable {
+
+    private final BufferPool pool;
+    private final long periodMillis;
+    private final int pagesPerRound;
+    private final Thread thread;
+    private boolean stopped = false; // protected by this
+
+    /**
+     * @param pool the buffer pool to write the pages of
+     * @param periodMillis the time between two rounds of writes
+     * @param pagesPerRound the most pages written in a round
+     */
+    PageWriter(BufferPool pool, long periodMillis, int pagesPerRound) {
+        if (periodMillis <= 0 || pagesPerRound <= 0)
+            throw new IllegalArgumentException("the period and the pages per round must be positive");
+        this.pool = pool;
+        this.periodMillis = periodMillis;
+        this.pagesPerRound = pagesPerRound;
+        this.thread = new Thread(this, "page-writer");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop the thread, and wait for it to finish its round of writes.
+     */
+    void stop() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        if (Thread.currentThread() == thread)
+            return;
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    if (!stopped)
+                        wait(periodMillis);
+                } catch (InterruptedException e) {
+                    stopped = true;
+                }
+                if (stopped)
+                    return;
+            }
+            try {
+                pool.writeBack(pagesPerRound);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -13,6 +13,7 @@ public class QueryPlanVisualizer {
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "index_scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -65,24 +66,51 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof BTreeScan
+                || queryPlan instanceof IndexScan) {
+            String scan = SCAN;
+            String tableName, alias, cond = "";
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else {
+                IndexPredicate ipred;
+                int keyField;
+                scan = INDEX_SCAN;
+                if (queryPlan instanceof BTreeScan) {
+                    BTreeScan s = (BTreeScan) queryPlan;
+                    tableName = s.getTableName();
+                    alias = s.getAlias();
+                    ipred = s.getIndexPredicate();
+                    keyField = ((BTreeFile) Database.getCatalog()
+                            .getDatabaseFile(s.getTableId())).keyField();
+                } else {
+                    IndexScan s = (IndexScan) queryPlan;
+                    tableName = s.getTableName();
+                    alias = s.getAlias();
+                    ipred = s.getIndexPredicate();
+                    keyField = s.getIndex().getKeyField();
+                }
+                if (ipred != null) {
+                    cond = ", " + queryPlan.getTupleDesc().getFieldName(keyField)
+                            + ipred.getOp() + ipred.getField();
+                }
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s)", scan, tableName + alias + cond);
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -0,0 +1,196 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A SecondaryIndex is a B+ tree over one field of a HeapFile table. Every
+ * tuple of the table has an entry (key, page number, slot number) in a
+ * BTreeFile keyed on the key, so the tuples with a key, or in a range of keys,
+ * can be found from the RecordIds in the index instead of by scanning the
+ * whole table.
+ * <p>
+ * Indexes are declared in the catalog file read by {@link Catalog#loadSchema},
+ * and kept in step with their table by {@link BufferPool#insertTuple} and
+ * {@link BufferPool#deleteTuple}, so the entries are written and logged in
+ * the same transaction as the tuples. {@link IndexScan} reads a table through
+ * one of its indexes.
+ */
+public class SecondaryIndex {
+
+    private final int tableid;
+    private final int keyField;
+    private final BTreeFile file;
+
+    /**
+     * Create an index over a field of a table.
+     *
+     * @param table
+     *            the table to index
+     * @param keyField
+     *            the index of the field to index the table on
+     * @param f
+     *            the file the entries are stored in
+     */
+    public SecondaryIndex(HeapFile table, int keyField, File f) {
+        this.tableid = table.getId();
+        this.keyField = keyField;
+        this.file = new BTreeFile(f, 0, entryDesc(table.getTupleDesc().getFieldType(keyField)));
+    }
+
+    /**
+     * @return the schema of the entries of an index on a field of the given type
+     */
+    public static TupleDesc entryDesc(Type keyType) {
+        return new TupleDesc(new Type[] { keyType, Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { "key", "page", "slot" });
+    }
+
+    /**
+     * @return the id of the indexed table
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the index of the indexed field in the table
+     */
+    public int getKeyField() {
+        return keyField;
+    }
+
+    /**
+     * @return the BTreeFile holding the entries
+     */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    /**
+     * @return the entry of a tuple of the table, which must have its RecordId set
+     */
+    public Tuple entry(Tuple t) {
+        RecordId rid = t.getRecordId();
+        Tuple e = new Tuple(file.getTupleDesc());
+        e.setField(0, t.getField(keyField));
+        e.setField(1, new IntField(rid.getPageId().getPageNumber()));
+        e.setField(2, new IntField(rid.getTupleNumber()));
+        return e;
+    }
+
+    /**
+     * @return the RecordId of the tuple of the table an entry points to
+     */
+    public RecordId recordId(Tuple entry) {
+        return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(1)).getValue()),
+                ((IntField) entry.getField(2)).getValue());
+    }
+
+    /**
+     * Add the entry of a tuple just inserted into the table.
+     *
+     * @param tid
+     *            the transaction inserting the tuple
+     * @param t
+     *            the tuple, with the RecordId it was stored at
+     */
+    public void insert(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, file.getId(), entry(t));
+    }
+
+    /**
+     * Remove the entry of a tuple deleted from the table.
+     *
+     * @param tid
+     *            the transaction deleting the tuple
+     * @param key
+     *            the key of the tuple
+     * @param rid
+     *            the RecordId the tuple was stored at
+     * @throws DbException
+     *             if the index has no entry for the tuple
+     */
+    public void delete(TransactionId tid, Field key, RecordId rid)
+            throws DbException, IOException, TransactionAbortedException {
+        int pageNo = rid.getPageId().getPageNumber();
+        int slot = rid.getTupleNumber();
+        Tuple found = null;
+        DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+        it.open();
+        try {
+            while (found == null && it.hasNext()) {
+                Tuple e = it.next();
+                if (((IntField) e.getField(1)).getValue() == pageNo
+                        && ((IntField) e.getField(2)).getValue() == slot)
+                    found = e;
+            }
+        } finally {
+            it.close();
+        }
+        if (found == null)
+            throw new DbException("no index entry for tuple " + rid);
+        Database.getBufferPool().deleteTuple(tid, found);
+    }
+
+    /**
+     * Fill the index from the table when its file is empty: the entries of all
+     * the tuples are sorted and loaded bottom-up.
+     *
+     * @return the number of entries loaded
+     */
+    int build() throws DbException, TransactionAbortedException, IOException {
+        TransactionId tid = new TransactionId();
+        try {
+            OpIterator entries = new Entries(new SeqScan(tid, tableid));
+            return new BTreeBulkLoader(file).load(new ExternalSort(0, entries));
+        } finally {
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * The entries of the tuples of a scan of the table
+     */
+    private class Entries extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private OpIterator child;
+
+        Entries(OpIterator child) {
+            this.child = child;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            return child.hasNext() ? entry(child.next()) : null;
+        }
+
+        public OpIterator[] getChildren() {
+            return new OpIterator[] { child };
+        }
+
+        public void setChildren(OpIterator[] children) {
+            child = children[0];
+        }
+
+        public TupleDesc getTupleDesc() {
+            return file.getTupleDesc();
+        }
+    }
+}
@@ -59,6 +59,20 @@ public class SeqScan implements OpIterator {
         return tableAias;
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return transactionId;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
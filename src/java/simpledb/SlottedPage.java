@@ -0,0 +1,34 @@
+package simpledb;
+
+/**
+ * A page that stores tuples of a fixed size in numbered slots, after a bitmap
+ * of the slots in use.  Changes to such pages are logged as the slots and
+ * fields they touch rather than as whole page images.
+ *
+ * @see PageDelta
+ */
+public interface SlottedPage extends Page {
+
+    /**
+     * @return the offset in the page data of the bitmap of used slots.  The
+     *   bytes before it hold page level data, such as sibling pointers.
+     */
+    public int getHeaderOffset();
+
+    /**
+     * @return the offset in the page data of the first slot; the slots
+     *   follow each other, each as long as a tuple of the page
+     */
+    public int getSlotsOffset();
+
+    /**
+     * @return the number of slots, or 0 if the tuples of this page are not
+     *   stored in fixed size slots
+     */
+    public int getNumSlots();
+
+    /**
+     * @return the TupleDesc of the tuples on this page
+     */
+    public TupleDesc getTupleDesc();
+}
@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Scan resistant 2Q replacement (Johnson and Shasha, VLDB '94).
+ * <p>
+ * A page read for the first time goes to the FIFO queue A1in.  When it falls
+ * out of A1in only its id is remembered, in the ghost queue A1out.  A page
+ * that is read again while its id is still in A1out has proven it is
+ * re-referenced and is admitted to Am, which is managed as an LRU list.
+ * Pages touched by one long sequential scan therefore only ever cycle through
+ * A1in and never push the hot set (e.g. B+ tree internal pages) out of Am.
+ * <p>
+ * All operations are O(1), apart from skipping pages the BufferPool refuses
+ * to evict.
+ *
+ * @Threadsafe
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashSet<PageId> am;
+    private final int kin;
+    private final int kout;
+
+    /**
+     * Create a 2Q policy using the tuning suggested in the paper: A1in holds
+     * a quarter of the pool and A1out remembers half a pool's worth of ids.
+     *
+     * @param capacity the number of pages in the BufferPool
+     */
+    public TwoQueueEvictionPolicy(int capacity) {
+        this(capacity, Math.max(1, capacity / 4), Math.max(1, capacity / 2));
+    }
+
+    /**
+     * @param capacity the number of pages in the BufferPool
+     * @param kin the target size of A1in
+     * @param kout the number of page ids remembered in A1out
+     */
+    public TwoQueueEvictionPolicy(int capacity, int kin, int kout) {
+        this.kin = kin;
+        this.kout = kout;
+        a1in = new LinkedHashSet<PageId>();
+        a1out = new LinkedHashSet<PageId>();
+        am = new LinkedHashSet<PageId>();
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (a1in.contains(pid) || am.contains(pid))
+            return;
+        if (a1out.remove(pid))
+            am.add(pid);
+        else
+            a1in.add(pid);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // hits in A1in are treated as correlated references and ignored
+        if (am.remove(pid))
+            am.add(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (!a1in.remove(pid))
+            am.remove(pid);
+    }
+
+    public synchronized void evictionFailed(PageId pid) {
+        if (a1in.contains(pid) || am.contains(pid))
+            return;
+        // a victim from A1in was remembered in A1out on its way out; put it
+        // back in A1in rather than promoting it to Am
+        if (a1out.remove(pid))
+            a1in.add(pid);
+        else
+            am.add(pid);
+    }
+
+    public synchronized PageId evict(Evictable evictable) {
+        PageId victim = null;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = removeFirst(a1in, evictable);
+            if (victim != null) {
+                remember(victim);
+                return victim;
+            }
+            return removeFirst(am, evictable);
+        }
+        victim = removeFirst(am, evictable);
+        if (victim == null) {
+            victim = removeFirst(a1in, evictable);
+            if (victim != null)
+                remember(victim);
+        }
+        return victim;
+    }
+
+    private void remember(PageId pid) {
+        a1out.add(pid);
+        if (a1out.size() > kout) {
+            Iterator<PageId> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static PageId removeFirst(LinkedHashSet<PageId> queue, Evictable evictable) {
+        Iterator<PageId> it = queue.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.canEvict(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,75 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * WaitsForGraph records which transactions each blocked transaction is
+ * waiting for and finds deadlocks as cycles in that graph.
+ * <p>
+ * The LockManager replaces the out-edges of a waiting transaction every time
+ * the state of the page it waits on changes, and the graph checks for a
+ * cycle through that transaction whenever its edges change.  Since every
+ * cycle must be closed by some edge being added, this finds every deadlock
+ * as soon as it forms.
+ *
+ * @Threadsafe
+ */
+class WaitsForGraph {
+
+    private final HashMap<TransactionId, Set<TransactionId>> waitsFor =
+            new HashMap<TransactionId, Set<TransactionId>>();
+
+    /**
+     * Replace the set of transactions that tid waits for and look for a
+     * deadlock involving tid.
+     *
+     * @param tid the waiting transaction
+     * @param blockers the transactions tid now waits for; empty means tid is
+     *   no longer waiting
+     * @return the transactions on a cycle through tid, or null if there is
+     *   no cycle
+     */
+    synchronized List<TransactionId> setWaits(TransactionId tid, Set<TransactionId> blockers) {
+        if (blockers.isEmpty()) {
+            waitsFor.remove(tid);
+            return null;
+        }
+        waitsFor.put(tid, blockers);
+        ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+        path.add(tid);
+        if (findCycle(tid, path, new HashSet<TransactionId>()))
+            return path;
+        return null;
+    }
+
+    /** Forget that tid is waiting. */
+    synchronized void clearWaits(TransactionId tid) {
+        waitsFor.remove(tid);
+    }
+
+    /**
+     * Depth first search for a path from the last node of path back to
+     * start.  On success path holds the cycle.
+     */
+    private boolean findCycle(TransactionId start, ArrayList<TransactionId> path,
+                              HashSet<TransactionId> visited) {
+        Set<TransactionId> next = waitsFor.get(path.get(path.size() - 1));
+        if (next == null)
+            return false;
+        for (TransactionId t : next) {
+            if (t.equals(start))
+                return true;
+            if (!visited.add(t))
+                continue;
+            path.add(t);
+            if (findCycle(start, path, visited))
+                return true;
+            path.remove(path.size() - 1);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,140 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// small pages, so that a few thousand tuples make a three level tree
+		BufferPool.setPageSize(512);
+		Database.reset();
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private BTreeFile createEmpty() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		return BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+	}
+
+	private ArrayList<Tuple> sortedTuples(int rows) {
+		ArrayList<Tuple> tuples = BTreeUtility.generateRandomTuples(2, rows, 0, rows / 2 + 1);
+		Collections.sort(tuples, new BTreeFileEncoder.TupleComparator(0));
+		return tuples;
+	}
+
+	/**
+	 * Check the tree and return its tuples in key order
+	 */
+	private ArrayList<Tuple> checkAndScan(BTreeFile bf) throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		ArrayList<Tuple> result = new ArrayList<Tuple>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			result.add(it.next());
+		it.close();
+		return result;
+	}
+
+	private void assertSameKeys(List<Tuple> expected, List<Tuple> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+			assertEquals(expected.get(i).getField(0), actual.get(i).getField(0));
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.load() packing full pages
+	 */
+	@Test
+	public void loadFull() throws Exception {
+		BTreeFile bf = createEmpty();
+		ArrayList<Tuple> tuples = sortedTuples(10000);
+		int loaded = new BTreeBulkLoader(bf).load(new TupleIterator(bf.getTupleDesc(), tuples));
+		assertEquals(10000, loaded);
+
+		BTreePageId rootId = ((BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()))).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		assertSameKeys(tuples, checkAndScan(bf));
+
+		// all but the last two leaves are full
+		int perPage = BTreeUtility.getNumTuplesPerPage(2);
+		assertTrue(bf.numPages() < 10000 / perPage + 10000 / perPage / 10 + 3);
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.load() leaving room on the pages
+	 */
+	@Test
+	public void loadWithFillFactor() throws Exception {
+		for (double fill : new double[] { 0.5, 0.7 }) {
+			for (int rows : new int[] { 1, 40, 1000, 6000 }) {
+				BTreeFile bf = createEmpty();
+				ArrayList<Tuple> tuples = sortedTuples(rows);
+				new BTreeBulkLoader(bf, fill).load(new TupleIterator(bf.getTupleDesc(), tuples));
+				assertSameKeys(tuples, checkAndScan(bf));
+
+				// the tree takes inserts after the load
+				Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(rows / 4, 2));
+				assertEquals(rows + 1, checkAndScan(bf).size());
+			}
+		}
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.load() rejecting unsorted input
+	 */
+	@Test(expected = DbException.class)
+	public void loadUnsorted() throws Exception {
+		BTreeFile bf = createEmpty();
+		ArrayList<Tuple> tuples = sortedTuples(100);
+		Collections.reverse(tuples);
+		new BTreeBulkLoader(bf).load(new TupleIterator(bf.getTupleDesc(), tuples));
+	}
+
+	/**
+	 * Unit test for loading the output of ExternalSort, with more runs than are
+	 * merged in one pass
+	 */
+	@Test
+	public void loadExternallySorted() throws Exception {
+		BTreeFile bf = createEmpty();
+		ArrayList<Tuple> tuples = BTreeUtility.generateRandomTuples(2, 10000, 0, 5000);
+		ExternalSort sort = new ExternalSort(0, new TupleIterator(bf.getTupleDesc(), tuples), 100);
+		new BTreeBulkLoader(bf).load(sort);
+
+		Collections.sort(tuples, new BTreeFileEncoder.TupleComparator(0));
+		assertSameKeys(tuples, checkAndScan(bf));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
@@ -0,0 +1,333 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompactPageTest extends SimpleDbTestBase {
+	private static final TupleDesc TD = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Database.reset();
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+	}
+
+	private BTreeFile createEmpty() throws Exception {
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	/**
+	 * Keys with a long common prefix, like most string keys in practice
+	 */
+	private static Tuple tuple(int n) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new StringField(String.format("customer/eu-west/account-%08d", n), Type.STRING_LEN));
+		t.setField(1, new IntField(n));
+		return t;
+	}
+
+	private ArrayList<Integer> scan(BTreeFile bf) throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		ArrayList<Integer> result = new ArrayList<Integer>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			result.add(((IntField) it.next().getField(1)).getValue());
+		it.close();
+		return result;
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.separator()
+	 */
+	@Test
+	public void separator() {
+		assertEquals("apr", sep("apple", "apricot"));
+		assertEquals("b", sep("apple", "banana"));
+		assertEquals("app", sep("ap", "apple"));
+		assertEquals("apple", sep("apple", "apple"));
+		assertEquals(new IntField(3), BTreeInternalPage.separator(new IntField(3), new IntField(7)));
+	}
+
+	private static String sep(String left, String right) {
+		return ((StringField) BTreeInternalPage.separator(new StringField(left, Type.STRING_LEN),
+				new StringField(right, Type.STRING_LEN))).getValue();
+	}
+
+	/**
+	 * Unit test for reading back a compact leaf page
+	 */
+	@Test
+	public void leafPageRoundTrip() throws Exception {
+		BTreeFile bf = createEmpty();
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+		BTreeLeafPage page = new BTreeLeafPage(pid, BTreePage.createEmptyPageData(), 0);
+		assertTrue(page.isCompact());
+		// far more than the 30 tuples a page holds with fixed size keys
+		int n = 0;
+		while (page.getNumEmptySlots() > 0)
+			page.insertTuple(tuple(1000 - n++));
+		assertTrue(n > 100);
+
+		BTreeLeafPage read = new BTreeLeafPage(pid, page.getPageData(), 0);
+		assertEquals(n, read.getNumTuples());
+		assertEquals(page.getUsedSpace(), read.getUsedSpace());
+		Iterator<Tuple> expected = page.iterator();
+		Iterator<Tuple> actual = read.iterator();
+		while (expected.hasNext()) {
+			Tuple e = expected.next();
+			Tuple a = actual.next();
+			assertEquals(e.getField(0), a.getField(0));
+			assertEquals(e.getField(1), a.getField(1));
+			assertEquals(e.getRecordId(), a.getRecordId());
+		}
+		assertFalse(actual.hasNext());
+	}
+
+	/**
+	 * Unit test for the used space of compact pages, which is kept up to date by
+	 * inserts, deletes and updates rather than added up again
+	 */
+	@Test
+	public void usedSpaceKeptUpToDate() throws Exception {
+		BTreeFile bf = createEmpty();
+		BTreePageId leafId = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+		BTreeLeafPage leaf = new BTreeLeafPage(leafId, BTreePage.createEmptyPageData(), 0);
+		ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+		for (int i = 0; i < 60; i++) {
+			Tuple t = tuple((i * 37) % 60);
+			leaf.insertTuple(t);
+			inserted.add(t);
+		}
+		for (int i = 0; i < inserted.size(); i += 3)
+			leaf.deleteTuple(inserted.get(i));
+		assertEquals(new BTreeLeafPage(leafId, leaf.getPageData(), 0).getUsedSpace(), leaf.getUsedSpace());
+
+		BTreePageId internalId = new BTreePageId(bf.getId(), 2, BTreePageId.INTERNAL);
+		BTreeInternalPage internal = new BTreeInternalPage(internalId, BTreePage.createEmptyPageData(), 0);
+		for (int i = 0; i < 40; i++)
+			internal.insertEntry(new BTreeEntry(tuple(2 * i).getField(0),
+					new BTreePageId(bf.getId(), 10 + i, BTreePageId.LEAF),
+					new BTreePageId(bf.getId(), 11 + i, BTreePageId.LEAF)));
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = internal.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		for (int i = 0; i < entries.size(); i += 3)
+			internal.deleteKeyAndRightChild(entries.get(i));
+		BTreeEntry e = entries.get(10);
+		e.setKey(new StringField(((StringField) e.getKey()).getValue() + "5", Type.STRING_LEN));
+		internal.updateEntry(e);
+		assertEquals(new BTreeInternalPage(internalId, internal.getPageData(), 0).getUsedSpace(),
+				internal.getUsedSpace());
+	}
+
+	/**
+	 * Unit test for reading a page that is not in the compact format as a compact page
+	 */
+	@Test
+	public void corruptPage() throws Exception {
+		BTreeFile bf = createEmpty();
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		entries.add(new BTreeEntry(new StringField("abc", Type.STRING_LEN),
+				new BTreePageId(bf.getId(), 2, BTreePageId.LEAF), new BTreePageId(bf.getId(), 3, BTreePageId.LEAF)));
+		byte[] data = BTreeInternalPage.createCompactPageData(entries, BTreePageId.LEAF);
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		assertEquals(entries.get(0).getKey(), new BTreeInternalPage(pid, data, 0).iterator().next().getKey());
+
+		// the key now claims to share a prefix with a key before it
+		int key = new String(data, "ISO-8859-1").indexOf("abc");
+		data[key - 2] = 2;
+		try {
+			new BTreeInternalPage(pid, data, 0);
+			fail("expected an IOException");
+		} catch (java.io.IOException expected) {
+		}
+	}
+
+	/**
+	 * Unit test for a tree keyed on a string that was written before the compact format
+	 * existed, which keeps its fixed slot format
+	 */
+	@Test
+	public void fixedFormatStringTree() throws Exception {
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		java.io.FileOutputStream out = new java.io.FileOutputStream(f);
+		out.write(BTreeRootPtrPage.createEmptyPageData());
+		out.write(BTreePage.createEmptyPageData());
+		out.close();
+		BTreeFile bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		assertFalse(bf.isCompact());
+		for (int i = 0; i < 200; i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(i));
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		// fixed size keys fit 30 to a page
+		assertTrue(bf.numPages() > 200 / 30);
+
+		Database.getBufferPool().flushAllPages();
+		Database.reset();
+		bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		assertFalse(bf.isCompact());
+		BTreePageId rootId = bf.getRootPtrPage(tid, new HashMap<PageId, Page>()).getRootId();
+		assertFalse(((BTreePage) Database.getBufferPool().getPage(tid, rootId, Permissions.READ_ONLY)).isCompact());
+		ArrayList<Integer> scanned = scan(bf);
+		assertEquals(200, scanned.size());
+		for (int i = 0; i < scanned.size(); i++)
+			assertEquals(i, (int) scanned.get(i));
+	}
+
+	/**
+	 * Unit test for the format flag of a new tree keyed on a string
+	 */
+	@Test
+	public void formatRecorded() throws Exception {
+		BTreeFile bf = createEmpty();
+		Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(1));
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		Database.getBufferPool().flushAllPages();
+
+		Database.reset();
+		bf = new BTreeFile(bf.getFile(), 0, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		assertTrue(((BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()))).isCompact());
+		assertTrue(bf.isCompact());
+		assertEquals(1, scan(bf).size());
+	}
+
+	/**
+	 * Unit test for inserting into and deleting from a tree of compact pages
+	 */
+	@Test
+	public void insertAndDelete() throws Exception {
+		BTreeFile bf = createEmpty();
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for (int i = 0; i < 5000; i++)
+			keys.add(i);
+		Collections.shuffle(keys, new Random(13));
+		for (int k : keys)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(k));
+
+		ArrayList<Integer> scanned = scan(bf);
+		assertEquals(5000, scanned.size());
+		for (int i = 0; i < scanned.size(); i++)
+			assertEquals(i, (int) scanned.get(i));
+		// fixed size keys would need at least 5000 / 30 leaf pages
+		assertTrue(bf.numPages() < 5000 / 30 / 2);
+
+		// separators are truncated to the shortest prefix that tells the keys on either side apart
+		BTreePageId rootId = bf.getRootPtrPage(tid, new HashMap<PageId, Page>()).getRootId();
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootId, Permissions.READ_ONLY);
+		int keyLength = tuple(0).getField(0).toString().length();
+		int truncated = 0;
+		Iterator<BTreeEntry> it = root.iterator();
+		while (it.hasNext()) {
+			int length = ((StringField) it.next().getKey()).getValue().length();
+			assertTrue(length <= keyLength);
+			if (length < keyLength)
+				truncated++;
+		}
+		assertTrue(truncated > 0);
+
+		// delete most of the tuples, so that pages steal and merge
+		DbFileIterator tuples = bf.iterator(tid);
+		tuples.open();
+		ArrayList<Tuple> toDelete = new ArrayList<Tuple>();
+		while (tuples.hasNext()) {
+			Tuple t = tuples.next();
+			if (((IntField) t.getField(1)).getValue() % 10 != 0)
+				toDelete.add(t);
+		}
+		tuples.close();
+		for (Tuple t : toDelete)
+			Database.getBufferPool().deleteTuple(tid, t);
+		assertEquals(500, scan(bf).size());
+	}
+
+	/**
+	 * Unit test for keys of very different lengths, so that pages split, steal and merge
+	 * unevenly
+	 */
+	@Test
+	public void randomKeyLengths() throws Exception {
+		BTreeFile bf = createEmpty();
+		Random rand = new Random(7);
+		for (int i = 0; i < 1000; i++) {
+			char[] key = new char[rand.nextInt(Type.STRING_LEN + 1)];
+			for (int j = 0; j < key.length; j++)
+				key[j] = (char) ('a' + rand.nextInt(3));
+			Tuple t = new Tuple(TD);
+			t.setField(0, new StringField(new String(key), Type.STRING_LEN));
+			t.setField(1, new IntField(i));
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		assertEquals(1000, scan(bf).size());
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		DbFileIterator tuples = bf.iterator(tid);
+		tuples.open();
+		ArrayList<Tuple> toDelete = new ArrayList<Tuple>();
+		while (tuples.hasNext()) {
+			Tuple t = tuples.next();
+			if (rand.nextInt(10) != 0)
+				toDelete.add(t);
+		}
+		tuples.close();
+		for (Tuple t : toDelete)
+			Database.getBufferPool().deleteTuple(tid, t);
+		assertEquals(1000 - toDelete.size(), scan(bf).size());
+	}
+
+	/**
+	 * Unit test for bulk loading string keys into compact pages
+	 */
+	@Test
+	public void bulkLoad() throws Exception {
+		BTreeFile bf = createEmpty();
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for (int i = 0; i < 5000; i++)
+			tuples.add(tuple(i));
+		new BTreeBulkLoader(bf).load(new TupleIterator(TD, tuples));
+		assertEquals(5000, scan(bf).size());
+		assertTrue(bf.numPages() < 5000 / 30 / 2);
+
+		Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(2500));
+		assertEquals(5001, scan(bf).size());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompactPageTest.class);
+	}
+}
@@ -0,0 +1,191 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompactTest extends SimpleDbTestBase {
+	private static final int ROWS = 6000;
+
+	private BTreeFile bf;
+	private TransactionId tid;
+
+	/**
+	 * Set up a three level tree on small pages, and delete most of its tuples
+	 */
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(512);
+		Database.reset();
+		bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+		Database.resetBufferPool(500);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/**
+	 * Delete all but every keep-th tuple in key order, and commit
+	 */
+	private void deleteMost(int keep) throws Exception {
+		TransactionId t = new TransactionId();
+		ArrayList<Tuple> victims = new ArrayList<Tuple>();
+		DbFileIterator it = bf.iterator(t);
+		it.open();
+		for (int i = 0; it.hasNext(); i++) {
+			Tuple tup = it.next();
+			if (i % keep != 0)
+				victims.add(tup);
+		}
+		it.close();
+		for (Tuple tup : victims)
+			Database.getBufferPool().deleteTuple(t, tup);
+		Database.getBufferPool().transactionComplete(t);
+	}
+
+	/**
+	 * Check the tree and return its keys in order
+	 */
+	private ArrayList<Field> checkAndScan() throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		ArrayList<Field> keys = new ArrayList<Field>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			keys.add(it.next().getField(0));
+		it.close();
+		return keys;
+	}
+
+	/**
+	 * Returns the page numbers of the leaves, following the sibling pointers from the left-most leaf
+	 */
+	private ArrayList<Integer> leafPageNos() throws Exception {
+		ArrayList<Integer> pageNos = new ArrayList<Integer>();
+		BTreeLeafPage leaf = bf.findLeafPage(tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY, null);
+		while (true) {
+			pageNos.add(leaf.getId().getPageNumber());
+			if (leaf.getRightSiblingId() == null)
+				return pageNos;
+			leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, leaf.getRightSiblingId(), Permissions.READ_ONLY);
+		}
+	}
+
+	/**
+	 * Compaction packs the leaves, lays them out in key order and shrinks the file
+	 */
+	@Test
+	public void compact() throws Exception {
+		deleteMost(4);
+		int pagesBefore = bf.numPages();
+		ArrayList<Field> keys = checkAndScan();
+		int leavesBefore = leafPageNos().size();
+		Database.getBufferPool().transactionComplete(tid);
+
+		int shrunk = bf.compact(1.0);
+		assertEquals(pagesBefore - bf.numPages(), shrunk);
+		assertTrue(bf.numPages() < pagesBefore / 2);
+
+		tid = new TransactionId();
+		assertEquals(keys, checkAndScan());
+		ArrayList<Integer> pageNos = leafPageNos();
+		assertTrue(pageNos.size() <= leavesBefore / 2 + 1);
+		for (int i = 1; i < pageNos.size(); i++)
+			assertTrue(pageNos.get(i) > pageNos.get(i - 1));
+
+		// the tree takes inserts after the compaction
+		for (int i = 0; i < 500; i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		assertEquals(keys.size() + 500, checkAndScan().size());
+	}
+
+	/**
+	 * A fill factor below one leaves room on the leaves
+	 */
+	@Test
+	public void fillFactor() throws Exception {
+		deleteMost(3);
+		ArrayList<Field> keys = checkAndScan();
+		Database.getBufferPool().transactionComplete(tid);
+
+		bf.compact(1.0);
+		int full = bf.numPages();
+		bf.compact(0.6);
+		assertTrue(bf.numPages() > full);
+
+		tid = new TransactionId();
+		assertEquals(keys, checkAndScan());
+	}
+
+	/**
+	 * Compacting a tree whose tuples were all deleted leaves a single empty leaf
+	 */
+	@Test
+	public void compactEmpty() throws Exception {
+		deleteMost(ROWS + 1);
+		TransactionId t = new TransactionId();
+		DbFileIterator it = bf.iterator(t);
+		it.open();
+		Tuple last = it.next();
+		it.close();
+		Database.getBufferPool().deleteTuple(t, last);
+		Database.getBufferPool().transactionComplete(t);
+
+		bf.compact(1.0);
+		assertEquals(1, bf.numPages());
+		assertEquals(0, checkAndScan().size());
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(7, 2));
+		assertEquals(1, checkAndScan().size());
+	}
+
+	/**
+	 * Compaction waits for a transaction reading the tree to finish
+	 */
+	@Test
+	public void waitsForReaders() throws Exception {
+		deleteMost(4);
+		ArrayList<Field> keys = checkAndScan();
+
+		final Exception[] failure = new Exception[1];
+		Thread compactor = new Thread() {
+			public void run() {
+				try {
+					bf.compact(1.0);
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		compactor.start();
+		compactor.join(500);
+		assertTrue(compactor.isAlive());
+
+		Database.getBufferPool().transactionComplete(tid);
+		compactor.join();
+		assertNull(failure[0]);
+
+		tid = new TransactionId();
+		assertEquals(keys, checkAndScan());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompactTest.class);
+	}
+}
@@ -201,6 +201,102 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * Unit test for BTreeFile.indexIterator() locking only the leaf pages it reads
+	 */
+	@Test public void indexIteratorLocksOnlyLeaves() throws Exception {
+		BTreeFile twoLeafPageFile = BTreeUtility.createBTreeFile(2, 520,
+				null, null, 0);
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(twoLeafPageFile.getId());
+		BTreePageId rootId = ((BTreeRootPtrPage) twoLeafPageFile.readPage(rootPtrId)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(5));
+		DbFileIterator it = twoLeafPageFile.indexIterator(tid, ipred);
+		it.open();
+		assertTrue(it.hasNext());
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtrId));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+
+		// a writer can lock the root page, e.g. to split a leaf, while the reader is still open
+		TransactionId writer = new TransactionId();
+		Database.getBufferPool().getPage(writer, rootId, Permissions.READ_WRITE);
+		Database.getBufferPool().transactionComplete(writer);
+		assertTrue(it.hasNext());
+		it.close();
+	}
+
+	/**
+	 * Unit test for BTreeFile.indexIterator() with a batch of keys
+	 */
+	@Test public void indexIteratorBatch() throws Exception {
+		// a few thousand tuples over a few hundred keys, so that runs of equal keys span leaves
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 5000, 300,
+				null, tuples, 0);
+
+		Random rand = new Random(14);
+		ArrayList<Field> keys = new ArrayList<Field>();
+		HashSet<Integer> keySet = new HashSet<Integer>();
+		for (int i = 0; i < 60; i++) {
+			// some keys repeated, some beyond the largest key in the file
+			int k = rand.nextInt(330);
+			keys.add(new IntField(k));
+			keySet.add(k);
+		}
+		Collections.sort(keys, new Comparator<Field>() {
+			public int compare(Field a, Field b) {
+				return ((IntField) a).getValue() - ((IntField) b).getValue();
+			}
+		});
+
+		int expected = 0;
+		for (ArrayList<Integer> t : tuples) {
+			if (keySet.contains(t.get(0)))
+				expected++;
+		}
+
+		DbFileIterator it = bigFile.indexIterator(tid, keys);
+		it.open();
+		int count = 0;
+		int prev = -1;
+		while (it.hasNext()) {
+			int k = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(keySet.contains(k));
+			assertTrue(k >= prev);
+			prev = k;
+			count++;
+		}
+		assertEquals(expected, count);
+
+		// rewind answers the batch again
+		it.rewind();
+		count = 0;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		assertEquals(expected, count);
+		it.close();
+
+		// an empty batch matches nothing
+		it = bigFile.indexIterator(tid, new ArrayList<Field>());
+		it.open();
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	/**
+	 * Unit test for BTreeFile.indexIterator() rejecting a batch of unsorted keys
+	 */
+	@Test(expected = DbException.class)
+	public void indexIteratorBatchUnsorted() throws Exception {
+		ArrayList<Field> keys = new ArrayList<Field>();
+		keys.add(new IntField(7));
+		keys.add(new IntField(3));
+		f.indexIterator(tid, keys).open();
+	}
+
 	/**
 	 * JUnit suite target
 	 */
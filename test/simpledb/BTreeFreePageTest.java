@@ -0,0 +1,169 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeFreePageTest extends SimpleDbTestBase {
+	private BTreeFile bf;
+	private TransactionId tid;
+
+	/**
+	 * Set up a tree on small pages
+	 */
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(512);
+		Database.reset();
+		bf = BTreeUtility.createRandomBTreeFile(2, 3000, null, null, 0);
+		Database.resetBufferPool(500);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/**
+	 * Free pages with a transaction of their own, and commit it
+	 */
+	private void freePages(int... pageNos) throws Exception {
+		TransactionId t = new TransactionId();
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		for (int pageNo : pageNos)
+			bf.setEmptyPage(t, dirtypages, pageNo);
+		for (Page p : dirtypages.values())
+			p.markDirty(true, t);
+		Database.getBufferPool().transactionComplete(t);
+	}
+
+	/**
+	 * @return the first header page, read from disk
+	 */
+	private BTreeHeaderPage firstHeader() {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+		return (BTreeHeaderPage) bf.readPage(rootPtr.getHeaderId());
+	}
+
+	/**
+	 * Pages freed by committed transactions are handed out again, and the transaction
+	 * taking them does not lock the header page
+	 */
+	@Test
+	public void reuseCommitted() throws Exception {
+		freePages(5, 9, 12);
+		int pages = bf.numPages();
+		HashSet<Integer> reused = new HashSet<Integer>();
+		for (int i = 0; i < 3; i++)
+			reused.add(bf.getEmptyPageNo(tid, new HashMap<PageId, Page>()));
+		assertEquals(new HashSet<Integer>(Arrays.asList(5, 9, 12)), reused);
+		assertEquals(pages, bf.numPages());
+
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtr.getHeaderId()));
+
+		// the cache is empty now, so the file grows
+		assertEquals(pages + 1, bf.getEmptyPageNo(tid, new HashMap<PageId, Page>()));
+	}
+
+	/**
+	 * A batch of free slots is taken off the header page at once, and marked used on disk
+	 */
+	@Test
+	public void batch() throws Exception {
+		int[] pageNos = new int[BTreeFile.ALLOCATION_BATCH + 10];
+		for (int i = 0; i < pageNos.length; i++)
+			pageNos[i] = i + 2;
+		freePages(pageNos);
+
+		assertEquals(2, bf.getEmptyPageNo(tid, new HashMap<PageId, Page>()));
+		BTreeHeaderPage header = firstHeader();
+		for (int i = 0; i < pageNos.length; i++)
+			assertEquals(i < BTreeFile.ALLOCATION_BATCH, header.isSlotUsed(pageNos[i]));
+	}
+
+	/**
+	 * A transaction reuses the pages it freed itself, but nobody else does before it commits
+	 */
+	@Test
+	public void uncommittedFrees() throws Exception {
+		TransactionId other = new TransactionId();
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		bf.setEmptyPage(other, dirtypages, 7);
+
+		int pages = bf.numPages();
+		assertEquals(pages + 1, bf.getEmptyPageNo(tid, new HashMap<PageId, Page>()));
+		assertEquals(7, bf.getEmptyPageNo(other, dirtypages));
+		Database.getBufferPool().transactionComplete(other, false);
+	}
+
+	/**
+	 * The tree stays consistent under delete and insert churn, and the file only grows
+	 * once the pages freed by the deletes have been reused
+	 */
+	@Test
+	public void churn() throws Exception {
+		ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		for (int i = 0; it.hasNext(); i++) {
+			Tuple t = it.next();
+			if (i % 4 != 0)
+				deleted.add(t);
+		}
+		it.close();
+		for (Tuple t : deleted)
+			Database.getBufferPool().deleteTuple(tid, t);
+		Database.getBufferPool().transactionComplete(tid);
+		int pages = bf.numPages();
+
+		tid = new TransactionId();
+		for (Tuple t : deleted)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(BTreeUtility.tupleToList(t)));
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		Database.getBufferPool().transactionComplete(tid);
+		assertTrue(bf.numPages() > pages);
+		BTreeHeaderPage header = firstHeader();
+		for (int pageNo = 1; pageNo <= pages; pageNo++)
+			assertTrue(header.isSlotUsed(pageNo));
+	}
+
+	/**
+	 * The pages taken by a transaction that aborts are handed out again
+	 */
+	@Test
+	public void reuseAborted() throws Exception {
+		int pages = bf.numPages();
+		for (int i = 0; i < 300; i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		Database.getBufferPool().transactionComplete(tid, false);
+		assertTrue(bf.numPages() > pages);
+		pages = bf.numPages();
+
+		tid = new TransactionId();
+		for (int i = 0; i < 300; i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(pages, bf.numPages());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeFreePageTest.class);
+	}
+}
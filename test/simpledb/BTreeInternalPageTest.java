@@ -166,6 +166,43 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChildId(), against a linear scan of the entries
+	 */
+	@Test public void findChildId() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+
+		assertEquals(entries.get(0).getLeftChild(), page.findChildId(null, false));
+		assertEquals(entries.get(entries.size() - 1).getRightChild(), page.findChildId(null, true));
+		for (int[] entry : EXAMPLE_VALUES) {
+			for (int key = entry[1] - 1; key <= entry[1] + 1; key++) {
+				IntField f = new IntField(key);
+				BTreePageId forward = entries.get(entries.size() - 1).getRightChild();
+				for (BTreeEntry e : entries) {
+					if (e.getKey().compare(Predicate.Op.GREATER_THAN_OR_EQ, f)) {
+						forward = e.getLeftChild();
+						break;
+					}
+				}
+				BTreePageId reverse = entries.get(0).getLeftChild();
+				for (BTreeEntry e : entries) {
+					if (e.getKey().compare(Predicate.Op.LESS_THAN_OR_EQ, f))
+						reverse = e.getRightChild();
+				}
+				assertEquals(forward, page.findChildId(f, false));
+				assertEquals(reverse, page.findChildId(f, true));
+			}
+		}
+
+		// the search sees entries deleted from the page
+		page.deleteKeyAndRightChild(entries.get(5));
+		assertEquals(entries.get(6).getLeftChild(), page.findChildId(entries.get(5).getKey(), false));
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
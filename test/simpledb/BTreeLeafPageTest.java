@@ -185,6 +185,58 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field, boolean) and
+	 * BTreeLeafPage.reverseIterator(Field, boolean)
+	 */
+	@Test public void testIteratorFromKey() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		// delete every third tuple, so that the used slots have gaps
+		Iterator<Tuple> it = page.iterator();
+		for (int i = 0; it.hasNext(); i++) {
+			Tuple tup = it.next();
+			if (i % 3 == 0)
+				page.deleteTuple(tup);
+		}
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		it = page.iterator();
+		while (it.hasNext())
+			tuples.add(it.next());
+
+		for (int[] tuple : EXAMPLE_VALUES) {
+			for (int key = tuple[0] - 1; key <= tuple[0] + 1; key++) {
+				IntField f = new IntField(key);
+				assertEquals(filter(tuples, Predicate.Op.GREATER_THAN_OR_EQ, f, false), toList(page.iterator(f, true)));
+				assertEquals(filter(tuples, Predicate.Op.GREATER_THAN, f, false), toList(page.iterator(f, false)));
+				assertEquals(filter(tuples, Predicate.Op.LESS_THAN_OR_EQ, f, true), toList(page.reverseIterator(f, true)));
+				assertEquals(filter(tuples, Predicate.Op.LESS_THAN, f, true), toList(page.reverseIterator(f, false)));
+			}
+		}
+
+		// the search sees tuples inserted into the page
+		Tuple addition = BTreeUtility.getBTreeTuple(20000, 2);
+		page.insertTuple(addition);
+		assertTrue(addition.equals(page.iterator(new IntField(20000), true).next()));
+	}
+
+	private static ArrayList<Tuple> filter(List<Tuple> tuples, Predicate.Op op, Field f, boolean reverse) {
+		ArrayList<Tuple> matches = new ArrayList<Tuple>();
+		for (Tuple tup : tuples) {
+			if (tup.getField(0).compare(op, f))
+				matches.add(tup);
+		}
+		if (reverse)
+			Collections.reverse(matches);
+		return matches;
+	}
+
+	private static ArrayList<Tuple> toList(Iterator<Tuple> it) {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		while (it.hasNext())
+			tuples.add(it.next());
+		return tuples;
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getNumEmptySlots()
 	 */
@@ -0,0 +1,115 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeReadAheadTest extends SimpleDbTestBase {
+	private static final int ROWS = 20000;
+
+	private BTreeFile f;
+	private TransactionId tid;
+
+	/**
+	 * Set up a B+ tree file with many leaves, and a buffer pool much smaller than the file
+	 */
+	@Before
+	public void setUp() throws Exception {
+		f = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+		Database.resetBufferPool(20);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+	}
+
+	/**
+	 * Wait for a page to be read into the buffer pool
+	 */
+	private static boolean waitCached(PageId pid) throws InterruptedException {
+		for (int i = 0; i < 500; i++) {
+			if (Database.getBufferPool().isCached(pid))
+				return true;
+			Thread.sleep(10);
+		}
+		return false;
+	}
+
+	/**
+	 * Scan it and check that every tuple comes back, in key order
+	 */
+	private void checkScan(DbFileIterator it, boolean forward) throws Exception {
+		it.open();
+		int count = 0;
+		Field prev = null;
+		while (it.hasNext()) {
+			Field key = it.next().getField(0);
+			if (prev != null)
+				assertFalse(key.compare(forward ? Predicate.Op.LESS_THAN : Predicate.Op.GREATER_THAN, prev));
+			prev = key;
+			count++;
+		}
+		it.close();
+		assertEquals(ROWS, count);
+	}
+
+	/**
+	 * Full scans are complete and in order while leaves are read ahead
+	 */
+	@Test
+	public void scanInOrder() throws Exception {
+		checkScan(f.iterator(tid), true);
+		checkScan(f.reverseiterator(tid), false);
+		IndexPredicate ipred = new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(Integer.MIN_VALUE));
+		checkScan(f.indexIterator(tid, ipred), true);
+		ipred = new IndexPredicate(Predicate.Op.LESS_THAN_OR_EQ, new IntField(Integer.MAX_VALUE));
+		checkScan(f.indexReverseIterator(tid, ipred), false);
+	}
+
+	/**
+	 * The right sibling of the first leaf is read without the scan asking for it
+	 */
+	@Test
+	public void forwardReadAhead() throws Exception {
+		BTreeFile.BTreeFileIterator it = (BTreeFile.BTreeFileIterator) f.iterator(tid);
+		it.open();
+		assertTrue(it.hasNext());
+		it.next();
+		BTreePageId next = it.curp.getRightSiblingId();
+		assertNotNull(next);
+		assertTrue(waitCached(next));
+		it.close();
+	}
+
+	/**
+	 * The left sibling of the last leaf is read without the scan asking for it
+	 */
+	@Test
+	public void reverseReadAhead() throws Exception {
+		BTreeFile.BTreeFileReverseIterator it = (BTreeFile.BTreeFileReverseIterator) f.reverseiterator(tid);
+		it.open();
+		assertTrue(it.hasNext());
+		it.next();
+		BTreePageId next = it.curp.getLeftSiblingId();
+		assertNotNull(next);
+		assertTrue(waitCached(next));
+		it.close();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeReadAheadTest.class);
+	}
+}
@@ -0,0 +1,131 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static final EvictionPolicy.Evictable ANY = new EvictionPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    private static final EvictionPolicy.Evictable NONE = new EvictionPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return false;
+        }
+    };
+
+    private static HeapPageId page(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: referenced pages get a second chance.
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy policy = new ClockEvictionPolicy(3);
+        policy.pageLoaded(page(0));
+        policy.pageLoaded(page(1));
+        policy.pageLoaded(page(2));
+        policy.pageAccessed(page(0));
+        policy.pageAccessed(page(2));
+
+        assertEquals(page(1), policy.evict(ANY));
+        policy.pageLoaded(page(3));
+        // page 0 lost its reference bit on the first sweep
+        assertEquals(page(0), policy.evict(ANY));
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: the filter is respected and removed
+     * pages are forgotten.
+     */
+    @Test public void clockFilterAndRemove() {
+        EvictionPolicy policy = new ClockEvictionPolicy(2);
+        policy.pageLoaded(page(0));
+        policy.pageLoaded(page(1));
+        assertNull(policy.evict(NONE));
+
+        policy.pageRemoved(page(0));
+        assertEquals(page(1), policy.evict(ANY));
+        assertNull(policy.evict(ANY));
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: the ring grows past its capacity.
+     */
+    @Test public void clockGrows() {
+        EvictionPolicy policy = new ClockEvictionPolicy(1);
+        for (int i = 0; i < 4; i++)
+            policy.pageLoaded(page(i));
+        for (int i = 0; i < 4; i++)
+            policy.evict(ANY);
+        assertNull(policy.evict(ANY));
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy: a scan does not flush pages that
+     * were re-referenced after leaving A1in.
+     */
+    @Test public void twoQueueScanResistance() {
+        EvictionPolicy policy = new TwoQueueEvictionPolicy(4, 1, 4);
+        policy.pageLoaded(page(100));
+        assertEquals(page(100), policy.evict(ANY));
+        // page 100 is remembered in A1out, so reloading it promotes it to Am
+        policy.pageLoaded(page(100));
+
+        for (int i = 0; i < 10; i++) {
+            policy.pageLoaded(page(i));
+            if (i > 0)
+                assertEquals(page(i - 1), policy.evict(ANY));
+        }
+        assertEquals(page(100), policy.evict(ANY));
+        assertEquals(page(9), policy.evict(ANY));
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy: Am is managed as an LRU list.
+     */
+    @Test public void twoQueueLru() {
+        EvictionPolicy policy = new TwoQueueEvictionPolicy(4, 0, 4);
+        for (int i = 0; i < 2; i++) {
+            policy.pageLoaded(page(i));
+            policy.evict(ANY);
+            policy.pageLoaded(page(i));
+        }
+        policy.pageAccessed(page(0));
+        assertEquals(page(1), policy.evict(ANY));
+        assertEquals(page(0), policy.evict(ANY));
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy: a victim handed back after a
+     * failed eviction is not promoted to Am as if it had been reloaded.
+     */
+    @Test public void twoQueueEvictionFailed() {
+        EvictionPolicy policy = new TwoQueueEvictionPolicy(4, 1, 4);
+        policy.pageLoaded(page(0));
+        policy.pageLoaded(page(1));
+        assertEquals(page(0), policy.evict(ANY));
+        policy.evictionFailed(page(0));
+
+        // page 0 is back at the end of A1in, and leaves before nothing else
+        assertEquals(page(1), policy.evict(ANY));
+        assertEquals(page(0), policy.evict(ANY));
+        assertNull(policy.evict(ANY));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
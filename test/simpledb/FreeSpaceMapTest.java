@@ -0,0 +1,95 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for FreeSpaceMap.find(): searches from the hint and wraps
+     * around.
+     */
+    @Test public void findWrapsAround() {
+        FreeSpaceMap fsm = new FreeSpaceMap();
+        assertEquals(-1, fsm.find(0));
+
+        fsm.update(2, true);
+        fsm.update(7, true);
+        assertEquals(2, fsm.find(0));
+        assertEquals(7, fsm.find(3));
+        assertEquals(2, fsm.find(8));
+
+        fsm.update(2, false);
+        assertEquals(7, fsm.find(0));
+        fsm.update(7, false);
+        assertEquals(-1, fsm.find(5));
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple(): inserts go to pages with free
+     * slots instead of appending, including pages freed by deletes.
+     */
+    @Test public void heapFileReusesFreeSpace() throws Exception {
+        HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 1200, null, null);
+        TransactionId tid = new TransactionId();
+        int pages = hf.numPages();
+        assertEquals(3, pages);
+
+        // the last page has room
+        Tuple t = Utility.getHeapTuple(new int[] { 1, 2 });
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(pages - 1, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(pages, hf.numPages());
+
+        // fill it, then free a slot on page 0
+        HeapPage last = (HeapPage) Database.getBufferPool().getPage(tid,
+                t.getRecordId().getPageId(), Permissions.READ_WRITE);
+        for (int i = last.getNumEmptySlots(); i > 0; i--)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { 1, 2 }));
+        assertEquals(pages, hf.numPages());
+        HeapPage first = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(tid, first.iterator().next());
+
+        Tuple u = Utility.getHeapTuple(new int[] { 3, 4 });
+        Database.getBufferPool().insertTuple(tid, hf.getId(), u);
+        assertEquals(0, u.getRecordId().getPageId().getPageNumber());
+        assertEquals(pages, hf.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple(): a page filled up by a transaction
+     * that aborts takes inserts again.
+     */
+    @Test public void abortedInsertsFreeSpace() throws Exception {
+        HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 1200, null, null);
+        int pages = hf.numPages();
+        TransactionId tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(new int[] { 1, 2 });
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        HeapPage last = (HeapPage) Database.getBufferPool().getPage(tid,
+                t.getRecordId().getPageId(), Permissions.READ_WRITE);
+        for (int i = last.getNumEmptySlots(); i > 0; i--)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { 1, 2 }));
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        Tuple u = Utility.getHeapTuple(new int[] { 3, 4 });
+        Database.getBufferPool().insertTuple(tid, hf.getId(), u);
+        assertEquals(pages - 1, u.getRecordId().getPageId().getPageNumber());
+        assertEquals(pages, hf.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,146 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FuzzyCheckpointTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("fuzzy", ".dat");
+        file.deleteOnExit();
+        Database.reset();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+        t.commit();
+        pid = new HeapPageId(hf.getId(), 0);
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().stopPageWriter();
+        Database.getLogFile().setCheckpointInterval(0);
+    }
+
+    /**
+     * @return the number of rows of the page on disk
+     */
+    private int rowsOnDisk() {
+        int rows = 0;
+        Iterator<Tuple> it = ((HeapPage) hf.readPage(pid)).iterator();
+        for (; it.hasNext(); it.next())
+            rows++;
+        return rows;
+    }
+
+    /**
+     * A checkpoint writes no pages, and does not wait for the BufferPool
+     */
+    @Test public void checkpointWritesNoPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(2, 2));
+
+        final Exception[] error = new Exception[1];
+        Thread checkpoint = new Thread() {
+            public void run() {
+                try {
+                    Database.getLogFile().logCheckpoint();
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        synchronized (Database.getBufferPool()) {
+            checkpoint.start();
+            checkpoint.join(10000);
+            assertFalse(checkpoint.isAlive());
+        }
+        assertNull(error[0]);
+        assertEquals(1, Database.getLogFile().getCheckpointCount());
+        assertEquals(1, rowsOnDisk());
+
+        t.commit();
+        assertEquals(2, rowsOnDisk());
+    }
+
+    /**
+     * Pages written back before their transaction ends are taken back when
+     * it aborts, and need not be written at commit
+     */
+    @Test public void writeBack() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(2, 2));
+        assertEquals(1, Database.getBufferPool().writeBack(10));
+        assertEquals(2, rowsOnDisk());
+        assertEquals(0, Database.getBufferPool().writeBack(10));
+        t.abort();
+        assertEquals(1, rowsOnDisk());
+
+        // pages of transactions that did not begin in the log are not written
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(3, 2));
+        assertEquals(0, Database.getBufferPool().writeBack(10));
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(1, rowsOnDisk());
+    }
+
+    /**
+     * The background writer writes the dirty pages of a running transaction
+     */
+    @Test public void pageWriter() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(2, 2));
+        Database.getBufferPool().startPageWriter(5, 4);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (rowsOnDisk() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        Database.getBufferPool().stopPageWriter();
+        assertEquals(2, rowsOnDisk());
+        t.commit();
+        assertEquals(2, rowsOnDisk());
+    }
+
+    /**
+     * Checkpoints are taken in the background as the log grows
+     */
+    @Test public void checkpointInterval() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setCheckpointInterval(2000);
+        long deadline = System.currentTimeMillis() + 10000;
+        for (int i = 0; log.getCheckpointCount() < 2 && System.currentTimeMillis() < deadline; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+            t.commit();
+        }
+        assertTrue(log.getCheckpointCount() >= 2);
+        log.setCheckpointInterval(0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FuzzyCheckpointTest.class);
+    }
+}
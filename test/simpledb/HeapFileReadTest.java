@@ -77,6 +77,75 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() in memory-mapped mode, including the
+     * fallback to the copying path once the file is written.
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] expected = hf.readPage(pid).getPageData();
+
+        hf.setMemoryMapped(true);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertTrue(hf.isMemoryMapped());
+        assertEquals(484, page.getNumEmptySlots());
+        assertTrue(Arrays.equals(expected, page.getPageData()));
+        assertTrue(Arrays.equals(expected, page.getBeforeImage().getPageData()));
+
+        // the before image survives the page being written back
+        page.markDirty(true, tid);
+        page.deleteTuple(page.iterator().next());
+        hf.writePage(page);
+        assertFalse(hf.isMemoryMapped());
+        assertTrue(Arrays.equals(expected, page.getBeforeImage().getPageData()));
+        assertEquals(485, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() in memory-mapped mode: tuples read
+     * from the mapping keep their values when the page is written over.
+     */
+    @Test
+    public void mappedTuplesSurviveWrite() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage copy = (HeapPage) hf.readPage(pid);
+        int expected = ((IntField) copy.iterator().next().getField(0)).getValue();
+
+        hf.setMemoryMapped(true);
+        HeapPage mapped = (HeapPage) hf.readPage(pid);
+        Tuple t = mapped.iterator().next();
+        HeapPage before = mapped.getBeforeImage();
+
+        // overwrite the first row on disk, through another copy of the page
+        copy.deleteTuple(copy.iterator().next());
+        copy.insertTuple(Utility.getHeapTuple(expected + 1, 2));
+        hf.writePage(copy);
+
+        assertEquals(expected, ((IntField) t.getField(0)).getValue());
+        assertEquals(expected, ((IntField) mapped.iterator().next().getField(0)).getValue());
+        assertEquals(expected, ((IntField) before.iterator().next().getField(0)).getValue());
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() from an interrupted thread: the read
+     * goes through, and keeps the interrupt for the caller.
+     */
+    @Test
+    public void readPageInterrupted() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] expected = hf.readPage(pid).getPageData();
+        Thread.currentThread().interrupt();
+        try {
+            Page page = hf.readPage(pid);
+            assertTrue(Thread.currentThread().isInterrupted());
+            assertNotNull(page);
+            assertTrue(Arrays.equals(expected, page.getPageData()));
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
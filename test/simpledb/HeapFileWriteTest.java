@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.util.ArrayList;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +45,67 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuples(): a batch fills whole pages
+     * appended to the file, and each page is returned once.
+     */
+    @Test public void addTuples() throws Exception {
+        ArrayList<Tuple> batch = new ArrayList<Tuple>();
+        for (int i = 0; i < 600; ++i)
+            batch.add(Utility.getHeapTuple(i, 2));
+        ArrayList<Page> pages = empty.insertTuples(tid, batch);
+        assertEquals(2, pages.size());
+        assertEquals(2, empty.numPages());
+        assertEquals(0, ((HeapPage) pages.get(0)).getNumEmptySlots());
+        assertEquals(504 - 96, ((HeapPage) pages.get(1)).getNumEmptySlots());
+
+        // the next batch tops up the last page before appending
+        batch.clear();
+        for (int i = 0; i < 500; ++i)
+            batch.add(Utility.getHeapTuple(i, 2));
+        pages = empty.insertTuples(tid, batch);
+        assertEquals(2, pages.size());
+        assertEquals(3, empty.numPages());
+        assertEquals(1, batch.get(0).getRecordId().getPageId().getPageNumber());
+        assertEquals(2, batch.get(499).getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuples(): the pages of a batch that aborts
+     * before it gets to them take inserts afterwards.
+     */
+    @Test public void abortedBatchFreesPages() throws Exception {
+        // keep the batch waiting for its second page, then abort it
+        TransactionId reader = new TransactionId();
+        Database.getBufferPool().getPage(reader, new HeapPageId(empty.getId(), 1), Permissions.READ_ONLY);
+        final TransactionId writer = new TransactionId();
+        final ArrayList<Tuple> batch = new ArrayList<Tuple>();
+        for (int i = 0; i < 600; ++i)
+            batch.add(Utility.getHeapTuple(i, 2));
+        final Exception[] error = new Exception[1];
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    Database.getBufferPool().insertTuples(writer, empty.getId(), batch);
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        t.start();
+        Thread.sleep(100);
+        t.interrupt();
+        t.join(10000);
+        assertTrue(error[0] instanceof TransactionAbortedException);
+        Database.getBufferPool().transactionComplete(writer, false);
+        Database.getBufferPool().transactionComplete(reader);
+        assertEquals(2, empty.numPages());
+
+        for (int i = 0; i < 2 * 504; ++i)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+    }
+
     /**
      * JUnit suite target
      */
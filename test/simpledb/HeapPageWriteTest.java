@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -44,6 +45,44 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         assertEquals(false, dirtier != null);
     }
 
+    /**
+     * Unit test for HeapPage.getPageData(): untouched tuples are written back
+     * byte for byte and changes to a decoded tuple's fields are kept.
+     */
+    @Test public void pageDataAfterFieldUpdate() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, page.getPageData()));
+
+        Tuple first = page.iterator().next();
+        first.setField(1, new IntField(-7));
+        HeapPage reread = new HeapPage(pid, page.getPageData());
+        Iterator<Tuple> it = reread.iterator();
+        Tuple t = it.next();
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[0][0], ((IntField) t.getField(0)).getValue());
+        assertEquals(-7, ((IntField) t.getField(1)).getValue());
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[1][1], ((IntField) it.next().getField(1)).getValue());
+    }
+
+    /**
+     * Unit test for HeapPage.getPageData(): a tuple read from one page and
+     * inserted into another at the same slot number is written with its own
+     * fields, not with the bytes the other page had in that slot.
+     */
+    @Test public void pageDataAfterMovingTuple() throws Exception {
+        HeapPage from = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple moved = from.iterator().next();
+        assertEquals(0, moved.getRecordId().getTupleNumber());
+
+        HeapPageId otherPid = new HeapPageId(-1, -2);
+        HeapPage to = new HeapPage(otherPid, HeapPage.createEmptyPageData());
+        to.insertTuple(moved);
+
+        HeapPage reread = new HeapPage(otherPid, to.getPageData());
+        Tuple t = reread.iterator().next();
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[0][0], ((IntField) t.getField(0)).getValue());
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[0][1], ((IntField) t.getField(1)).getValue());
+    }
+
     /**
      * Unit test for HeapPage.addTuple()
      */
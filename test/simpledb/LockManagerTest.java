@@ -0,0 +1,220 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private static final long TIMEOUT = 100;
+    private static final long LONG_WAIT = 10000;
+
+    private LockManager lm;
+    private PageId p0;
+    private TransactionId tid1, tid2, tid3;
+
+    /**
+     * Thread that tries to take a lock and records whether it got it.
+     */
+    private class Acquirer extends Thread {
+        final TransactionId tid;
+        final Permissions perm;
+
+        final PageId pid;
+        volatile boolean acquired = false;
+        volatile Exception error = null;
+
+        Acquirer(TransactionId tid, Permissions perm) {
+            this(tid, p0, perm);
+        }
+
+        Acquirer(TransactionId tid, PageId pid, Permissions perm) {
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+        }
+
+        public void run() {
+            try {
+                lm.acquire(tid, pid, perm);
+                acquired = true;
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        lm = new LockManager(4);
+        p0 = new HeapPageId(1, 0);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+    }
+
+    /**
+     * Unit test for LockManager.acquire(): a waiter is woken when the
+     * conflicting lock is released.
+     */
+    @Test public void waiterIsGrantedOnRelease() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        Acquirer a = new Acquirer(tid2, Permissions.READ_ONLY);
+        a.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(a.acquired);
+
+        lm.release(tid1, p0);
+        a.join(LONG_WAIT);
+        assertTrue(a.acquired);
+        assertTrue(lm.holdsLock(tid2, p0));
+    }
+
+    /**
+     * Unit test for LockManager.acquire(): a shared request does not overtake
+     * a queued exclusive request.
+     */
+    @Test public void fifoGrantOrder() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_ONLY);
+        Acquirer writer = new Acquirer(tid2, Permissions.READ_WRITE);
+        writer.start();
+        Thread.sleep(TIMEOUT);
+        Acquirer reader = new Acquirer(tid3, Permissions.READ_ONLY);
+        reader.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(writer.acquired);
+        assertFalse(reader.acquired);
+
+        lm.release(tid1, p0);
+        writer.join(LONG_WAIT);
+        assertTrue(writer.acquired);
+        assertFalse(reader.acquired);
+
+        lm.releaseAll(tid2);
+        reader.join(LONG_WAIT);
+        assertTrue(reader.acquired);
+    }
+
+    /**
+     * Unit test for LockManager.acquire(): an upgrade is granted ahead of
+     * other waiters once the upgrader is the only holder.
+     */
+    @Test public void upgradeJumpsQueue() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_ONLY);
+        lm.acquire(tid2, p0, Permissions.READ_ONLY);
+        Acquirer writer = new Acquirer(tid3, Permissions.READ_WRITE);
+        writer.start();
+        Thread.sleep(TIMEOUT);
+        Acquirer upgrader = new Acquirer(tid1, Permissions.READ_WRITE);
+        upgrader.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(upgrader.acquired);
+
+        lm.release(tid2, p0);
+        upgrader.join(LONG_WAIT);
+        assertTrue(upgrader.acquired);
+        assertFalse(writer.acquired);
+
+        lm.releaseAll(tid1);
+        writer.join(LONG_WAIT);
+        assertTrue(writer.acquired);
+    }
+
+    /**
+     * Unit test for LockManager.releaseAll(): the pages a transaction locked
+     * are tracked and released without touching other transactions' locks.
+     */
+    @Test public void releaseAllUsesLockedPages() throws Exception {
+        PageId p1 = new HeapPageId(1, 1);
+        lm.acquire(tid1, p0, Permissions.READ_ONLY);
+        lm.acquire(tid1, p1, Permissions.READ_WRITE);
+        lm.acquire(tid2, p0, Permissions.READ_ONLY);
+        assertEquals(2, lm.getLockedPages(tid1).size());
+        assertTrue(lm.getLockedPages(tid1).contains(p1));
+
+        lm.release(tid1, p1);
+        assertEquals(1, lm.getLockedPages(tid1).size());
+
+        lm.releaseAll(tid1);
+        assertTrue(lm.getLockedPages(tid1).isEmpty());
+        assertFalse(lm.holdsLock(tid1, p0));
+        assertTrue(lm.holdsLock(tid2, p0));
+    }
+
+    /**
+     * Unit test for LockManager.acquire(): a waits-for cycle is detected and
+     * broken by aborting the youngest transaction on it.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        PageId p1 = new HeapPageId(1, 1);
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        lm.acquire(tid2, p1, Permissions.READ_WRITE);
+        Acquirer older = new Acquirer(tid1, p1, Permissions.READ_ONLY);
+        older.start();
+        Thread.sleep(TIMEOUT);
+        Acquirer younger = new Acquirer(tid2, p0, Permissions.READ_ONLY);
+        younger.start();
+
+        younger.join(LONG_WAIT);
+        assertTrue(younger.error instanceof DeadlockException);
+        assertFalse(younger.acquired);
+        assertFalse(older.acquired);
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.releaseAll(tid2);
+        older.join(LONG_WAIT);
+        assertTrue(older.acquired);
+        assertTrue(lm.holdsLock(tid1, p1));
+    }
+
+    /**
+     * Unit test for LockManager.acquire(): long waits without a cycle are not
+     * aborted.
+     */
+    @Test public void waitWithoutCycleIsNotAborted() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        Acquirer a = new Acquirer(tid2, Permissions.READ_ONLY);
+        a.start();
+        Thread.sleep(3 * TIMEOUT);
+        assertFalse(a.acquired);
+        assertTrue(a.error == null);
+        assertEquals(0, lm.getDeadlockCount());
+
+        lm.release(tid1, p0);
+        a.join(LONG_WAIT);
+        assertTrue(a.acquired);
+    }
+
+    /**
+     * Unit test for LockManager.acquire(): an interrupted waiter gives up
+     * its request and aborts.
+     */
+    @Test public void interruptedWaiterAborts() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        Acquirer a = new Acquirer(tid2, Permissions.READ_WRITE);
+        a.start();
+        Thread.sleep(TIMEOUT);
+        a.interrupt();
+        a.join(LONG_WAIT);
+        assertFalse(a.isAlive());
+        assertFalse(a.acquired);
+        assertTrue(a.error instanceof TransactionAbortedException);
+
+        // the request left the queue, so nobody waits for the page
+        lm.release(tid1, p0);
+        assertTrue(lm.tryAcquire(tid3, p0, Permissions.READ_WRITE));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogFileGroupCommitTest extends SimpleDbTestBase {
+
+    private static final int THREADS = 8;
+    private static final int COMMITS = 20;
+
+    private File file;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("grouplog", ".dat");
+        file.deleteOnExit();
+        log = new LogFile(file);
+    }
+
+    @After public void tearDown() throws Exception {
+        log.segments.deleteAll();
+        log.segments.close();
+        file.delete();
+    }
+
+    /**
+     * Thread that begins and commits transactions one after the other.
+     */
+    private class Committer extends Thread {
+        volatile Exception error = null;
+
+        public void run() {
+            try {
+                for (int i = 0; i < COMMITS; i++) {
+                    TransactionId tid = new TransactionId();
+                    log.logXactionBegin(tid);
+                    log.logCommit(tid);
+                }
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Concurrent commits share the forces of the log.
+     */
+    @Test public void groupCommit() throws Exception {
+        log.setGroupCommitDelay(2000);
+        Committer[] committers = new Committer[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            committers[i] = new Committer();
+            committers[i].start();
+        }
+        for (Committer c : committers) {
+            c.join();
+            assertNull(c.error);
+        }
+        assertEquals(THREADS * COMMITS * 2, log.getTotalRecords());
+        assertTrue(log.getForceCount() <= THREADS * COMMITS / 2);
+    }
+
+    /**
+     * Forcing up to an LSN that is already on disk does not force the log again.
+     */
+    @Test public void forceOnce() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long begin = log.getEndLsn();
+        log.logCommit(tid);
+        assertEquals(1, log.getForceCount());
+
+        log.force(begin);
+        log.force(log.getEndLsn());
+        assertEquals(1, log.getForceCount());
+
+        tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.force(log.getEndLsn());
+        assertEquals(2, log.getForceCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileGroupCommitTest.class);
+    }
+}
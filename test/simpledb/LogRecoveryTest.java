@@ -0,0 +1,175 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogRecoveryTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    /**
+     * Create a table with a committed row on its first page
+     */
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("recovery", ".dat");
+        file.deleteOnExit();
+        Database.reset();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+        t.commit();
+        pid = new HeapPageId(hf.getId(), 0);
+    }
+
+    /**
+     * Simulate a crash, and recover with several redo threads
+     */
+    private void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().setRedoThreads(3);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Recovery redoes a committed update that did not reach the disk, and
+     * undoes one of a running transaction that did
+     */
+    @Test public void redoAndUndo() throws Exception {
+        LogFile log = Database.getLogFile();
+        HeapPage disk = (HeapPage) hf.readPage(pid);
+
+        TransactionId winner = new TransactionId();
+        log.logXactionBegin(winner);
+        HeapPage p2 = TestUtil.withRow(disk, 2);
+        log.logWrite(winner, disk, p2);
+        log.logCommit(winner);
+
+        TransactionId loser = new TransactionId();
+        log.logXactionBegin(loser);
+        HeapPage p3 = TestUtil.withRow(p2, 3);
+        log.force(log.logWrite(loser, p2, p3));
+        hf.writePage(p3);
+
+        crash();
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), TestUtil.rowsOnDisk(hf, pid));
+    }
+
+    /**
+     * The dirty page table keeps pages until they are written out after
+     * their last update, and checkpoints keep their records for redo
+     */
+    @Test public void dirtyPageTable() throws Exception {
+        LogFile log = Database.getLogFile();
+        HeapPage disk = (HeapPage) hf.readPage(pid);
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage p2 = TestUtil.withRow(disk, 2);
+        long lsn = log.logWrite(tid, disk, p2);
+        log.logCommit(tid);
+        log.pageFlushed(pid, lsn - 1);
+        assertTrue(log.dirtyPages.containsKey(pid));
+
+        log.logCheckpoint();
+        assertTrue(log.dirtyPages.containsKey(pid));
+        crash();
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), TestUtil.rowsOnDisk(hf, pid));
+
+        log = Database.getLogFile();
+        tid = new TransactionId();
+        log.logXactionBegin(tid);
+        disk = (HeapPage) hf.readPage(pid);
+        HeapPage p3 = TestUtil.withRow(disk, 3);
+        lsn = log.logWrite(tid, disk, p3);
+        hf.writePage(p3);
+        log.pageFlushed(pid, lsn);
+        assertFalse(log.dirtyPages.containsKey(pid));
+    }
+
+    /**
+     * Updates taken back by a rollback before the crash are not undone
+     * again, and recovering twice changes nothing
+     */
+    @Test public void rollbackBeforeCrash() throws Exception {
+        LogFile log = Database.getLogFile();
+        HeapPage disk = (HeapPage) hf.readPage(pid);
+
+        TransactionId loser = new TransactionId();
+        log.logXactionBegin(loser);
+        HeapPage p2 = TestUtil.withRow(disk, 2);
+        log.force(log.logWrite(loser, disk, p2));
+        hf.writePage(p2);
+        log.rollback(loser);
+        assertEquals(new HashSet<Integer>(Arrays.asList(1)), TestUtil.rowsOnDisk(hf, pid));
+
+        crash();
+        assertEquals(new HashSet<Integer>(Arrays.asList(1)), TestUtil.rowsOnDisk(hf, pid));
+        // just the abort record of the loser
+        assertEquals(1, Database.getLogFile().getTotalRecords());
+
+        crash();
+        assertEquals(new HashSet<Integer>(Arrays.asList(1)), TestUtil.rowsOnDisk(hf, pid));
+        assertEquals(0, Database.getLogFile().getTotalRecords());
+    }
+
+    /**
+     * Compacting a B+ tree leaves no records in the log that recovery would
+     * redo onto the compacted file
+     */
+    @Test public void crashAfterCompact() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 6000, null, null, 0);
+        TransactionId tid = new TransactionId();
+        ArrayList<Tuple> victims = new ArrayList<Tuple>();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        for (int i = 0; it.hasNext(); i++) {
+            Tuple t = it.next();
+            if (i % 10 != 0)
+                victims.add(t);
+        }
+        it.close();
+        for (Tuple t : victims)
+            Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(bf.compact(1.0) > 0);
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        bf = BTreeUtility.openBTreeFile(2, bf.getFile(), 0);
+        Database.getLogFile().recover();
+        tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        int count = 0;
+        it = bf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(600, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogRecoveryTest.class);
+    }
+}
@@ -0,0 +1,172 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+
+    private static final int SEGMENT_SIZE = 64;
+
+    private File file;
+    private File logFile;
+    private HeapFile hf;
+    private HeapPageId pid;
+    private LogFile log;
+
+    /**
+     * Create a table with an empty first page, and a log of small segments
+     */
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("segments", ".dat");
+        file.deleteOnExit();
+        logFile = File.createTempFile("segments", ".log");
+        logFile.deleteOnExit();
+        Database.reset();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        pid = new HeapPageId(hf.getId(), 0);
+        hf.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        log = new LogFile(logFile, SEGMENT_SIZE);
+    }
+
+    @After public void tearDown() throws Exception {
+        log.segments.deleteAll();
+        log.segments.close();
+    }
+
+    /**
+     * Simulate a crash, and recover from the same log
+     */
+    private void crash() throws Exception {
+        log.segments.close();
+        log = new LogFile(logFile, SEGMENT_SIZE);
+        log.recover();
+    }
+
+    /**
+     * Commit a row, writing the page out after the commit
+     */
+    private void commitRow(int v) throws Exception {
+        HeapPage disk = (HeapPage) hf.readPage(pid);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage p = TestUtil.withRow(disk, v);
+        long lsn = log.logWrite(tid, disk, p);
+        log.logCommit(tid);
+        hf.writePage(p);
+        log.pageFlushed(pid, lsn);
+    }
+
+    /**
+     * Records longer than a segment are written across segments, and read
+     * back by recovery
+     */
+    @Test public void recordsSpanSegments() throws Exception {
+        HeapPage disk = (HeapPage) hf.readPage(pid);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, disk, TestUtil.withRow(disk, 1));
+        log.logCommit(tid);
+        assertTrue(log.segments.list().length > 2);
+
+        crash();
+        assertEquals(new HashSet<Integer>(Arrays.asList(1)), TestUtil.rowsOnDisk(hf, pid));
+    }
+
+    /**
+     * Truncation deletes the segments before the oldest record the last
+     * checkpoint needs, and keeps the addresses of the records
+     */
+    @Test public void truncateDeletesSegments() throws Exception {
+        for (int i = 0; i < 5; i++)
+            commitRow(i);
+        long end = log.getEndLsn();
+        assertEquals(0, log.segments.list()[0]);
+
+        // a running transaction keeps its records
+        TransactionId loser = new TransactionId();
+        log.logXactionBegin(loser);
+        long first = log.getEndLsn();
+        log.logCheckpoint();
+        long[] onDisk = log.segments.list();
+        assertEquals(log.segments.segmentOf(end), onDisk[0]);
+        assertTrue(onDisk[0] > 0);
+
+        HeapPage disk = (HeapPage) hf.readPage(pid);
+        HeapPage p = TestUtil.withRow(disk, 5);
+        log.force(log.logWrite(loser, disk, p));
+        hf.writePage(p);
+        assertTrue(log.getEndLsn() > first);
+
+        crash();
+        assertEquals(new HashSet<Integer>(Arrays.asList(0, 1, 2, 3, 4)), TestUtil.rowsOnDisk(hf, pid));
+        assertTrue(log.getEndLsn() > first);
+
+        // with nothing running, the checkpoint needs just its own records
+        long cp = log.getEndLsn();
+        log.logCheckpoint();
+        assertEquals(log.segments.segmentOf(cp), log.segments.list()[0]);
+    }
+
+    /**
+     * A record cut short by the crash is dropped, and the log goes on
+     * from where it starts
+     */
+    @Test public void tornRecord() throws Exception {
+        commitRow(1);
+        HeapPage disk = (HeapPage) hf.readPage(pid);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = log.getEndLsn();
+        long lsn = log.logWrite(tid, disk, TestUtil.withRow(disk, 2));
+        log.segments.truncate(start + (lsn - start) / 2);
+
+        crash();
+        assertEquals(new HashSet<Integer>(Arrays.asList(1)), TestUtil.rowsOnDisk(hf, pid));
+        // just the abort record of the transaction follows its begin record
+        assertEquals(start + LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE, log.getEndLsn());
+
+        commitRow(3);
+        crash();
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 3)), TestUtil.rowsOnDisk(hf, pid));
+    }
+
+    /**
+     * A segment cut short by a crash while it was being preallocated is
+     * filled up with zeros when it is opened again
+     */
+    @Test public void preallocateAfterCrash() throws Exception {
+        log.segments.close();
+        File f = log.segments.segmentFile(0);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(SEGMENT_SIZE / 4);
+        raf.write(new byte[] {1, 2, 3});
+        raf.close();
+
+        log.segments.channel(0, false);
+        assertEquals(SEGMENT_SIZE, f.length());
+        ByteBuffer buf = ByteBuffer.allocate(SEGMENT_SIZE);
+        assertEquals(SEGMENT_SIZE, log.segments.read(0, buf));
+        for (int i = 0; i < SEGMENT_SIZE; i++)
+            assertEquals(i < 3 ? i + 1 : 0, buf.get(i));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
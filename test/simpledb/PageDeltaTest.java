@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Check that the delta between two images turns one into the other, also
+     * after being written out and read back, and return its size
+     */
+    private int checkDelta(Page before, Page after) throws IOException {
+        PageDelta delta = PageDelta.diff(before, after);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(bytes));
+        PageDelta read = PageDelta.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        for (PageDelta d : new PageDelta[] { delta, read }) {
+            assertTrue(Arrays.equals(after.getPageData(), d.redo(before.getPageData())));
+            assertTrue(Arrays.equals(before.getPageData(), d.undo(after.getPageData())));
+        }
+        return bytes.size();
+    }
+
+    /**
+     * Inserts, deletes and field updates on a heap page
+     */
+    @Test public void heapPage() throws Exception {
+        HeapPage before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage after = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertTrue(PageDelta.diff(before, after).isEmpty());
+
+        after.insertTuple(Utility.getHeapTuple(77, 2));
+        int size = checkDelta(before, after);
+        assertTrue(size < BufferPool.getPageSize() / 10);
+
+        Iterator<Tuple> it = after.iterator();
+        after.deleteTuple(it.next());
+        it.next().setField(1, new IntField(-7));
+        checkDelta(before, after);
+    }
+
+    /**
+     * Inserts into the middle of a B+ tree leaf move tuples between slots, and
+     * the pointers in front of the slots change
+     */
+    @Test public void leafPage() throws Exception {
+        BTreePageId leafId = new BTreePageId(-1, -1, BTreePageId.LEAF);
+        BTreeLeafPage before = new BTreeLeafPage(leafId, BTreeLeafPageTest.EXAMPLE_DATA, 0);
+        BTreeLeafPage after = new BTreeLeafPage(leafId, BTreeLeafPageTest.EXAMPLE_DATA, 0);
+        after.insertTuple(BTreeUtility.getBTreeTuple(20000, 2));
+        after.setRightSiblingId(new BTreePageId(-1, 5, BTreePageId.LEAF));
+        checkDelta(before, after);
+    }
+
+    /**
+     * Pages without fixed size slots have no delta
+     */
+    @Test public void unslottedPages() throws Exception {
+        BTreePageId internalId = new BTreePageId(-1, -1, BTreePageId.INTERNAL);
+        BTreeInternalPage internal = new BTreeInternalPage(internalId, BTreeInternalPageTest.EXAMPLE_DATA, 0);
+        assertNull(PageDelta.diff(internal, internal));
+    }
+
+    /**
+     * The log writes a delta for an update of a slotted page, and takes it
+     * back when the transaction is rolled back
+     */
+    @Test public void logAndRollback() throws Exception {
+        File f = File.createTempFile("delta", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        TransactionId setup = new TransactionId();
+        Database.getBufferPool().insertTuple(setup, hf.getId(), Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().transactionComplete(setup);
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(2, 2));
+        long start = Database.getLogFile().getEndLsn();
+        Database.getBufferPool().flushAllPages();
+        assertTrue(Database.getLogFile().getEndLsn() - start < BufferPool.getPageSize() / 10);
+        HeapPage flushed = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(2, flushed.getNumSlots() - flushed.getNumEmptySlots());
+
+        Database.getLogFile().logAbort(t.getId());
+        Database.getBufferPool().transactionComplete(t.getId(), false);
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        Iterator<Tuple> it = page.iterator();
+        assertEquals(1, ((IntField) it.next().getField(0)).getValue());
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
@@ -0,0 +1,132 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageTableTest extends SimpleDbTestBase {
+
+    private PageTable table;
+    private HeapPage p0, p1;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        table = new PageTable(4);
+        p0 = new HeapPage(new HeapPageId(-1, 0), HeapPage.createEmptyPageData());
+        p1 = new HeapPage(new HeapPageId(-1, 1), HeapPage.createEmptyPageData());
+    }
+
+    /**
+     * Unit test for PageTable.putIfAbsent() and PageTable.put()
+     */
+    @Test public void putAndReplace() throws Exception {
+        assertNull(table.putIfAbsent(p0));
+        assertNull(table.putIfAbsent(p1));
+        assertEquals(2, table.size());
+        assertSame(p0, table.putIfAbsent(p0).page);
+
+        HeapPage copy = new HeapPage(p0.getId(), p0.getPageData());
+        assertFalse(table.put(copy));
+        assertSame(copy, table.get(p0.getId()).page);
+        assertEquals(2, table.frames().size());
+    }
+
+    /**
+     * Unit test for PageTable.evict(): pinned and dirty pages stay cached.
+     */
+    @Test public void evictSkipsPinnedAndDirty() throws Exception {
+        table.putIfAbsent(p0);
+        table.putIfAbsent(p1);
+
+        PageTable.Frame f = table.pin(p0.getId());
+        assertFalse(table.evict(p0.getId()));
+        f.unpin();
+        assertTrue(table.evict(p0.getId()));
+        assertNull(table.get(p0.getId()));
+        // a page that is not cached is not evicted
+        assertFalse(table.evict(p0.getId()));
+        // a frame that was retired while unpinned can't be pinned again
+        assertFalse(f.pin());
+
+        p1.markDirty(true, new TransactionId());
+        assertFalse(table.evict(p1.getId()));
+        p1.markDirty(false, null);
+        assertTrue(table.evict(p1.getId()));
+        assertEquals(0, table.size());
+    }
+
+    /**
+     * Unit test for BufferPool pins: a page fetched READ_WRITE stays pinned,
+     * and so cached, until its transaction releases it or completes.
+     */
+    @Test public void writersKeepPagesPinned() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1500, null, null);
+        assertEquals(3, hf.numPages());
+        BufferPool pool = Database.resetBufferPool(2);
+        HeapPageId pid0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId pid1 = new HeapPageId(hf.getId(), 1);
+        HeapPageId pid2 = new HeapPageId(hf.getId(), 2);
+
+        TransactionId writer = new TransactionId();
+        Page page = pool.getPage(writer, pid0, Permissions.READ_WRITE);
+        assertSame(page, pool.getPage(writer, pid0, Permissions.READ_WRITE));
+        assertTrue(pool.isPinnedBy(writer, pid0));
+
+        // reading the other pages evicts page 1, never the pinned page 0
+        TransactionId reader = new TransactionId();
+        pool.getPage(reader, pid1, Permissions.READ_ONLY);
+        pool.getPage(reader, pid2, Permissions.READ_ONLY);
+        assertTrue(pool.isCached(pid0));
+        assertFalse(pool.isCached(pid1));
+        assertFalse(pool.isPinnedBy(reader, pid2));
+
+        pool.releasePage(writer, pid0);
+        assertFalse(pool.isPinnedBy(writer, pid0));
+        pool.transactionComplete(reader);
+
+        pool.getPage(writer, pid1, Permissions.READ_WRITE);
+        assertTrue(pool.isPinnedBy(writer, pid1));
+        pool.transactionComplete(writer);
+        assertFalse(pool.isPinnedBy(writer, pid1));
+
+        // with every page pinned, the pool grows past its size rather than
+        // evicting one, and shrinks back once they are unpinned
+        TransactionId next = new TransactionId();
+        pool.getPage(next, pid0, Permissions.READ_WRITE);
+        pool.getPage(next, pid1, Permissions.READ_WRITE);
+        pool.getPage(next, pid2, Permissions.READ_WRITE);
+        assertEquals(3, cachedPages(pool, pid0, pid1, pid2));
+        pool.transactionComplete(next);
+        pool.discardPage(pid0);
+        pool.getPage(reader, pid0, Permissions.READ_ONLY);
+        assertEquals(2, cachedPages(pool, pid0, pid1, pid2));
+        pool.transactionComplete(reader);
+    }
+
+    private static int cachedPages(BufferPool pool, PageId... pids) {
+        int n = 0;
+        for (PageId pid : pids) {
+            if (pool.isCached(pid))
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageTableTest.class);
+    }
+}
@@ -0,0 +1,216 @@
+package simpledb;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile table;
+    private SecondaryIndex index;
+    private TransactionId tid;
+
+    /**
+     * Set up a heap table with an index on its second field
+     */
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(2, ROWS, 1000, null, tuples, "c");
+        File f = File.createTempFile("index", ".idx");
+        f.deleteOnExit();
+        index = new SecondaryIndex(table, 1, f);
+        Database.getCatalog().addIndex(index);
+        assertEquals(ROWS, index.build());
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private ArrayList<ArrayList<Integer>> matching(Op op, int key) {
+        ArrayList<ArrayList<Integer>> res = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (new IntField(t.get(1)).compare(op, new IntField(key)))
+                res.add(t);
+        }
+        return res;
+    }
+
+    private int count(OpIterator it) throws Exception {
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private int countEntries() throws Exception {
+        int n = 0;
+        DbFileIterator it = index.getFile().iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * IndexScan fetches the tuples matching a predicate on the indexed field
+     */
+    @Test public void indexScan() throws Exception {
+        int key = tuples.get(ROWS / 2).get(1);
+        SystemTestUtil.matchTuples(new IndexScan(tid, index, "t", new IndexPredicate(Op.EQUALS, new IntField(key))),
+                matching(Op.EQUALS, key));
+        SystemTestUtil.matchTuples(new IndexScan(tid, index, "t", new IndexPredicate(Op.LESS_THAN, new IntField(100))),
+                matching(Op.LESS_THAN, 100));
+        SystemTestUtil.matchTuples(new IndexScan(tid, index, "t", null), tuples);
+    }
+
+    /**
+     * Inserting and deleting through the BufferPool keeps the index up to date
+     */
+    @Test public void insertDelete() throws Exception {
+        IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(5000));
+        IndexScan scan = new IndexScan(tid, index, "t", ipred);
+        assertEquals(0, count(scan));
+
+        Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[] { 7, 5000 }));
+        scan.open();
+        assertTrue(scan.hasNext());
+        Tuple t = scan.next();
+        assertEquals(new IntField(7), t.getField(0));
+        assertFalse(scan.hasNext());
+        scan.close();
+
+        Database.getBufferPool().deleteTuple(tid, t);
+        assertEquals(0, count(scan));
+        assertEquals(ROWS, countEntries());
+    }
+
+    /**
+     * A batch insert adds an entry for every tuple
+     */
+    @Test public void insertBatch() throws Exception {
+        ArrayList<Tuple> batch = new ArrayList<Tuple>();
+        for (int i = 0; i < 600; i++)
+            batch.add(Utility.getHeapTuple(new int[] { i, 5000 + i % 3 }));
+        Database.getBufferPool().insertTuples(tid, table.getId(), batch);
+        IndexPredicate ipred = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(5000));
+        assertEquals(600, count(new IndexScan(tid, index, "t", ipred)));
+        assertEquals(ROWS + 600, countEntries());
+    }
+
+    /**
+     * The planner reads a heap table through its index for an equality on the indexed field
+     */
+    @Test public void physicalPlan() throws Exception {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        String name = Database.getCatalog().getTableName(table.getId());
+        stats.put(name, new TableStats(table.getId(), 1000));
+        int key = tuples.get(0).get(1);
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.c1", Op.EQUALS, Integer.toString(key));
+        lp.addProjectField("t.c0", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+        OpIterator scan = ((Operator) plan).getChildren()[0];
+        assertTrue(scan instanceof IndexScan);
+        assertEquals(matching(Op.EQUALS, key).size(), count(plan));
+    }
+
+    /**
+     * Of several range filters on indexed fields, the planner reads the heap table through
+     * the index of the most selective one
+     */
+    @Test public void physicalPlanPicksSelectiveRange() throws Exception {
+        File f = File.createTempFile("index", ".idx");
+        f.deleteOnExit();
+        SecondaryIndex first = new SecondaryIndex(table, 0, f);
+        Database.getCatalog().addIndex(first);
+        first.build();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        String name = Database.getCatalog().getTableName(table.getId());
+        // the filter on the first field matches nearly all rows, the one on the second few
+        stats.put(name, new TableStats(table.getId(), 1000) {
+            public double estimateSelectivity(int field, Op op, Field constant) {
+                return field == 0 ? 0.99 : 0.02;
+            }
+        });
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.c0", Op.GREATER_THAN, "10");
+        lp.addFilter("t.c1", Op.LESS_THAN, "20");
+        lp.addProjectField("t.c0", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+        OpIterator filter = ((Operator) plan).getChildren()[0];
+        assertTrue(filter instanceof Filter);
+        assertTrue(((Operator) filter).getChildren()[0] instanceof IndexScan);
+        int expected = 0;
+        for (ArrayList<Integer> t : matching(Op.LESS_THAN, 20)) {
+            if (t.get(0) > 10)
+                expected++;
+        }
+        assertEquals(expected, count(plan));
+    }
+
+    /**
+     * Catalog.loadSchema creates and builds the indexes declared in the catalog file
+     */
+    @Test public void loadSchema() throws Exception {
+        File dir = File.createTempFile("catalog", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        File data = new File(dir, "indexed.dat");
+        data.deleteOnExit();
+        HeapFileEncoder.convert(tuples, data, BufferPool.getPageSize(), 2);
+        File schema = new File(dir, "catalog.txt");
+        schema.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("indexed (a int pk, b int index)\n");
+        w.close();
+        File idx = new File(dir, "indexed.b.idx");
+        idx.deleteOnExit();
+
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        int tableid = Database.getCatalog().getTableId("indexed");
+        List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(tableid);
+        assertEquals(1, indexes.size());
+        assertEquals(1, indexes.get(0).getKeyField());
+        assertTrue(idx.length() > 0);
+
+        int key = tuples.get(0).get(1);
+        IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(key));
+        SystemTestUtil.matchTuples(new IndexScan(tid, indexes.get(0), "indexed", ipred), matching(Op.EQUALS, key));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
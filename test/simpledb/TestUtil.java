@@ -190,6 +190,27 @@ public class TestUtil {
         return buf;
     }
 
+    /**
+     * @return a copy of the heap page with another row of two fields,
+     *   both with value v, inserted
+     */
+    public static HeapPage withRow(HeapPage p, int v) throws Exception {
+        HeapPage copy = new HeapPage(p.getId(), p.getPageData());
+        copy.insertTuple(Utility.getHeapTuple(v, 2));
+        return copy;
+    }
+
+    /**
+     * @return the first fields of the rows of page pid of hf, read from disk
+     */
+    public static Set<Integer> rowsOnDisk(HeapFile hf, HeapPageId pid) {
+        HashSet<Integer> rows = new HashSet<Integer>();
+        Iterator<Tuple> it = ((HeapPage) hf.readPage(pid)).iterator();
+        while (it.hasNext())
+            rows.add(((IntField) it.next().getField(0)).getValue());
+        return rows;
+    }
+
     /**
      * Stub DbFile class for unit testing.
      */
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Iterator;
@@ -282,6 +283,47 @@ public class BTreeScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /** Test that the planner answers a filter on the key field from the B+ tree. */
+    @Test public void testPhysicalPlanUsesIndex() throws Exception {
+        final int LEAF_PAGES = 30;
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, 0);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        String name = SystemTestUtil.getUUID();
+        Database.getCatalog().addTable(table, name);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(table.getId(), 1000));
+
+        ArrayList<Integer> match = tuples.get(r.nextInt(tuples.size()));
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.c1", Op.GREATER_THAN_OR_EQ, "0");
+        lp.addFilter("t.c0", Op.EQUALS, Integer.toString(match.get(0)));
+        lp.addProjectField("t.c1", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+        // the key filter is answered by a BTreeScan, the other filter is applied on top of it
+        OpIterator filter = ((Operator) plan).getChildren()[0];
+        assertTrue(filter instanceof Filter);
+        OpIterator scan = ((Operator) filter).getChildren()[0];
+        assertTrue(scan instanceof BTreeScan);
+        assertEquals(Op.EQUALS, ((BTreeScan) scan).getIndexPredicate().getOp());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        plan.open();
+        assertTrue(plan.hasNext());
+        assertEquals(match.get(1), SystemTestUtil.tupleToList(plan.next()).get(0));
+        assertFalse(plan.hasNext());
+        plan.close();
+        // root pointer page + root + leaf page (possibly 2 leaf pages)
+        assertTrue(table.readCount == 3 || table.readCount == 4);
+
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(BTreeScanTest.class);
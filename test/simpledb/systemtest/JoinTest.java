@@ -6,6 +6,8 @@ import java.util.HashMap;
 
 import org.junit.Test;
 
+import static org.junit.Assert.*;
+
 import simpledb.*;
 
 public class JoinTest extends SimpleDbTestBase {
@@ -69,6 +71,46 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /**
+     * Join a heap file with a B+ tree keyed on the join field, with more outer
+     * tuples than are looked up in one batch
+     */
+    @Test public void testIndexNestedLoopJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, IndexNestedLoopJoin.BATCH_SIZE * 2 + 500, 400, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(
+                COLUMNS, 1500, 300, null, t2Tuples, 0);
+
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (t1.get(1).equals(t2.get(0))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
+        JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+        assertTrue(IndexNestedLoopJoin.canIndex(p, ss1, ss2));
+        // only equality on the key field can use the index
+        assertFalse(IndexNestedLoopJoin.canIndex(new JoinPredicate(1, Predicate.Op.EQUALS, 1), ss1, ss2));
+        assertFalse(IndexNestedLoopJoin.canIndex(new JoinPredicate(1, Predicate.Op.LESS_THAN, 0), ss1, ss2));
+
+        Join joinOp = new IndexNestedLoopJoin(p, ss1, ss2);
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);